@@ -0,0 +1,129 @@
+package benchmarks;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.plugin.ZProjector;
+import ij.process.ShortProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.Kernels;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The pixel kernels on a 16-bit stack held in memory, plain against SIMD, and the maximum projection of ImageJ's
+ * ZProjector on the same stack for comparison. The SIMD kernels need JDK 16 or newer; on older JVMs only the
+ * "scalar" parameter runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KernelBenchmarks {
+
+    @Param({"scalar", "vector"})
+    public String kernels;
+    @Param({"2048"})
+    public int size;
+    @Param({"16"})
+    public int slices;
+
+    private Kernels k;
+    private short[][] planes;
+    private ImagePlus imp;
+    private short[] max;
+    private int[] sum;
+    private long[] sum_sq;
+    private int[] bins;
+    private double[] blended, weights;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        k = "vector".equals(kernels) ? Kernels.vector() : Kernels.scalar();
+        if (k == null)
+            throw new IllegalStateException("The Vector API is not available, run on JDK 16+ with --add-modules jdk.incubator.vector");
+        final Random random = new Random(size);
+        final ImageStack stack = new ImageStack(size, size);
+        planes = new short[slices][size * size];
+        for (short[] plane : planes) {
+            // Full 16-bit range, so the unsigned comparisons matter
+            for (int i = 0; i < plane.length; i++)
+                plane[i] = (short) random.nextInt(65536);
+            stack.addSlice(new ShortProcessor(size, size, plane, null));
+        }
+        imp = new ImagePlus("stack", stack);
+        max = new short[size * size];
+        sum = new int[size * size];
+        sum_sq = new long[size * size];
+        bins = new int[65536];
+        blended = new double[size];
+        weights = new double[size];
+        Arrays.fill(weights, 0.5);
+    }
+
+    @Benchmark
+    public ImagePlus zprojector_max() {
+        final ZProjector projector = new ZProjector(imp);
+        projector.setMethod(ZProjector.MAX_METHOD);
+        projector.doProjection();
+        return projector.getProjection();
+    }
+
+    @Benchmark
+    public short[] max() {
+        Arrays.fill(max, (short) 0);
+        for (short[] plane : planes)
+            k.max(max, plane, plane.length);
+        return max;
+    }
+
+    /**
+     * Sum and sum of squares, as for the mean and standard deviation projections.
+     */
+    @Benchmark
+    public long[] accumulate() {
+        for (short[] plane : planes)
+            k.accumulate(sum, sum_sq, plane, plane.length);
+        return sum_sq;
+    }
+
+    @Benchmark
+    public int min_max() {
+        int result = 0;
+        for (short[] plane : planes)
+            result ^= k.min_max(plane, plane.length);
+        return result;
+    }
+
+    @Benchmark
+    public int[] histogram() {
+        for (short[] plane : planes)
+            k.histogram(plane, plane.length, bins, 0);
+        return bins;
+    }
+
+    /**
+     * Blending every row of the stack into the canvas row, at a fractional offset on both axes.
+     */
+    @Benchmark
+    public double[] blend() {
+        for (short[] plane : planes)
+            for (int y = 0; y < size - 1; y++)
+                k.blend(blended, 0, plane, y * size, (y + 1) * size, 0.3, 0.6, weights, 0, size - 1);
+        return blended;
+    }
+}
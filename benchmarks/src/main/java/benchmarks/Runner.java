@@ -0,0 +1,37 @@
+package benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and writes the results as JSON (target/jmh-result.json unless -rff is given), so results of
+ * different releases can be compared. Takes the usual JMH options, e.g. {@code -p tiles=5,10 -p size=1024}. On JDK 16
+ * or newer the forks get the Vector API module, so the SIMD kernels are benchmarked too.
+ */
+public final class Runner {
+
+    private Runner() {
+    }
+
+    public static void main(final String[] args) throws RunnerException, CommandLineOptionException {
+        final CommandLineOptions command_line = new CommandLineOptions(args);
+        final OptionsBuilder options = new OptionsBuilder();
+        options.parent(command_line);
+        if (!command_line.getResultFormat().hasValue())
+            options.resultFormat(ResultFormatType.JSON);
+        if (!command_line.getResult().hasValue())
+            options.result("target/jmh-result.json");
+        if (command_line.getIncludes().isEmpty()) {
+            options.include(StitchingBenchmarks.class.getSimpleName());
+            options.include(KernelBenchmarks.class.getSimpleName());
+        }
+        // The SIMD kernels are only loaded with the incubator module
+        final String version = System.getProperty("java.specification.version");
+        if (!version.startsWith("1.") && Integer.parseInt(version) >= 16 && !command_line.getJvmArgsAppend().hasValue())
+            options.jvmArgsAppend("--add-modules=jdk.incubator.vector");
+        new org.openjdk.jmh.runner.Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,129 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.scijava.log.StderrLogService;
+import util.ImageFile;
+import util.MaxProjection;
+import util.MetadataIndex;
+import util.Projection;
+import util.Series;
+import util.StitchingJob;
+import util.ZStack;
+
+import java.io.File;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the main steps of a stitching run on generated tile scans: parsing the metadata of a file, reading
+ * the z-stack of one tile, projecting one tile and stitching a whole tile scan. Generated files are kept in
+ * {@code benchmarks.data} (default target/benchmark-data) and reused across runs.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StitchingBenchmarks {
+
+    @Param({"3"})
+    public int tiles;
+    @Param({"512"})
+    public int size;
+    @Param({"16"})
+    public int slices;
+    @Param({"2"})
+    public int channels;
+
+    private File file;
+    private ImageFile image_file;
+    private Series tile;
+
+    @Setup(Level.Trial)
+    public void generate() throws Exception {
+        final TileScanGenerator generator = new TileScanGenerator();
+        generator.tile_scans = 2;
+        generator.tiles_x = tiles;
+        generator.tiles_y = tiles;
+        generator.size_x = size;
+        generator.size_y = size;
+        generator.size_z = slices;
+        generator.size_c = channels;
+        file = generator.generate(new File(System.getProperty("benchmarks.data", "target/benchmark-data")));
+        image_file = new ImageFile(file.getPath(), false);
+        // The middle tile of the first tile scan
+        tile = image_file.series.get(tiles * tiles / 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        image_file.close();
+    }
+
+    /**
+     * Parsing with Bio-Formats, without the metadata index.
+     */
+    @Benchmark
+    public ImageFile parse_metadata() throws Exception {
+        MetadataIndex.index_file(file).delete();
+        try (ImageFile parsed = new ImageFile(file.getPath(), false)) {
+            return parsed;
+        }
+    }
+
+    /**
+     * Loading the series from the metadata index written by the previous parse.
+     */
+    @Benchmark
+    public ImageFile load_metadata_index() throws Exception {
+        try (ImageFile parsed = new ImageFile(file.getPath(), false)) {
+            return parsed;
+        }
+    }
+
+    @Benchmark
+    public ZStack read_stack() throws Exception {
+        return new ZStack(tile, false);
+    }
+
+    @Benchmark
+    public MaxProjection max_projection() throws Exception {
+        return new MaxProjection(tile);
+    }
+
+    /**
+     * Every projection from the same pass, compare with the maximum alone for the cost of the statistics.
+     */
+    @Benchmark
+    public MaxProjection all_projections() throws Exception {
+        return new MaxProjection(tile, EnumSet.allOf(Projection.class));
+    }
+
+    /**
+     * A whole stitching job with registration, without the projection cache.
+     */
+    @Benchmark
+    @Measurement(iterations = 3)
+    public StitchingJob stitch() throws Exception {
+        final StitchingJob.Options options = new StitchingJob.Options();
+        options.use_cross_correlation = true;
+        options.in_memory = true;
+        options.cache_limit_bytes = 0;
+        final StitchingJob job = new StitchingJob(image_file, tile.name, options, new StderrLogService());
+        job.run();
+        return job;
+    }
+}
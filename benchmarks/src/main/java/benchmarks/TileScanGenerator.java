@@ -0,0 +1,179 @@
+package benchmarks;
+
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatTools;
+import loci.formats.IFormatWriter;
+import loci.formats.ImageWriter;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
+import ome.xml.model.enums.DimensionOrder;
+import ome.xml.model.primitives.Color;
+import ome.xml.model.primitives.NonNegativeInteger;
+import ome.xml.model.primitives.PositiveInteger;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Writes synthetic tile scans as OME-TIFF: several tile scans per file, each a grid of overlapping multi-channel
+ * z-stacks with stage positions, like the tile scans of the Leica LIF files. The specimen is a fixed field of
+ * Gaussian blobs, so neighbouring tiles really overlap and registration has something to find, and focal planes lose
+ * contrast the further they are from the focus. The same settings always give the same file.
+ */
+public class TileScanGenerator {
+    // Channel colors the plugin knows (see util.Channel)
+    private static final int[][] COLORS = {{255, 0, 0}, {0, 255, 0}, {0, 0, 255}, {255, 0, 255}};
+
+    public int tile_scans = 2, tiles_x = 3, tiles_y = 3;
+    public int size_x = 512, size_y = 512, size_z = 16, size_c = 2;
+    // Fraction of a tile that overlaps its neighbour
+    public double overlap = 0.1;
+    public double pixel_size_um = 0.1;
+    public long seed = 42;
+
+    /**
+     * File name that encodes the settings, so generated files can be reused by later runs.
+     */
+    public String file_name() {
+        return String.format("tilescan_%dx%dx%d_%dx%dx%dx%d_%d.ome.tif", tile_scans, tiles_x, tiles_y, size_x, size_y,
+                size_z, size_c, seed);
+    }
+
+    public File generate(final File dir) throws Exception {
+        final File file = new File(dir, file_name());
+        if (file.isFile())
+            return file;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IllegalStateException("Unable to create directory " + dir.getPath());
+        final File tmp = new File(dir, "tmp_" + file.getName());
+        tmp.delete();
+
+        final int tiles = tiles_x * tiles_y;
+        final double step_x = size_x * (1 - overlap), step_y = size_y * (1 - overlap);
+        final Blobs specimen = new Blobs(seed, tiles_x * step_x + size_x, tiles_y * step_y + size_y);
+        final Random jitter = new Random(seed + 1);
+
+        final IMetadata meta = new ServiceFactory().getInstance(OMEXMLService.class).createOMEXMLMetadata();
+        final double[][] positions = new double[tile_scans * tiles][];
+        for (int s = 0; s < tile_scans; s++) {
+            for (int t = 0; t < tiles; t++) {
+                final int series = s * tiles + t;
+                MetadataTools.populateMetadata(meta, series, "TileScan " + (s + 1), false, DimensionOrder.XYCZT.getValue(),
+                        FormatTools.getPixelTypeString(FormatTools.UINT16), size_x, size_y, size_z, size_c, 1, 1);
+                meta.setPixelsPhysicalSizeX(new Length(pixel_size_um, UNITS.MICROMETER), series);
+                meta.setPixelsPhysicalSizeY(new Length(pixel_size_um, UNITS.MICROMETER), series);
+                for (int c = 0; c < size_c; c++) {
+                    final int[] rgb = COLORS[c % COLORS.length];
+                    meta.setChannelColor(new Color(rgb[0], rgb[1], rgb[2], 255), series, c);
+                    meta.setChannelSamplesPerPixel(new PositiveInteger(1), series, c);
+                }
+                // Tiles are a few pixels off the stage positions, like on a real stage
+                final double x = (t % tiles_x) * step_x, y = (t / tiles_x) * step_y;
+                positions[series] = new double[]{x + jitter.nextInt(7) - 3, y + jitter.nextInt(7) - 3};
+                for (int p = 0; p < size_z * size_c; p++) {
+                    meta.setPlaneTheZ(new NonNegativeInteger(p / size_c), series, p);
+                    meta.setPlaneTheC(new NonNegativeInteger(p % size_c), series, p);
+                    meta.setPlaneTheT(new NonNegativeInteger(0), series, p);
+                    meta.setPlanePositionX(new Length(x * pixel_size_um, UNITS.MICROMETER), series, p);
+                    meta.setPlanePositionY(new Length(y * pixel_size_um, UNITS.MICROMETER), series, p);
+                }
+            }
+        }
+
+        try (IFormatWriter writer = new ImageWriter()) {
+            writer.setMetadataRetrieve(meta);
+            writer.setInterleaved(false);
+            writer.setBigTiff(true);
+            writer.setId(tmp.getPath());
+            final byte[] plane = new byte[size_x * size_y * 2];
+            final Random noise = new Random(seed + 2);
+            for (int series = 0; series < positions.length; series++) {
+                writer.setSeries(series);
+                for (int p = 0; p < size_z * size_c; p++) {
+                    render(specimen, positions[series], p / size_c, p % size_c, noise, plane);
+                    writer.saveBytes(p, plane);
+                }
+            }
+        }
+        if (!tmp.renameTo(file))
+            throw new IllegalStateException("Unable to rename " + tmp.getPath());
+        return file;
+    }
+
+    /**
+     * One plane: the specimen at the true tile position, with the best focus in the middle of the stack, plus sensor
+     * noise.
+     * Big-endian, as Bio-Formats expects by default.
+     */
+    private void render(final Blobs specimen, final double[] position, final int z, final int c, final Random noise, final byte[] plane) {
+        final double defocus = Math.abs(z - (size_z - 1) / 2.0) / Math.max(1, size_z / 2.0);
+        final double contrast = 1 - 0.7 * defocus;
+        for (int y = 0; y < size_y; y++) {
+            for (int x = 0; x < size_x; x++) {
+                final double signal = specimen.value(position[0] + x, position[1] + y, c);
+                final int v = (int) Math.min(65535, 200 + 3000 * contrast * signal + noise.nextGaussian() * 20);
+                final int j = 2 * (y * size_x + x);
+                plane[j] = (byte) (Math.max(0, v) >> 8);
+                plane[j + 1] = (byte) Math.max(0, v);
+            }
+        }
+    }
+
+    /**
+     * Gaussian blobs at fixed random places, looked up through a coarse grid so evaluation stays cheap.
+     */
+    private static class Blobs {
+        private static final int CELL = 64, PER_CELL = 3;
+        private final int cells_x, cells_y;
+        private final double[][] blobs;
+
+        Blobs(final long seed, final double width, final double height) {
+            final Random random = new Random(seed);
+            cells_x = (int) Math.ceil(width / CELL) + 1;
+            cells_y = (int) Math.ceil(height / CELL) + 1;
+            blobs = new double[cells_x * cells_y * PER_CELL][];
+            for (int i = 0; i < blobs.length; i++) {
+                final int cell = i / PER_CELL;
+                blobs[i] = new double[]{(cell % cells_x + random.nextDouble()) * CELL, (cell / cells_x + random.nextDouble()) * CELL,
+                        4 + random.nextDouble() * 12, random.nextDouble(), random.nextInt(4)};
+            }
+        }
+
+        double value(final double x, final double y, final int c) {
+            final int cx = (int) Math.floor(x / CELL), cy = (int) Math.floor(y / CELL);
+            double sum = 0;
+            for (int j = Math.max(0, cy - 1); j <= Math.min(cells_y - 1, cy + 1); j++) {
+                for (int i = Math.max(0, cx - 1); i <= Math.min(cells_x - 1, cx + 1); i++) {
+                    for (int k = 0; k < PER_CELL; k++) {
+                        final double[] b = blobs[(j * cells_x + i) * PER_CELL + k];
+                        // Every blob shows up in one channel strongly and faintly in the others
+                        final double weight = (int) b[4] == c % 4 ? 1 : 0.2;
+                        final double dx = x - b[0], dy = y - b[1];
+                        sum += weight * b[3] * Math.exp(-(dx * dx + dy * dy) / (2 * b[2] * b[2]));
+                    }
+                }
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * Usage: {@code TileScanGenerator <output dir> [tile_scans tiles_x tiles_y size_x size_y size_z size_c]}
+     */
+    public static void main(final String[] args) throws Exception {
+        final TileScanGenerator generator = new TileScanGenerator();
+        if (args.length >= 8) {
+            generator.tile_scans = Integer.parseInt(args[1]);
+            generator.tiles_x = Integer.parseInt(args[2]);
+            generator.tiles_y = Integer.parseInt(args[3]);
+            generator.size_x = Integer.parseInt(args[4]);
+            generator.size_y = Integer.parseInt(args[5]);
+            generator.size_z = Integer.parseInt(args[6]);
+            generator.size_c = Integer.parseInt(args[7]);
+        }
+        System.out.println(generator.generate(new File(args.length > 0 ? args[0] : ".")).getPath());
+    }
+}
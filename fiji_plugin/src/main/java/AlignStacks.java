@@ -0,0 +1,167 @@
+import ij.IJ;
+import ij.ImagePlus;
+import org.scijava.command.Command;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import util.RigidRegistration;
+import util.RunReport;
+import util.TiffWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rigid 3D registration of the z-stack after milling to the z-stack before milling, on the channel with the
+ * fiducials. Replaces the Matlab script: works on the per-channel stacks written by "Get ZStacks from Stitch"
+ * ({@code <base>_channel_<c>.tif}) and writes every channel of the post-milling stack, resampled onto the pre-milling
+ * stack, as {@code <post base>_aligned_channel_<c>.tif}, next to the transformation matrix.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>CryoCLEM>Align Pre/Post-Milling Stacks")
+public class AlignStacks implements Command {
+    private static final Pattern CHANNEL = Pattern.compile("^(.*)_channel_\\d+\\.tif$");
+
+    @Parameter
+    private LogService log;
+    @Parameter(label = "Pre-milling z-stack (any channel file)", persist = false)
+    private File pre_file;
+    @Parameter(label = "Post-milling z-stack (any channel file)", persist = false)
+    private File post_file;
+    @Parameter(label = "Alignment channel (fiducials)", min = "0")
+    private int alignment_channel = 2;
+    @Parameter(label = "Pixel size XY in micron (if the stacks are not calibrated)")
+    private double xy_resolution = 0.13;
+    @Parameter(label = "Z step in micron")
+    private double z_resolution = 0.3;
+    @Parameter(label = "Pyramid levels", min = "1", max = "6")
+    private int levels = 3;
+    @Parameter(label = "Threads (0 = all cores)", min = "0")
+    private int threads = 0;
+
+    @Override
+    public void run() {
+        log.setLevel(LogLevel.INFO);
+        final String pre_base = base(pre_file), post_base = base(post_file);
+        if (pre_base == null || post_base == null) {
+            log.error("Select channel files named <base>_channel_<c>.tif, as written by \"Get ZStacks from Stitch\"");
+            return;
+        }
+        final List<File> post_channels = new ArrayList<>();
+        for (int c = 0; new File(post_base + "_channel_" + c + ".tif").isFile(); c++)
+            post_channels.add(new File(post_base + "_channel_" + c + ".tif"));
+        final File pre_fiducials = new File(pre_base + "_channel_" + alignment_channel + ".tif");
+        if (!pre_fiducials.isFile() || alignment_channel >= post_channels.size()) {
+            log.error(String.format("Channel %d is missing in %s or %s", alignment_channel, pre_base, post_base));
+            return;
+        }
+        final int n_threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        final RunReport report = new RunReport("alignment");
+        report.info("pre_stack", pre_base);
+        report.info("post_stack", post_base);
+        try {
+            final RigidRegistration.Volume fixed = read(pre_fiducials, report);
+            final RigidRegistration.Volume moving = read(post_channels.get(alignment_channel), report);
+            log.info(String.format("Registering %s to %s on channel %d", new File(post_base).getName(),
+                    new File(pre_base).getName(), alignment_channel));
+            final RigidRegistration registration = new RigidRegistration(fixed, moving, levels, n_threads, report);
+            final double[] p = registration.parameters;
+            log.info(String.format(Locale.ROOT, "Rotation %.3f, %.3f, %.3f degrees, translation %.3f, %.3f, %.3f micron "
+                            + "(%d levels, %d evaluations, normalized mutual information %.4f)",
+                    Math.toDegrees(p[0]), Math.toDegrees(p[1]), Math.toDegrees(p[2]), p[3], p[4], p[5],
+                    registration.levels, registration.evaluations, registration.metric));
+            report.info("rotation_degrees", String.format(Locale.ROOT, "%.4f, %.4f, %.4f", Math.toDegrees(p[0]), Math.toDegrees(p[1]), Math.toDegrees(p[2])));
+            report.info("translation_micron", String.format(Locale.ROOT, "%.4f, %.4f, %.4f", p[3], p[4], p[5]));
+            report.info("metric", registration.metric);
+            write_matrix(registration.matrix(moving), new File(post_base + "_transformation_matrix.csv"));
+
+            for (int c = 0; c < post_channels.size(); c++) {
+                final RigidRegistration.Volume channel = c == alignment_channel ? moving : read(post_channels.get(c), report);
+                final RigidRegistration.Volume aligned;
+                try (RunReport.Span ignored = report.time("resampling")) {
+                    aligned = registration.resample(channel);
+                }
+                report.planes("resampling", aligned.depth);
+                write(aligned, new File(post_base + "_aligned_channel_" + c + ".tif"), report);
+                log.info(String.format("Wrote channel %d of %d", c + 1, post_channels.size()));
+            }
+        } catch (IOException | ExecutionException e) {
+            log.error(String.format("Failed aligning %s: %s", post_base, e instanceof ExecutionException ? e.getCause() : e.getMessage()));
+        } catch (InterruptedException e) {
+            log.error("Interrupted\n" + e.getMessage());
+        } finally {
+            report.finish();
+            try {
+                report.write(new File(post_base + "_alignment_report.json"));
+            } catch (IOException e) {
+                log.warn("Unable to write the alignment report: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The path of a channel file without {@code _channel_<c>.tif}, or null if it is not named like one.
+     */
+    private static String base(final File file) {
+        if (file == null)
+            return null;
+        final Matcher matcher = CHANNEL.matcher(file.getPath());
+        return matcher.matches() ? matcher.group(1) : null;
+    }
+
+    private RigidRegistration.Volume read(final File file, final RunReport report) throws IOException {
+        final ImagePlus imp;
+        try (RunReport.Span ignored = report.time("stack_read")) {
+            imp = IJ.openImage(file.getPath());
+        }
+        if (imp == null)
+            throw new IOException("Unable to open " + file.getPath());
+        if (imp.getBitDepth() != 8 && imp.getBitDepth() != 16)
+            throw new IOException("Only 8- and 16-bit stacks are supported: " + file.getPath());
+        report.read("stack_read", file.length());
+        report.planes("stack_read", imp.getStackSize());
+        return RigidRegistration.Volume.of(imp, xy_resolution, z_resolution);
+    }
+
+    private static void write(final RigidRegistration.Volume volume, final File path, final RunReport report) throws IOException {
+        if (path.exists())
+            throw new IOException("Output file exists: " + path.getPath());
+        final TiffWriter writer = new TiffWriter(path, volume.width, volume.height, 2, true, volume.depth, 1, volume.cal_x, volume.cal_y);
+        try (RunReport.Span ignored = report.time("stack_write")) {
+            final ByteBuffer plane = ByteBuffer.allocate(volume.width * volume.height * 2).order(ByteOrder.LITTLE_ENDIAN);
+            for (int z = 0; z < volume.depth; z++) {
+                plane.clear();
+                plane.asShortBuffer().put(volume.planes[z]);
+                writer.write(z, plane);
+            }
+            writer.close();
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+        report.written("stack_write", path.length());
+    }
+
+    /**
+     * Same layout as the csvwrite of the Matlab script.
+     */
+    private static void write_matrix(final double[][] matrix, final File path) throws IOException {
+        try (PrintWriter writer = new PrintWriter(path, "UTF-8")) {
+            for (double[] row : matrix) {
+                final StringBuilder sb = new StringBuilder();
+                for (int j = 0; j < row.length; j++)
+                    sb.append(j > 0 ? "," : "").append(String.format(Locale.ROOT, "%.10g", row[j]));
+                writer.println(sb);
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.plugin.frame.RoiManager;
+import loci.formats.FormatException;
+import org.scijava.command.Command;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import util.ImageFile;
+import util.OmeTiffWriter;
+import util.RoiSet;
+import util.RunReport;
+import util.Series;
+import util.StackExtraction;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts the z-stacks of many ROIs in one go. The tiles of each LIF file are read one after the other in the order
+ * of their pixel data in the file, so the storage mostly sees sequential reads, while several files are read at the
+ * same time.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>CryoCLEM>Get ZStacks from Stitch (batch)")
+public class BatchRoiExtractor implements Command {
+    static final String ALL = "All ROIs of the ROI set(s)";
+    static final String SELECTED = "ROIs selected in the ROI Manager";
+    static final String INSIDE = "Tiles inside the selection on the stitch";
+    private static final Pattern SERIES_NUM = Pattern.compile("(?<=_mp_)\\d+(?=\\.tif)");
+
+    @Parameter
+    private LogService log;
+    @Parameter(label = "ROIs", choices = {ALL, SELECTED, INSIDE})
+    private String mode = ALL;
+    @Parameter(label = "ROI file(s) (all ROIs)", required = false, persist = false)
+    private File[] roi_files;
+    @Parameter(label = "Original image file (ROI Manager / selection)", required = false, persist = false)
+    private File original_file;
+    @Parameter(label = "Output directory", style = "directory", persist = false)
+    private File output_dir;
+    @Parameter(label = "Files read at the same time", min = "1")
+    private int parallel_files = 2;
+    @Parameter(label = "Writer threads", min = "1")
+    private int writer_threads = 2;
+    @Parameter(label = "Output format", choices = {StackExtraction.Output.IMAGEJ, StackExtraction.Output.OME_CHANNELS, StackExtraction.Output.OME})
+    private String output_layout = StackExtraction.Output.IMAGEJ;
+    @Parameter(label = "OME-TIFF compression", choices = {"LZW", "Deflate", "None"})
+    private String compression = "LZW";
+
+    /**
+     * One ROI to extract: the tile it shows, its one-indexed position in its ROI set and the name of the set, which
+     * prefixes the output files. ROI sets of several tile scans of one file number their ROIs independently.
+     */
+    private static class Request {
+        final int series_index, roi_index;
+        final String set_name;
+
+        Request(final int series_index, final int roi_index, final String set_name) {
+            this.series_index = series_index;
+            this.roi_index = roi_index;
+            this.set_name = set_name;
+        }
+    }
+
+    @Override
+    public void run() {
+        log.setLevel(LogLevel.INFO);
+        if (!output_dir.isDirectory() && !output_dir.mkdirs()) {
+            log.error("Unable to create output directory!");
+            return;
+        }
+        final Map<File, List<Request>> requests;
+        try {
+            requests = collect();
+        } catch (IOException e) {
+            log.error(e.getMessage());
+            return;
+        }
+        final int total = requests.values().stream().mapToInt(List::size).sum();
+        if (total == 0) {
+            log.error("No ROIs to extract");
+            return;
+        }
+        log.info(String.format("Extracting %d ROIs from %d files", total, requests.size()));
+
+        final ExecutorService file_pool = Executors.newFixedThreadPool(Math.min(parallel_files, requests.size()));
+        final ExecutorService write_pool = Executors.newFixedThreadPool(writer_threads);
+        final ForkJoinPool compress_pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        final StackExtraction.Output output = new StackExtraction.Output(output_layout,
+                OmeTiffWriter.Compression.valueOf(compression.toUpperCase(Locale.ROOT)), compress_pool);
+        final AtomicInteger done = new AtomicInteger(0);
+        final List<Future<?>> files = new ArrayList<>();
+        final RunReport report = new RunReport("Batch extraction");
+        report.info("rois", total);
+        report.info("files", requests.size());
+        report.info("parallel_files", parallel_files);
+        report.info("writer_threads", writer_threads);
+        report.info("output", output_layout.equals(StackExtraction.Output.IMAGEJ) ? output_layout : output_layout + ", " + compression);
+        final Timer status = new Timer("Extraction status", true);
+        status.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                IJ.showStatus(String.format("Extracted %d of %d ROIs: %s", done.get(), total, report.counters()));
+            }
+        }, 1000, 1000);
+        try {
+            for (Map.Entry<File, List<Request>> entry : requests.entrySet())
+                files.add(file_pool.submit(() -> {
+                    extract(entry.getKey(), entry.getValue(), write_pool, output, report, done, total);
+                    return null;
+                }));
+            for (Future<?> file : files)
+                file.get();
+        } catch (ExecutionException e) {
+            log.error(e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            log.error("Interrupted\n" + e.getMessage());
+            for (Future<?> file : files)
+                file.cancel(true);
+        } finally {
+            file_pool.shutdownNow();
+            write_pool.shutdown();
+            compress_pool.shutdown();
+            status.cancel();
+            IJ.showProgress(1.0);
+        }
+        log.info(String.format("Done extracting %d of %d ROIs", done.get(), total));
+        IJ.showStatus(String.format("Extracted %d of %d ROIs: %s", done.get(), total, report.counters()));
+        report.info("extracted", done.get());
+        final File path = new File(output_dir, "batch_extraction_report.json");
+        try {
+            report.write(path);
+        } catch (IOException e) {
+            log.warn(String.format("Unable to write run report %s: %s", path.getPath(), e.getMessage()));
+        }
+    }
+
+    /**
+     * The ROIs to extract, grouped by their LIF file.
+     */
+    private Map<File, List<Request>> collect() throws IOException {
+        final Map<File, List<Request>> requests = new LinkedHashMap<>();
+        if (mode.equals(ALL)) {
+            if (roi_files == null || roi_files.length == 0)
+                throw new IOException("No ROI files given");
+            for (File roi_file : roi_files) {
+                final File original = ImageFile.find_original(roi_file);
+                if (original == null)
+                    throw new IOException("No LIF file found for " + roi_file.getName());
+                final Roi[] rois = RoiSet.open(roi_file);
+                final List<Request> list = requests.computeIfAbsent(original, f -> new ArrayList<>());
+                // <base name>_<tile scan>_ROIset.zip as saved by the stitching
+                final String name = roi_file.getName();
+                final String set_name = name.endsWith("_ROIset.zip")
+                        ? name.substring(0, name.length() - "_ROIset.zip".length()) : ImageFile.remove_extension(name);
+                for (int i = 0; i < rois.length; i++)
+                    add(list, rois[i], i + 1, set_name);
+            }
+            return requests;
+        }
+
+        if (original_file == null)
+            throw new IOException("No original image file given");
+        final RoiManager rm = RoiManager.getInstance();
+        if (rm == null)
+            throw new IOException("The ROI Manager is not open");
+        final List<Request> list = new ArrayList<>();
+        if (mode.equals(SELECTED)) {
+            for (int i : rm.getSelectedIndexes())
+                add(list, rm.getRoi(i), i + 1, null);
+        } else {
+            final ImagePlus stitched = IJ.getImage();
+            final Roi selection = stitched.getRoi();
+            if (selection == null || !selection.isArea())
+                throw new IOException("Draw an area selection on the stitch first");
+            final Roi[] rois = rm.getRoisAsArray();
+            for (int i = 0; i < rois.length; i++) {
+                final double[] center = rois[i].getContourCentroid();
+                if (selection.containsPoint(center[0], center[1]))
+                    add(list, rois[i], i + 1, null);
+            }
+        }
+        requests.put(original_file, list);
+        return requests;
+    }
+
+    /**
+     * @param set_name prefix of the output files, null for the base name of the image file
+     */
+    private void add(final List<Request> list, final Roi roi, final int roi_index, final String set_name) {
+        final Matcher matcher = SERIES_NUM.matcher(roi.getName());
+        if (matcher.find())
+            list.add(new Request(Integer.parseInt(matcher.group(0)), roi_index, set_name));
+        else
+            log.warn(String.format("ROI %d (%s) is not a tile", roi_index, roi.getName()));
+    }
+
+    /**
+     * File offset of the first plane of a tile, tiles without a known offset go last.
+     */
+    private static long first_offset(final Series series) {
+        return series.plane_offsets != null && series.plane_offsets.length > 0 ? series.plane_offsets[0] : Long.MAX_VALUE;
+    }
+
+    private void extract(final File original, final List<Request> list, final ExecutorService write_pool,
+                         final StackExtraction.Output output, final RunReport report, final AtomicInteger done, final int total) throws Exception {
+        try (ImageFile image_file = new ImageFile(original.getPath(), false)) {
+            report.add_time("metadata", image_file.metadata_nanos);
+            // Tiles without a known offset go last, in the order of their series
+            list.sort(Comparator.<Request>comparingLong(r -> first_offset(image_file.series.get(r.series_index)))
+                    .thenComparingInt(r -> r.series_index));
+            for (Request request : list) {
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedException("Cancelled extraction from " + original.getName());
+                final Series series = image_file.series.get(request.series_index);
+                final String prefix = request.set_name != null ? request.set_name : image_file.base_name;
+                final File base_path = new File(output_dir, prefix + "_zstack_" + request.roi_index);
+                try {
+                    new StackExtraction(series, base_path, null, output).run(write_pool, report);
+                    log.info(String.format("Done writing ROI %d of %s", request.roi_index, prefix));
+                } catch (IOException | FormatException e) {
+                    log.error(String.format("Error extracting ROI %d of %s: %s", request.roi_index, prefix, e.getMessage()));
+                }
+                IJ.showProgress(done.incrementAndGet(), total);
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.io.FileInfo;
+import org.scijava.command.Command;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import util.ImageFile;
+import util.RegionExtraction;
+import util.RoiSet;
+import util.RunReport;
+import util.Series;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts the z-stack under a rectangle drawn on a stitch (a preview or the full stitch), fused from all tiles it
+ * covers. The channels are written as {@code <LIF basename>_region_<x>_<y>_channel_<c>.tif}, with x and y the corner
+ * of the region in full resolution pixels of the stitch.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>CryoCLEM>Get Region ZStack from Stitch")
+public class ExtractRegion implements Command {
+    private static final Pattern TILE = Pattern.compile("^(.*)_mp_(\\d+)\\.tif$");
+
+    @Parameter
+    private LogService log;
+    @Parameter(label = "ROI file (empty = the one of the stitch)", required = false, persist = false)
+    private File roi_file;
+    @Parameter(label = "Original image file (empty = found from the stitch)", required = false, persist = false)
+    private File original_file;
+    @Parameter(label = "Output directory", style = "directory", persist = false)
+    private File output_dir;
+    @Parameter(label = "Threads (0 = all cores)", min = "0")
+    private int threads = 0;
+
+    @Override
+    public void run() {
+        log.setLevel(LogLevel.INFO);
+        final ImagePlus stitched = IJ.getImage();
+        final Roi selection = stitched.getRoi();
+        if (selection == null || !selection.isArea()) {
+            log.error("Draw a rectangle on the stitch first");
+            return;
+        }
+        final FileInfo info = stitched.getOriginalFileInfo();
+        final File stitched_file = info != null && info.directory != null ? new File(info.directory, info.fileName) : null;
+        if (roi_file == null && stitched_file != null)
+            roi_file = new File(stitched_file.getPath().replace("_stitch.tif", "_ROIset.zip"));
+        if (original_file == null && stitched_file != null)
+            original_file = ImageFile.find_original(stitched_file);
+        if (roi_file == null || !roi_file.isFile() || original_file == null) {
+            log.error("Unable to find the ROI file and the original image file of " + stitched.getTitle());
+            return;
+        }
+        if (!output_dir.isDirectory() && !output_dir.mkdirs()) {
+            log.error("Unable to create output directory!");
+            return;
+        }
+
+        final RunReport report = new RunReport(original_file.getName() + " region extraction");
+        File base_path = null;
+        try (ImageFile image_file = new ImageFile(original_file.getPath(), false)) {
+            // The tiles of the ROI set give the positions on the stitch, which may be binned
+            final List<Series> tiles = new ArrayList<>();
+            final List<Rectangle> bounds = new ArrayList<>();
+            String series_name = null;
+            for (Roi roi : RoiSet.open(roi_file)) {
+                final Matcher matcher = TILE.matcher(roi.getName() != null ? roi.getName() : "");
+                if (!matcher.find() || (series_name != null && !series_name.equals(matcher.group(1))))
+                    continue;
+                series_name = matcher.group(1);
+                tiles.add(image_file.series.get(Integer.parseInt(matcher.group(2))));
+                bounds.add(roi.getBounds());
+            }
+            if (tiles.isEmpty()) {
+                log.error("No tiles in " + roi_file.getPath());
+                return;
+            }
+            final double scale = (double) tiles.get(0).size_x / bounds.get(0).width;
+            final int[] origin_x = new int[tiles.size()], origin_y = new int[tiles.size()];
+            for (int i = 0; i < tiles.size(); i++) {
+                origin_x[i] = (int) Math.round(bounds.get(i).x * scale);
+                origin_y[i] = (int) Math.round(bounds.get(i).y * scale);
+            }
+            final Rectangle region = selection.getBounds();
+            final int x = (int) Math.round(region.x * scale), y = (int) Math.round(region.y * scale);
+            final RegionExtraction extraction = new RegionExtraction(tiles, origin_x, origin_y, x, y,
+                    (int) Math.round(region.width * scale), (int) Math.round(region.height * scale));
+            log.info(String.format("Extracting %d x %d pixels at %d, %d from %d tiles of %s, reading %.1f MB per plane",
+                    extraction.width, extraction.height, x, y, extraction.tiles.size(), series_name,
+                    extraction.plane_bytes_read() / 1e6));
+            report.info("file", image_file.getPath());
+            report.info("region", String.format("%d, %d, %d x %d", x, y, extraction.width, extraction.height));
+            report.info("tiles", extraction.tiles.size());
+            base_path = new File(output_dir, String.format("%s_region_%d_%d", image_file.base_name, x, y));
+            extraction.run(base_path, threads > 0 ? threads : Runtime.getRuntime().availableProcessors(), report);
+            log.info("Done writing " + base_path.getName());
+        } catch (InterruptedException e) {
+            log.error("Interrupted\n" + e.getMessage());
+        } catch (Exception e) {
+            log.error(String.format("Failed extracting the region from %s:\n%s", original_file.getPath(), e));
+        } finally {
+            report.finish();
+            if (base_path != null) {
+                try {
+                    report.write(new File(base_path.getPath() + "_report.json"));
+                } catch (IOException e) {
+                    log.warn("Unable to write the extraction report: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -1,8 +1,9 @@
 import ij.IJ;
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.gui.Roi;
-import ij.io.FileSaver;
-import ij.plugin.ChannelSplitter;
+import ij.plugin.ContrastEnhancer;
+import ij.plugin.RoiScaler;
 import ij.plugin.frame.RoiManager;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
@@ -12,28 +13,37 @@ import org.scijava.log.LogLevel;
 import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
-import org.scijava.thread.ThreadService;
 import util.ImageFile;
-import util.ZStack;
+import util.OmeTiffWriter;
+import util.Pyramid;
+import util.RunReport;
+import util.Series;
+import util.StackCache;
+import util.StackExtraction;
 
+import java.awt.Dimension;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.awt.event.MouseMotionAdapter;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
-import java.util.concurrent.ExecutionException;
+import java.util.Locale;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 @Plugin(type = Command.class, menuPath = "Plugins>CryoCLEM>Get ZStacks from Stitch")
 public class RoiExtractor implements Command {
-    @Parameter
-    private ThreadService thread_pool;
+    // One shared reader reads the planes of all extractions in click order, the writers append them to the channel files
     private final ExecutorService read_pool = Executors.newFixedThreadPool(1);
-    private final ExecutorService write_pool = Executors.newFixedThreadPool(1);
+    private final ExecutorService write_pool = Executors.newFixedThreadPool(2);
 
     @Parameter
     RoiManager rm;
@@ -48,6 +58,12 @@ public class RoiExtractor implements Command {
     private File roi_file;
     @Parameter(label = "Output directory", style = "directory", persist = false)
     private File output_dir;
+    @Parameter(label = "Tile cache in MB (0 = off)", min = "0")
+    private int cache_mb = 2048;
+    @Parameter(label = "Output format", choices = {StackExtraction.Output.IMAGEJ, StackExtraction.Output.OME_CHANNELS, StackExtraction.Output.OME})
+    private String output_layout = StackExtraction.Output.IMAGEJ;
+    @Parameter(label = "OME-TIFF compression", choices = {"LZW", "Deflate", "None"})
+    private String compression = "LZW";
 
     private void stitched_file_changed() {
         if (this.stitched_file == null) return;
@@ -55,13 +71,8 @@ public class RoiExtractor implements Command {
         // Splitting at underscores should find us the LIF filename, which we can autofill
         log.debug("Looking for .lif file");
         String stitched = this.stitched_file.getPath();
-        for (int i = stitched.indexOf('_'); i > 0 && i < stitched.length(); i = stitched.indexOf('_', i + 1)) {
-            File f = new File(stitched.substring(0, i) + ".lif");
-            if (f.isFile()) {
-                this.original_file = f;
-                break;
-            }
-        }
+        final File original = ImageFile.find_original(this.stitched_file);
+        if (original != null) this.original_file = original;
         // The ROIset file has the format <LIF basename>_<TileScan>_ROIset.zip
         // Replacing _stitched.tif with _ROIset.zip should get us the ROIset filename
         File f = new File(stitched.replace("_stitch.tif", "_ROIset.zip"));
@@ -98,7 +109,6 @@ public class RoiExtractor implements Command {
     @Override
     public void run() {
         log.setLevel(LogLevel.INFO);
-        thread_pool.setExecutorService(Executors.newFixedThreadPool(2));
 
         log.debug("Creating output dir");
         if (!output_dir.exists()) {
@@ -109,9 +119,43 @@ public class RoiExtractor implements Command {
         }
 
         log.debug("Opening files");
-        final ImagePlus stitched = IJ.openImage(stitched_file.getPath());
+        // Prefer the pyramid of the stitch and only read the level that fits the screen
+        final File pyramid_dir = stitched_file.getName().endsWith(".zarr") ? stitched_file
+                : new File(stitched_file.getPath().replace("_stitch.tif", "_stitch.zarr"));
+        final ImagePlus stitched;
+        double roi_scale = 1;
+        if (pyramid_dir.isDirectory()) {
+            try {
+                final Pyramid pyramid = new Pyramid(pyramid_dir);
+                final Dimension screen = IJ.getScreenSize();
+                final int level = pyramid.fitting_level(screen.width, screen.height);
+                log.debug(String.format("Opening pyramid level %d of %s", level, pyramid_dir.getPath()));
+                stitched = pyramid.open(level, pyramid_dir.getName());
+                for (int c = 1; c <= stitched.getNChannels(); c++) {
+                    stitched.setC(c);
+                    new ContrastEnhancer().stretchHistogram(stitched, 0.35);
+                }
+                stitched.setC(1);
+                roi_scale = 1.0 / pyramid.scale(level);
+            } catch (IOException e) {
+                log.error(e.getMessage());
+                return;
+            }
+        } else {
+            stitched = IJ.openImage(stitched_file.getPath());
+        }
         stitched.show();
         rm.runCommand("Open", roi_file.getPath());
+        if (roi_scale != 1) {
+            // The ROIs are in full resolution pixels, their names still identify the tiles
+            final Roi[] rois = rm.getRoisAsArray();
+            rm.reset();
+            for (Roi roi : rois) {
+                final Roi scaled = RoiScaler.scale(roi, roi_scale, roi_scale, false);
+                scaled.setName(roi.getName());
+                rm.addRoi(scaled);
+            }
+        }
         rm.runCommand("Show All with labels");
         final ImageFile image_file;
         try {
@@ -120,6 +164,94 @@ public class RoiExtractor implements Command {
             log.error(e.getMessage());
             return;
         }
+        // One report for the whole session, written when the stitched image is closed
+        final RunReport report = new RunReport(image_file.getName() + " extraction");
+        report.add_time("metadata", image_file.metadata_nanos);
+        report.info("file", image_file.getPath());
+        report.info("metadata_indexed", image_file.metadata_indexed);
+        // Tiles under the cursor and next to clicked ones are read ahead, at most a quarter of the heap is used
+        final long cache_bytes = Math.min((long) cache_mb << 20, Runtime.getRuntime().maxMemory() / 4);
+        final StackCache cache = cache_bytes > 0 ? new StackCache(cache_bytes, report) : null;
+        report.info("cache_bytes", cache_bytes);
+        // Tiles of the OME-TIFFs are compressed on all cores
+        final ForkJoinPool compress_pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        final StackExtraction.Output output = new StackExtraction.Output(output_layout,
+                OmeTiffWriter.Compression.valueOf(compression.toUpperCase(Locale.ROOT)), compress_pool);
+        report.info("output", output_layout.equals(StackExtraction.Output.IMAGEJ) ? output_layout : output_layout + ", " + compression);
+        final AtomicInteger queued = new AtomicInteger(), finished = new AtomicInteger();
+        final Timer status = new Timer("Extraction status", true);
+        status.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                if (finished.get() < queued.get())
+                    IJ.showStatus(String.format("Extracted %d of %d ROIs: %s", finished.get(), queued.get(), report.counters()));
+            }
+        }, 1000, 1000);
+        // The pooled readers of the image file live as long as the stitched image is open
+        ImagePlus.addImageListener(new ImageListener() {
+            @Override
+            public void imageOpened(ImagePlus imp) {
+            }
+
+            @Override
+            public void imageClosed(ImagePlus imp) {
+                if (imp == stitched) {
+                    ImagePlus.removeImageListener(this);
+                    // Queued extractions still finish, the readers are closed after them
+                    read_pool.shutdown();
+                    write_pool.shutdown();
+                    new Thread(() -> {
+                        try {
+                            read_pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                            write_pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e) {
+                            log.debug("Interrupted while waiting for extractions");
+                        }
+                        status.cancel();
+                        compress_pool.shutdown();
+                        if (cache != null)
+                            cache.close();
+                        image_file.close();
+                        if (queued.get() > 0) {
+                            report.info("rois", queued.get());
+                            final File path = new File(output_dir, image_file.base_name + "_extraction_report.json");
+                            try {
+                                report.write(path);
+                            } catch (IOException e) {
+                                log.warn(String.format("Unable to write run report %s: %s", path.getPath(), e.getMessage()));
+                            }
+                        }
+                    }, "Close " + image_file.getName()).start();
+                }
+            }
+
+            @Override
+            public void imageUpdated(ImagePlus imp) {
+            }
+        });
+        if (cache != null) {
+            stitched.getCanvas().addMouseMotionListener(new MouseMotionAdapter() {
+                private final Pattern series_num_regex = Pattern.compile("(?<=_mp_)\\d+(?=\\.tif)");
+                private int hovered = -1;
+
+                @Override
+                public void mouseMoved(MouseEvent mouseEvent) {
+                    final int x = stitched.getCanvas().offScreenX(mouseEvent.getX());
+                    final int y = stitched.getCanvas().offScreenY(mouseEvent.getY());
+                    for (Roi roi : rm.getRoisAsArray()) {
+                        final Matcher matcher = series_num_regex.matcher(roi.getName() != null ? roi.getName() : "");
+                        if (!roi.contains(x, y) || !matcher.find())
+                            continue;
+                        final int series_index = Integer.parseInt(matcher.group(0));
+                        if (series_index != hovered) {
+                            hovered = series_index;
+                            cache.prefetch(image_file.series, image_file.series.get(series_index));
+                        }
+                        return;
+                    }
+                }
+            });
+        }
         stitched.getCanvas().addMouseListener(new MouseListener() {
                                                   final Pattern series_num_regex = Pattern.compile("(?<=_mp_)\\d+(?=\\.tif)");
 
@@ -134,26 +266,24 @@ public class RoiExtractor implements Command {
                                                               final int series_index = Integer.parseInt(matcher.group(0));
                                                               final int roi_index = rm.getRoiIndex(roi) + 1;
                                                               log.info(String.format("Queued extraction of ROI %d", roi_index));
-                                                              thread_pool.getExecutorService().submit(() -> {
-                                                                  final File base_path = new File(
-                                                                          output_dir.getPath() + File.separator +
-                                                                                  //image_file.base_name + "_zstack_" + roi_index + File.separator +
-                                                                                  image_file.base_name + "_zstack_" + roi_index);
-                                                                  try {
-                                                                      ZStack zstack = new ZStack(image_file.series.get(series_index), true);
-                                                                      ImagePlus[] channels = ChannelSplitter.split(zstack.imp);
-                                                                      for (int c = 0; c < channels.length; c++) {
-                                                                          final File path = new File(base_path.getPath() + "_channel_" + c + ".tif");
-                                                                          if (path.exists() || !new FileSaver(channels[c]).saveAsTiff(path.getPath())) {
-                                                                              log.error(String.format("Error saving to " + path.getPath()));
-                                                                          }
-
-                                                                      }
-                                                                      log.info("Done writing ROI " + roi_index);
-                                                                  } catch (Exception e) {
-                                                                      log.error(e.toString());
-                                                                  }
-                                                              });
+                                                              queued.incrementAndGet();
+                                                              final File base_path = new File(
+                                                                      output_dir.getPath() + File.separator +
+                                                                              image_file.base_name + "_zstack_" + roi_index);
+                                                              final Series series = image_file.series.get(series_index);
+                                                              if (cache != null)
+                                                                  cache.prefetch(image_file.series, series);
+                                                              new StackExtraction(series, base_path, cache, output)
+                                                                      .submit(read_pool, write_pool, report)
+                                                                      .whenComplete((done, e) -> {
+                                                                          finished.incrementAndGet();
+                                                                          IJ.showStatus(String.format("Extracted %d of %d ROIs: %s",
+                                                                                  finished.get(), queued.get(), report.counters()));
+                                                                          if (e == null)
+                                                                              log.info("Done writing ROI " + roi_index);
+                                                                          else
+                                                                              log.error(String.format("Error extracting ROI %d: %s", roi_index, e.getCause()));
+                                                                      });
                                                           }
                                                       }
                                                   }
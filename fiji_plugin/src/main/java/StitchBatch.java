@@ -0,0 +1,152 @@
+import org.scijava.command.Command;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import util.ImageFile;
+import util.Projection;
+import util.StitchingJob;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * Stitching without any window, for batch runs on compute nodes, e.g.
+ * <pre>
+ * ImageJ-linux64 --headless --run "Stitch TileScan (batch)" \
+ *     "files='/data/grid1.lif',series='TileScan 1',mode='Project shard',shard=0,shard_count=4,shard_dir='/scratch/grid1'"
+ * </pre>
+ * The tiles of a tile scan can be projected by several workers, each one taking the tiles whose series index modulo
+ * the number of shards equals its shard. Once all shards are done, one merge run registers and fuses the projections
+ * and writes the stitch, the ROI set and the PNG export next to the image file.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>CryoCLEM>Stitch TileScan (batch)", headless = true)
+public class StitchBatch implements Command {
+
+    static final String MODE_ALL = "Project and stitch";
+    static final String MODE_SHARD = "Project shard";
+    static final String MODE_MERGE = "Merge shards";
+
+    @Parameter
+    private LogService log;
+    @Parameter(label = "LIF file(s)")
+    private File[] files;
+    @Parameter(label = "Tile scans (comma separated, empty = all)", required = false)
+    private String series = "";
+    @Parameter(label = "Mode", choices = {MODE_ALL, MODE_SHARD, MODE_MERGE})
+    private String mode = MODE_ALL;
+    @Parameter(label = "Shard", min = "0")
+    private int shard = 0;
+    @Parameter(label = "Number of shards", min = "1")
+    private int shard_count = 1;
+    @Parameter(label = "Shard directory (empty = next to the image file)", style = "directory", required = false)
+    private File shard_dir;
+    @Parameter(label = "Delete shards after merging")
+    private boolean delete_shards = true;
+    @Parameter(label = "Create subfolder(s)")
+    private boolean subfolder;
+    @Parameter(label = "Maximum projection")
+    private boolean project_max = true;
+    @Parameter(label = "Extended depth of field projection")
+    private boolean project_edf;
+    @Parameter(label = "Mean projection")
+    private boolean project_mean;
+    @Parameter(label = "Standard deviation projection")
+    private boolean project_std;
+    @Parameter(label = "Best focus index projection")
+    private boolean project_focus;
+    @Parameter(label = "Use cross-correlation")
+    private boolean use_cross_correlation;
+    @Parameter(label = "Write PNG export(s)")
+    private boolean png_export;
+    @Parameter(label = "Invert X coordinate")
+    private boolean invert_x;
+    @Parameter(label = "Invert Y coordinate")
+    private boolean invert_y;
+    @Parameter(label = "Write multi-resolution pyramid (.zarr)")
+    private boolean write_pyramid;
+    @Parameter(label = "Projection cache size (GB, 0 = off)", min = "0")
+    private long cache_gb = 0;
+    @Parameter(label = "Keep projections in memory")
+    private boolean in_memory;
+
+    @Override
+    public void run() {
+        log.setLevel(LogLevel.INFO);
+        if (!project_max && !project_edf && !project_mean && !project_std && !project_focus) {
+            log.error("Select at least one projection");
+            return;
+        }
+        if (shard >= shard_count) {
+            log.error(String.format("Shard %d does not exist, there are only %d shards", shard, shard_count));
+            return;
+        }
+        final List<String> wanted = Arrays.stream(series.split(","))
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .collect(Collectors.toList());
+
+        final StitchingJob.Options options = new StitchingJob.Options();
+        options.projections = EnumSet.noneOf(Projection.class);
+        if (project_max) options.projections.add(Projection.MAX);
+        if (project_edf) options.projections.add(Projection.EDF);
+        if (project_mean) options.projections.add(Projection.MEAN);
+        if (project_std) options.projections.add(Projection.STD);
+        if (project_focus) options.projections.add(Projection.FOCUS);
+        options.use_cross_correlation = use_cross_correlation;
+        options.png_export = png_export;
+        options.invert_x = invert_x;
+        options.invert_y = invert_y;
+        options.in_memory = in_memory;
+        options.pyramid = write_pyramid;
+        options.cache_limit_bytes = cache_gb * 1024 * 1024 * 1024;
+
+        int failed = 0;
+        for (File f : files) {
+            final File dir = shard_dir != null ? new File(shard_dir, ImageFile.remove_extension(f.getName()))
+                    : new File(f.getParent(), "." + ImageFile.remove_extension(f.getName()) + ".shards");
+            // Several workers read the same file, so only the merge run may move it into its subfolder
+            final boolean move = subfolder && !mode.equals(MODE_SHARD);
+            try (ImageFile image_file = new ImageFile(f.getPath(), move)) {
+                final List<String> names = new ArrayList<>();
+                for (String n : image_file.unique_series())
+                    if (wanted.isEmpty() || wanted.contains(n))
+                        names.add(n);
+                for (String n : wanted)
+                    if (!names.contains(n))
+                        log.warn(String.format("No tile scan [%s] in %s", n, f.getName()));
+                for (String n : names) {
+                    final StitchingJob job = new StitchingJob(image_file, n, options, log);
+                    log.info("Starting " + job.progress());
+                    switch (mode) {
+                        case MODE_SHARD:
+                            job.project_shard(dir, shard, shard_count);
+                            break;
+                        case MODE_MERGE:
+                            job.merge_shards(dir, shard_count, delete_shards);
+                            break;
+                        default:
+                            job.run();
+                    }
+                    log.info("Finished " + job.progress());
+                }
+            } catch (ExecutionException e) {
+                failed++;
+                log.error(String.format("Failed stitching %s:\n%s", f.getPath(), e.getCause()));
+            } catch (InterruptedException e) {
+                log.error("Interrupted\n" + e.getMessage());
+                return;
+            } catch (Exception e) {
+                failed++;
+                log.error(String.format("Failed reading image file %s:\n%s", f.getPath(), e));
+            }
+        }
+        if (failed > 0)
+            log.error(String.format("%d of %d files failed", failed, files.length));
+    }
+}
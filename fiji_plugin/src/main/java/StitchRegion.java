@@ -0,0 +1,112 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+import ij.io.FileInfo;
+import org.scijava.command.Command;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import util.ImageFile;
+import util.RoiSet;
+import util.StitchingJob;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stitches the tiles under the selection on a stitch (usually a preview) at full resolution. The result is saved as
+ * {@code <LIF basename>_<TileScan>_region_stitch.tif} and opened.
+ */
+@Plugin(type = Command.class, menuPath = "Plugins>CryoCLEM>Stitch Region from Preview")
+public class StitchRegion implements Command {
+    private static final Pattern TILE = Pattern.compile("^(.*)_mp_(\\d+)\\.tif$");
+
+    @Parameter
+    private LogService log;
+    @Parameter(label = "ROI file (empty = the one of the stitch)", required = false, persist = false)
+    private File roi_file;
+    @Parameter(label = "Original image file (empty = found from the stitch)", required = false, persist = false)
+    private File original_file;
+    @Parameter(label = "Use cross-correlation")
+    private boolean use_cross_correlation;
+    @Parameter(label = "Write PNG export")
+    private boolean png_export;
+    @Parameter(label = "Invert X coordinate")
+    private boolean invert_x;
+    @Parameter(label = "Invert Y coordinate")
+    private boolean invert_y;
+    @Parameter(label = "Keep projections in memory")
+    private boolean in_memory = true;
+
+    @Override
+    public void run() {
+        log.setLevel(LogLevel.INFO);
+        final ImagePlus stitched = IJ.getImage();
+        final Roi selection = stitched.getRoi();
+        if (selection == null || !selection.isArea()) {
+            log.error("Draw an area selection on the stitch first");
+            return;
+        }
+        final FileInfo info = stitched.getOriginalFileInfo();
+        final File stitched_file = info != null && info.directory != null ? new File(info.directory, info.fileName) : null;
+        if (roi_file == null && stitched_file != null)
+            roi_file = new File(stitched_file.getPath().replace("_stitch.tif", "_ROIset.zip"));
+        if (original_file == null && stitched_file != null)
+            original_file = ImageFile.find_original(stitched_file);
+        if (roi_file == null || !roi_file.isFile() || original_file == null) {
+            log.error("Unable to find the ROI file and the original image file of " + stitched.getTitle());
+            return;
+        }
+
+        // Tiles that overlap the selection, they all belong to the same tile scan
+        final Set<Integer> tiles = new HashSet<>();
+        String series_name = null;
+        try {
+            for (Roi roi : RoiSet.open(roi_file)) {
+                final Matcher matcher = TILE.matcher(roi.getName() != null ? roi.getName() : "");
+                if (!matcher.find() || !roi.getBounds().intersects(selection.getBounds()))
+                    continue;
+                final ShapeRoi overlap = new ShapeRoi(selection).and(new ShapeRoi(roi));
+                if (overlap.getBounds().width == 0 || overlap.getBounds().height == 0)
+                    continue;
+                series_name = matcher.group(1);
+                tiles.add(Integer.parseInt(matcher.group(2)));
+            }
+        } catch (IOException e) {
+            log.error(String.format("Unable to read ROI file %s: %s", roi_file.getPath(), e.getMessage()));
+            return;
+        }
+        if (tiles.isEmpty()) {
+            log.error("No tiles under the selection");
+            return;
+        }
+
+        final StitchingJob.Options options = new StitchingJob.Options();
+        options.use_cross_correlation = use_cross_correlation;
+        options.png_export = png_export;
+        options.invert_x = invert_x;
+        options.invert_y = invert_y;
+        options.in_memory = in_memory;
+        options.tiles = tiles;
+        try (ImageFile image_file = new ImageFile(original_file.getPath(), false)) {
+            final StitchingJob job = new StitchingJob(image_file, series_name, options, log);
+            log.info(String.format("Stitching %d tiles of %s at full resolution", tiles.size(), series_name));
+            job.run();
+            log.info("Finished " + job.progress());
+            IJ.open(job.save_path() + "_stitch.tif");
+        } catch (ExecutionException e) {
+            log.error(String.format("Failed stitching %s:\n%s", original_file.getPath(), e.getCause()));
+        } catch (InterruptedException e) {
+            log.error("Interrupted\n" + e.getMessage());
+        } catch (Exception e) {
+            log.error(String.format("Failed reading image file %s:\n%s", original_file.getPath(), e));
+        }
+    }
+}
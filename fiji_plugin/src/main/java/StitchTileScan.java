@@ -1,19 +1,8 @@
 import ij.IJ;
-import ij.ImagePlus;
 import ij.gui.GenericDialog;
-import ij.io.FileSaver;
-import ij.plugin.ZProjector;
-import ij.plugin.frame.RoiManager;
-import ij.process.ImageConverter;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
-import loci.common.services.ServiceFactory;
-import loci.formats.ChannelSeparator;
 import loci.formats.FormatException;
-import loci.formats.IFormatReader;
-import loci.formats.meta.IMetadata;
-import loci.formats.meta.MetadataRetrieve;
-import loci.formats.services.OMEXMLService;
 import org.scijava.command.Command;
 import org.scijava.log.LogLevel;
 import org.scijava.log.LogService;
@@ -22,14 +11,16 @@ import org.scijava.plugin.Plugin;
 import org.scijava.thread.ThreadService;
 import util.*;
 
+import java.awt.*;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.io.*;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.*;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
 
 @Plugin(type = Command.class, menuPath = "Plugins>CryoCLEM>Stitch TileScan")
 public class StitchTileScan implements Command {
@@ -42,6 +33,16 @@ public class StitchTileScan implements Command {
     private File[] files;
     @Parameter(label = "Create subfolder(s)")
     private boolean subfolder;
+    @Parameter(label = "Maximum projection")
+    private boolean project_max = true;
+    @Parameter(label = "Extended depth of field projection")
+    private boolean project_edf;
+    @Parameter(label = "Mean projection")
+    private boolean project_mean;
+    @Parameter(label = "Standard deviation projection")
+    private boolean project_std;
+    @Parameter(label = "Best focus index projection")
+    private boolean project_focus;
     @Parameter(label = "Use cross-correlation")
     private boolean use_cross_correlation;
     @Parameter(label = "Write PNG export(s)")
@@ -50,182 +51,227 @@ public class StitchTileScan implements Command {
     private boolean invert_x;
     @Parameter(label = "Invert Y coordinate")
     private boolean invert_y;
+    @Parameter(label = "Write multi-resolution pyramid (.zarr)")
+    private boolean write_pyramid;
+    @Parameter(label = "Preview binning (1 = full resolution)", min = "1", max = "64")
+    private int preview_bin = 1;
+    @Parameter(label = "Advanced settings...")
+    private boolean advanced;
+
+    // Tuning of the preview, the pipeline, the memory budgets and the cache, set with -Dcryoclem.<name>=<value> or in
+    // the advanced dialog
+    private int preview_z_step = Integer.getInteger("cryoclem.preview_z_step", 1);
+    private boolean preview_subsample = Boolean.getBoolean("cryoclem.preview_subsample");
+    private long cache_gb = Long.getLong("cryoclem.cache_gb", 0);
+    private boolean in_memory = Boolean.getBoolean("cryoclem.in_memory");
+    private long memory_budget_mb = Long.getLong("cryoclem.memory_budget_mb", 0);
+    private int reader_threads = Integer.getInteger("cryoclem.reader_threads", 2);
+    private int projection_threads = Integer.getInteger("cryoclem.projection_threads", Runtime.getRuntime().availableProcessors());
+    private int writer_threads = Integer.getInteger("cryoclem.writer_threads", 2);
+    private int plane_queue_depth = Integer.getInteger("cryoclem.plane_queue_depth", 16);
+    private int concurrent_jobs = Integer.getInteger("cryoclem.concurrent_jobs", 2);
+    private long global_budget_mb = Long.getLong("cryoclem.global_budget_mb", 0);
 
     @Override
     public void run() {
         log.setLevel(LogLevel.INFO);
-        // Prepare all image files, filter out unwanted file extensions
-        final ArrayList<ImageFile> image_files = new ArrayList<>();
+        if (!project_max && !project_edf && !project_mean && !project_std && !project_focus) {
+            log.error("Select at least one projection");
+            return;
+        }
+        if (advanced && !advanced_dialog())
+            return;
+        // Prepare all image files in parallel, filter out unwanted file extensions
+        final List<Future<ImageFile>> parsed = new ArrayList<>(files.length);
         for (File f : files) {
-            try {
+            parsed.add(threadService.run(() -> {
                 log.debug("Starting read of image file:\n" + f.getPath());
-                image_files.add(new ImageFile(f.getPath(), subfolder));
-            } catch (DependencyException | ServiceException | IOException | FormatException e) {
-                log.debug("Failed reading image file:\n" + f.getPath());
-                log.error(e.getMessage());
+                return new ImageFile(f.getPath(), subfolder);
+            }));
+        }
+        final ArrayList<ImageFile> image_files = new ArrayList<>();
+        for (int i = 0; i < files.length; i++) {
+            try {
+                image_files.add(parsed.get(i).get());
+            } catch (ExecutionException e) {
+                log.debug("Failed reading image file:\n" + files[i].getPath());
+                log.error(e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                log.error("Interrupted\n" + e.getMessage());
+                return;
             }
-
         }
 
+        final StitchingJob.Options options = new StitchingJob.Options();
+        options.projections = EnumSet.noneOf(Projection.class);
+        if (project_max) options.projections.add(Projection.MAX);
+        if (project_edf) options.projections.add(Projection.EDF);
+        if (project_mean) options.projections.add(Projection.MEAN);
+        if (project_std) options.projections.add(Projection.STD);
+        if (project_focus) options.projections.add(Projection.FOCUS);
+        options.use_cross_correlation = use_cross_correlation;
+        options.png_export = png_export;
+        options.invert_x = invert_x;
+        options.invert_y = invert_y;
+        options.in_memory = in_memory;
+        options.pyramid = write_pyramid;
+        options.preview_bin = preview_bin;
+        options.preview_z_step = preview_z_step;
+        options.preview_subsample = preview_subsample;
+        options.cache_limit_bytes = cache_gb * 1024 * 1024 * 1024;
+        if (memory_budget_mb > 0)
+            options.memory_budget_bytes = memory_budget_mb * 1024 * 1024;
+        options.pipeline.readers = reader_threads;
+        options.pipeline.projectors = projection_threads;
+        options.pipeline.writers = writer_threads;
+        options.pipeline.plane_queue = plane_queue_depth;
+
         // Ask the user which series she/he would like to import
         ArrayList<StitchingJob> stitches = new ArrayList<>();
         GenericDialog gd = new GenericDialog("Tile Scans to import");
         for (ImageFile image_file : image_files) {
             gd.addMessage(String.format("[%s]", image_file.getName()));
             for (String n : image_file.unique_series()) {
-                stitches.add(new StitchingJob(image_file, n));
+                stitches.add(new StitchingJob(image_file, n, options, log));
                 gd.addCheckbox(n, false);
             }
         }
         gd.showDialog();
-        if (gd.wasCanceled())
-            return;
+        try {
+            if (gd.wasCanceled())
+                return;
 
-        // Read the user input
-        for (StitchingJob stitch : stitches)
-            if (gd.getNextBoolean()) {
-                try {
-                    stitch.run();
-                } catch (ExecutionException e) {
-                    log.error(String.format("One job has failed!\nFile = [%s]\nutil.Series = [%s]\n", stitch.image_file.base_name, stitch.series_name));
-                    for (StackTraceElement el : e.getStackTrace()) {
-                        log.error(String.format("%s:%s:%d", el.getClassName(), el.getMethodName(), el.getLineNumber()));
-                    }
-                } catch (InterruptedException e) {
-                    log.error("Interrupted\n" + e.getMessage());
-                    return;
-                } catch (FileNotFoundException e) {
-                    log.error("Didn't find/unable to create tile config file\n" + e.getMessage());
-                    continue;
-                } catch (UnsupportedEncodingException e) {
-                    log.error("Unsupported encoding for tileconfig file\n" + e.getMessage());
-                    continue;
-                }
-            }
-    }
-
-    private class StitchingJob {
-        final ImageFile image_file;
-        final String series_name;
-        final File max_projection_dir, tileconfig;
-        final Channel[] channels;
+            // Read the user input
+            final long budget = global_budget_mb > 0 ? global_budget_mb * 1024 * 1024 : Runtime.getRuntime().maxMemory() / 10 * 8;
+            final JobScheduler scheduler = new JobScheduler(concurrent_jobs, budget, log);
+            for (StitchingJob stitch : stitches)
+                if (gd.getNextBoolean())
+                    scheduler.submit(stitch);
+            if (scheduler.jobs().isEmpty())
+                return;
 
-        private StitchingJob(ImageFile image_file, String series_name) {
-            this.image_file = image_file;
-            this.series_name = series_name;
-            this.max_projection_dir = new File(this.image_file.getParent() + File.separator + ".max_projections");
-            this.tileconfig = new File(this.max_projection_dir.getAbsolutePath() + File.separator + "tileconfig_" + this.series_name + ".txt");
-            this.channels = image_file.channels(series_name);
+            final JobMonitor monitor = new JobMonitor(scheduler);
+            try {
+                scheduler.await();
+            } catch (InterruptedException e) {
+                log.error("Interrupted\n" + e.getMessage());
+                scheduler.cancel_all();
+            } finally {
+                monitor.close();
+            }
+        } finally {
+            // Release the pooled readers of all files
+            for (ImageFile image_file : image_files)
+                image_file.close();
         }
+    }
 
-        private void run() throws ExecutionException, InterruptedException, FileNotFoundException, UnsupportedEncodingException {
-            log.debug(String.format("Launching new stitching job.\nImage file: %s\nutil.Series name:%s\nMax Projections dir: %s\nTileconfig: %s",
-                    this.image_file,
-                    this.series_name,
-                    this.max_projection_dir,
-                    this.tileconfig));
-
-            if (!this.max_projection_dir.exists())
-                this.max_projection_dir.mkdirs();
-
-            log.debug("Creating job list");
-            final List<Callable<MaxProjection>> jobs = image_file.series.stream()
-                    .filter(s -> s.name.equals(series_name))
-                    .map(s -> new Callable<MaxProjection>() {
-                        @Override
-                        public MaxProjection call() throws Exception {
-                            log.debug("Called max projection: " + s.mp_title);
-                            final MaxProjection mp = new MaxProjection(new ZStack(s, true));
-                            new FileSaver(mp.imp).saveAsTiff(max_projection_dir + File.separator + mp.mp_title);
-                            return mp;
-                        }
-                    }).collect(Collectors.toList());
-
-            log.debug("Writing tileconfig file to " + this.tileconfig);
-            final PrintWriter writer = new PrintWriter(this.tileconfig, "UTF-8");
-            writer.println("dim = 2");
-            for (Future<MaxProjection> _mp : threadService.getExecutorService().invokeAll(jobs)) {
-                final MaxProjection mp = _mp.get();
-                log.debug("Done with max. projection: " + mp.mp_title);
-                writer.println(String.format("%s;;(%.6f, %.6f)", mp.mp_title, mp.pos_x, mp.pos_y));
-            }
-            writer.close();
-            String invert_xy = "";
-            if (invert_x) {
-                invert_xy = "invert_x ";
-            }
-            if (invert_y) {
-                invert_xy += "invert_y ";
-            }
-            IJ.run("Grid/Collection stitching",
-                    String.format("type=[Positions from file] " + "order=[Defined by TileConfiguration] " + "directory=[%s] "
-                            + "layout_file=[%s] " + "fusion_method=[Linear Blending] "
-                            + "regression_threshold=0.30 " + "max/avg_displacement_threshold=2.50 "
-                            + "absolute_displacement_threshold=3.50 " + "add_tiles_as_rois " + (use_cross_correlation ? "compute_overlap " : "ignore_z_stage ")
-                            + invert_xy
-                            + "subpixel_accuracy " + "computation_parameters=[Save computation time (but use more RAM)] "
-                            + "image_output=[Fuse and display]", this.max_projection_dir, tileconfig.getName()));
+    /**
+     * Let the user change the tuning, false if cancelled.
+     */
+    private boolean advanced_dialog() {
+        final GenericDialog gd = new GenericDialog("Advanced stitching settings");
+        gd.addNumericField("Preview: read every n-th Z plane", preview_z_step, 0);
+        gd.addCheckbox("Preview: subsample instead of averaging", preview_subsample);
+        gd.addNumericField("Projection cache size (GB, 0 = off)", cache_gb, 0);
+        gd.addCheckbox("Keep projections in memory", in_memory);
+        gd.addNumericField("Projection memory budget (MB, 0 = half of the heap)", memory_budget_mb, 0);
+        gd.addNumericField("Reader threads", reader_threads, 0);
+        gd.addNumericField("Projection threads", projection_threads, 0);
+        gd.addNumericField("Writer threads", writer_threads, 0);
+        gd.addNumericField("Plane queue depth", plane_queue_depth, 0);
+        gd.addNumericField("Concurrent stitching jobs", concurrent_jobs, 0);
+        gd.addNumericField("Global memory budget (MB, 0 = 80% of the heap)", global_budget_mb, 0);
+        gd.showDialog();
+        if (gd.wasCanceled())
+            return false;
+        preview_z_step = Math.max(1, (int) gd.getNextNumber());
+        preview_subsample = gd.getNextBoolean();
+        cache_gb = Math.max(0, (long) gd.getNextNumber());
+        in_memory = gd.getNextBoolean();
+        memory_budget_mb = Math.max(0, (long) gd.getNextNumber());
+        reader_threads = Math.max(1, (int) gd.getNextNumber());
+        projection_threads = Math.max(1, (int) gd.getNextNumber());
+        writer_threads = Math.max(1, (int) gd.getNextNumber());
+        plane_queue_depth = Math.max(1, (int) gd.getNextNumber());
+        concurrent_jobs = Math.max(1, (int) gd.getNextNumber());
+        global_budget_mb = Math.max(0, (long) gd.getNextNumber());
+        return true;
+    }
 
-            final ImagePlus imp = IJ.getImage();
-            final RoiManager rm = RoiManager.getRoiManager();
+    /**
+     * Small window that shows the progress of every job with a button to cancel it, and the overall progress in the
+     * status bar. The window is only touched on the event dispatch thread, closing it asks whether to cancel all jobs.
+     */
+    private static class JobMonitor {
+        private final JobScheduler scheduler;
+        private final Timer timer = new Timer("Stitching job monitor", true);
+        private final List<Label> labels = new ArrayList<>();
+        private Frame frame;
 
-            log.debug("Setting channel colors and saturation");
-            imp.setDisplayMode(IJ.COLOR);
-            for (int c = 0; c < channels.length; c++) {
-                if (channels[c] != null) {
-                    imp.setC(c + 1); // Channels in ImagePlus are one-indexed
-                    IJ.run(imp, channels[c].name, "");
-                    IJ.run(imp, "Enhance Contrast", "saturated=0.35");
+        private JobMonitor(final JobScheduler scheduler) {
+            this.scheduler = scheduler;
+            EventQueue.invokeLater(this::show);
+            timer.scheduleAtFixedRate(new TimerTask() {
+                @Override
+                public void run() {
+                    EventQueue.invokeLater(JobMonitor.this::update);
                 }
-            }
-            imp.setDisplayMode(IJ.COMPOSITE);
-
-            log.debug("Removing ROIs not associated to a file");
-            Pattern unknown = Pattern.compile(".*file=unknown file \\d+$");
-            final int[] rois_to_remove = Arrays.stream(rm.getRoisAsArray())
-                    .filter(roi -> unknown.matcher(roi.getName()).matches())
-                    .mapToInt(roi -> rm.getRoiIndex(roi)).toArray();
-            if (rois_to_remove.length > 0) {
-                rm.setSelectedIndexes(rois_to_remove);
-                rm.runCommand("Delete");
-                rm.runCommand("Select All");
-            }
-
-            log.debug("Saving ROIset");
-            final String _save_path = image_file.getParent() + File.separator + image_file.base_name + "_" + series_name;
-            rm.runCommand("Save", _save_path + "_ROIset.zip");
-            log.debug("Saving stitched tif");
-            new FileSaver(imp).saveAsTiff(_save_path + "_stitch.tif");
+            }, 1000, 1000);
+        }
 
-            // Export PNG
-            if (png_export) {
-                log.debug("Creating and saving PNG export");
-                new ImageConverter(imp).convertToRGB();
-                imp.updateAndDraw();
-                new FileSaver(imp).saveAsPng(_save_path + "_stitched.png");
+        private void show() {
+            final List<StitchingJob> jobs = scheduler.jobs();
+            frame = new Frame("Stitching jobs");
+            frame.setLayout(new GridLayout(jobs.size(), 2, 5, 5));
+            for (StitchingJob job : jobs) {
+                final Label label = new Label(job.progress());
+                final Button cancel = new Button("Cancel");
+                cancel.addActionListener(e -> {
+                    cancel.setEnabled(false);
+                    scheduler.cancel(job);
+                });
+                labels.add(label);
+                frame.add(label);
+                frame.add(cancel);
             }
+            frame.addWindowListener(new WindowAdapter() {
+                @Override
+                public void windowClosing(final WindowEvent e) {
+                    if (IJ.showMessageWithCancel("Stitching jobs", "Cancel all stitching jobs?"))
+                        scheduler.cancel_all();
+                }
+            });
+            frame.pack();
+            frame.setVisible(true);
+        }
 
-            // Cleanup
-            log.debug("Deleting max. projection dir at " + max_projection_dir.getPath());
-            File[] contents = max_projection_dir.listFiles();
-            if (contents != null) {
-                for (File f : contents) {
-                    if (f.delete())
-                        log.debug("Deleted " + f.getPath());
-                    else
-                        log.error("Unable to delete file " + f.getPath());
+        private void update() {
+            final List<StitchingJob> jobs = scheduler.jobs();
+            int done = 0;
+            double planes_per_second = 0, mb_per_second = 0;
+            for (int i = 0; i < jobs.size(); i++) {
+                labels.get(i).setText(jobs.get(i).progress());
+                final RunReport report = jobs.get(i).report();
+                if (scheduler.done(jobs.get(i))) {
+                    done++;
+                } else if (report != null) {
+                    planes_per_second += report.planes_read() / Math.max(report.seconds(), 1e-3);
+                    mb_per_second += report.bytes_read() / 1e6 / Math.max(report.seconds(), 1e-3);
                 }
             }
-            if (max_projection_dir.delete())
-                log.debug("Deleted max. projection dir");
-            else
-                log.error("Error deleting max. projection dir");
-            log.debug("Closing windows and images");
-            imp.changes = false;
-            imp.close();
-            IJ.selectWindow("Log");
-            IJ.run("Close");
-            rm.close();
+            IJ.showStatus(String.format("Stitching: %d of %d jobs done, %.0f planes/s, %.1f MB/s", done, jobs.size(),
+                    planes_per_second, mb_per_second));
+            IJ.showProgress(done, jobs.size());
+        }
+
+        private void close() {
+            timer.cancel();
+            // Runs after show(), both are queued on the event dispatch thread
+            EventQueue.invokeLater(() -> {
+                update();
+                frame.dispose();
+            });
         }
     }
 }
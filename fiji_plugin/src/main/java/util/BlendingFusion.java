@@ -0,0 +1,216 @@
+package util;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Fuses projected tiles at fixed positions with linear blending, the same weighting the Grid/Collection stitching
+ * uses for "Linear Blending". The canvas is split into blocks which are fused in parallel on a fork-join pool. Blocks
+ * are processed one band (row of blocks) at a time, so spilled tiles are only read while a band needs them. Only the
+ * current band is held in memory, every finished band is handed to the {@link BandSink sinks}.
+ */
+public class BlendingFusion {
+    public static final int BLOCK_SIZE = 256;
+    // Blending parameters of the Grid/Collection stitching
+    private static final double FUSION_FRACTION = 0.2, ALPHA = 1.5;
+
+    public final int width, height, channels, bytes_per_pixel;
+    public final double[] origin_x, origin_y;
+    public final Roi[] rois;
+    private final List<TileStore.Tile> tiles;
+    private final short[][] band;
+
+    /**
+     * Receives the fused image band by band, top to bottom.
+     */
+    public interface BandSink {
+        /**
+         * @param band rows [band_y, band_end) of every channel, starting at index 0 and only valid during the call
+         */
+        void add_band(short[][] band, int band_y, int band_end, ForkJoinPool pool) throws IOException;
+    }
+
+    /**
+     * @param tiles      the tiles to fuse, all with the same number of channels and bit depth
+     * @param position_x tile positions in pixels, as in {@link Series#pos_x} (after inversion)
+     * @param position_y tile positions in pixels, as in {@link Series#pos_y} (after inversion)
+     */
+    public BlendingFusion(final List<TileStore.Tile> tiles, final double[] position_x, final double[] position_y) throws IOException {
+        if (tiles.isEmpty())
+            throw new IOException("No tiles to fuse");
+        this.tiles = tiles;
+        this.channels = tiles.get(0).size_c;
+        this.bytes_per_pixel = tiles.get(0).bytes_per_pixel();
+        double min_x = Double.MAX_VALUE, min_y = Double.MAX_VALUE, max_x = -Double.MAX_VALUE, max_y = -Double.MAX_VALUE;
+        for (int i = 0; i < tiles.size(); i++) {
+            min_x = Math.min(min_x, position_x[i]);
+            min_y = Math.min(min_y, position_y[i]);
+            max_x = Math.max(max_x, position_x[i] + tiles.get(i).size_x);
+            max_y = Math.max(max_y, position_y[i] + tiles.get(i).size_y);
+        }
+        // Only a band of the canvas is held in one array, the whole canvas may exceed 2^31 pixels
+        if (Math.ceil(max_x - min_x) > Integer.MAX_VALUE / BLOCK_SIZE || Math.ceil(max_y - min_y) > Integer.MAX_VALUE)
+            throw new IOException(String.format("Stitched image of %.0f x %.0f pixels is too large",
+                    Math.ceil(max_x - min_x), Math.ceil(max_y - min_y)));
+        this.width = (int) Math.ceil(max_x - min_x);
+        this.height = (int) Math.ceil(max_y - min_y);
+
+        this.origin_x = new double[tiles.size()];
+        this.origin_y = new double[tiles.size()];
+        this.rois = new Roi[tiles.size()];
+        for (int i = 0; i < tiles.size(); i++) {
+            origin_x[i] = position_x[i] - min_x;
+            origin_y[i] = position_y[i] - min_y;
+            rois[i] = new Roi(origin_x[i], origin_y[i], tiles.get(i).size_x, tiles.get(i).size_y);
+            rois[i].setName(tiles.get(i).mp_title);
+        }
+        this.band = new short[channels][width * Math.min(BLOCK_SIZE, height)];
+    }
+
+    /**
+     * Tile positions as stored in the metadata, with the optional inversion of the axes.
+     */
+    public static double[][] stage_positions(final List<? extends Series> tiles, final boolean invert_x, final boolean invert_y) {
+        final double[][] positions = new double[2][tiles.size()];
+        for (int i = 0; i < tiles.size(); i++) {
+            positions[0][i] = invert_x ? -tiles.get(i).pos_x : tiles.get(i).pos_x;
+            positions[1][i] = invert_y ? -tiles.get(i).pos_y : tiles.get(i).pos_y;
+        }
+        return positions;
+    }
+
+    /**
+     * Fuse the canvas and hand every finished band to the sinks.
+     */
+    public void fuse(final int threads, final BandSink... sinks) throws IOException {
+        final ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            final short[][][] loaded = new short[tiles.size()][][];
+            final int blocks_x = (width + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            for (int band_y = 0; band_y < height; band_y += BLOCK_SIZE) {
+                final int band_end = Math.min(band_y + BLOCK_SIZE, height);
+                // Open the tiles this band needs, drop those that lie above it
+                for (int i = 0; i < tiles.size(); i++) {
+                    final boolean needed = origin_y[i] < band_end && origin_y[i] + tiles.get(i).size_y > band_y;
+                    if (needed && loaded[i] == null)
+                        loaded[i] = pixels(tiles.get(i));
+                    else if (!needed && loaded[i] != null && origin_y[i] + tiles.get(i).size_y <= band_y)
+                        loaded[i] = null;
+                }
+                for (short[] b : band)
+                    Arrays.fill(b, (short) 0);
+                pool.invoke(new Blocks(loaded, band_y, band_end, 0, blocks_x));
+                for (BandSink sink : sinks)
+                    if (sink != null)
+                        sink.add_band(band, band_y, band_end, pool);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static short[][] pixels(final TileStore.Tile tile) throws IOException {
+        final ImagePlus imp = tile.open();
+        final short[][] pixels = new short[tile.size_c][];
+        for (int c = 0; c < tile.size_c; c++)
+            pixels[c] = Pixels.to_unsigned_short(imp.getStack().getProcessor(c + 1).getPixels());
+        return pixels;
+    }
+
+    /**
+     * Blending weight along one axis, before the non-linear mapping.
+     */
+    static double axis_weight(final double position, final int size) {
+        double value = Math.max(1, Math.min(position, size - 1 - position) + 1);
+        final double blend_area = Math.round(FUSION_FRACTION * 0.5 * (size - 1));
+        return value < blend_area ? value / blend_area : 1;
+    }
+
+    static double weight(final double axis_weight_x, final double axis_weight_y) {
+        final double min_distance = axis_weight_x * axis_weight_y;
+        if (min_distance >= 1)
+            return 1;
+        if (min_distance <= 0)
+            return 0.0000001;
+        return 1 - Math.pow(1 - min_distance, ALPHA);
+    }
+
+    private void fuse_block(final short[][][] loaded, final int x_start, final int x_end, final int y_start, final int y_end) {
+        final int bw = x_end - x_start, bh = y_end - y_start, n = bw * bh;
+        final double[] sum = new double[channels * n];
+        final double[] weights = new double[n], row_weights = new double[bw];
+        final Kernels kernels = Kernels.get();
+        for (int i = 0; i < tiles.size(); i++) {
+            final short[][] pixels = loaded[i];
+            if (pixels == null)
+                continue;
+            final int w = tiles.get(i).size_x, h = tiles.get(i).size_y;
+            final double ox = origin_x[i], oy = origin_y[i];
+            // Canvas pixels covered by this tile within the block
+            final int x0 = Math.max(x_start, (int) Math.ceil(ox)), x1 = Math.min(x_end - 1, (int) Math.floor(ox + w - 1));
+            final int y0 = Math.max(y_start, (int) Math.ceil(oy)), y1 = Math.min(y_end - 1, (int) Math.floor(oy + h - 1));
+            if (x0 > x1 || y0 > y1)
+                continue;
+            final double fx = Math.ceil(ox) - ox, fy = Math.ceil(oy) - oy;
+            // Bilinear interpolation with the same fractional offsets for the whole tile. The last covered pixel has
+            // no offset on that axis, the limits only guard against rounding, so no pixel beyond the tile is read.
+            final int tx = (int) Math.floor(x0 - ox), count = Math.min(x1 - x0 + 1, w - tx - (fx == 0 ? 0 : 1));
+            for (int y = y0; y <= y1; y++) {
+                final double ly = y - oy;
+                final int ty = (int) Math.floor(ly);
+                if (fy != 0 && ty + 1 >= h)
+                    break;
+                final double wy = axis_weight(ly, h);
+                final int row = (y - y_start) * bw + (x0 - x_start);
+                for (int k = 0; k < count; k++) {
+                    row_weights[k] = weight(axis_weight(x0 + k - ox, w), wy);
+                    weights[row + k] += row_weights[k];
+                }
+                for (int c = 0; c < channels; c++)
+                    kernels.blend(sum, c * n + row, pixels[c], ty * w + tx, (ty + 1) * w + tx, fx, fy, row_weights, 0, count);
+            }
+        }
+        for (int y = y_start; y < y_end; y++) {
+            for (int x = x_start; x < x_end; x++) {
+                final int j = (y - y_start) * bw + (x - x_start);
+                if (weights[j] == 0)
+                    continue;
+                for (int c = 0; c < channels; c++)
+                    band[c][(y - y_start) * width + x] = (short) Math.min(65535, Math.round(sum[c * n + j] / weights[j]));
+            }
+        }
+    }
+
+    /**
+     * Fuses the blocks [from, to) of one band, splitting the range until single blocks are left.
+     */
+    private class Blocks extends RecursiveAction {
+        private final short[][][] loaded;
+        private final int band_y, band_end, from, to;
+
+        private Blocks(final short[][][] loaded, final int band_y, final int band_end, final int from, final int to) {
+            this.loaded = loaded;
+            this.band_y = band_y;
+            this.band_end = band_end;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                final int middle = (from + to) / 2;
+                invokeAll(new Blocks(loaded, band_y, band_end, from, middle), new Blocks(loaded, band_y, band_end, middle, to));
+            } else if (to > from) {
+                final int x_start = from * BLOCK_SIZE;
+                fuse_block(loaded, x_start, Math.min(x_start + BLOCK_SIZE, width), band_y, band_end);
+            }
+        }
+    }
+}
@@ -17,6 +17,13 @@ public class Channel {
         this.B = B;
     }
 
+    /**
+     * Packed RGB of an 8-bit display value, as in the LUT of LUT.createLutFromColor.
+     */
+    public int rgb(int value) {
+        return value * R / 255 << 16 | value * G / 255 << 8 | value * B / 255;
+    }
+
     public static Channel get_channel(Color color) {
         for (Channel c : channels) {
             if (c.R == color.getRed() && c.G == color.getGreen() && c.B == color.getBlue())
@@ -24,4 +31,12 @@ public class Channel {
         }
         return null;
     }
+
+    public static Channel get_channel(String name) {
+        for (Channel c : channels) {
+            if (c.name.equals(name))
+                return c;
+        }
+        return null;
+    }
 }
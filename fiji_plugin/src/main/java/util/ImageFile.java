@@ -3,25 +3,30 @@ package util;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
 import loci.common.services.ServiceFactory;
-import loci.formats.ChannelSeparator;
 import loci.formats.FormatException;
 import loci.formats.IFormatReader;
-import loci.formats.meta.IMetadata;
 import loci.formats.meta.MetadataRetrieve;
 import loci.formats.services.OMEXMLService;
 import org.scijava.log.LogLevel;
 import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.stream.Collectors;
 
-public class ImageFile extends File {
+public class ImageFile extends File implements Closeable {
     public final ArrayList<Series> series;
     public final String base_name;
+    public final ReaderPool readers;
+    // Zero-copy access to the planes of series whose layout allows it
+    public final MappedPlanes mapped = new MappedPlanes(this);
+    // Time spent reading the metadata, and whether it came from the metadata index
+    public final long metadata_nanos;
+    public final boolean metadata_indexed;
 
     public ImageFile(String path, boolean move_to_subfolder) throws DependencyException, ServiceException, IOException, FormatException {
         // Move file to subfolder (if required)
@@ -44,19 +49,40 @@ public class ImageFile extends File {
         }
         //log.debug(String.format("Setup working area:\nworking_dir=%s\nimage path=%s", working_dir.getPath(), this.getPath()));
 
-        final IFormatReader reader = new ChannelSeparator();
-        final ServiceFactory factory = new ServiceFactory(); // DependencyException
-        final OMEXMLService service = factory.getInstance(OMEXMLService.class); // DependencyException
-        final IMetadata meta = service.createOMEXMLMetadata(); // ServiceException
-        reader.setMetadataStore(meta);
-        reader.setId(this.getPath()); // FormatException
-        final MetadataRetrieve retrieve = service.asRetrieve(reader.getMetadataStore());
-        this.series = new ArrayList<>(reader.getSeriesCount());
+        // Readers are only created once pixels (or metadata missing from the index) are needed
+        this.readers = new ReaderPool(this.getPath(), ReaderPool.DEFAULT_SIZE);
+        final long start = System.nanoTime();
+        final ArrayList<Series> indexed = MetadataIndex.load(this);
+        this.metadata_indexed = indexed != null;
+        if (indexed != null) {
+            this.series = indexed;
+            this.metadata_nanos = System.nanoTime() - start;
+            return;
+        }
+        final IFormatReader reader = readers.borrow(0);
+        try {
+            final ServiceFactory factory = new ServiceFactory(); // DependencyException
+            final OMEXMLService service = factory.getInstance(OMEXMLService.class); // DependencyException
+            final MetadataRetrieve retrieve = service.asRetrieve(reader.getMetadataStore());
+            this.series = new ArrayList<>(reader.getSeriesCount());
 
-        for (int i = 0; i < reader.getSeriesCount(); i++) {
-            this.series.add(new Series(this, i, reader, retrieve));
+            for (int i = 0; i < reader.getSeriesCount(); i++) {
+                this.series.add(new Series(this, i, reader, retrieve));
+            }
+        } finally {
+            readers.give_back(reader);
         }
-        reader.close();
+        MetadataIndex.save(this, this.series);
+        this.metadata_nanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Close all pooled readers. Pixel data can no longer be read afterwards.
+     */
+    @Override
+    public void close() {
+        readers.close();
+        mapped.close();
     }
 
     public Collection<String> unique_series() {
@@ -71,6 +97,22 @@ public class ImageFile extends File {
         return null;
     }
 
+    /**
+     * Find the LIF file a stitch or ROI set was made from. Their names have the format
+     * {@code <LIF basename>_<TileScan>_<suffix>}, so the LIF name is a prefix up to one of the underscores.
+     *
+     * @return the LIF file, or null if there is none
+     */
+    public static File find_original(final File derived) {
+        final String path = derived.getPath();
+        for (int i = path.indexOf('_'); i > 0 && i < path.length(); i = path.indexOf('_', i + 1)) {
+            final File f = new File(path.substring(0, i) + ".lif");
+            if (f.isFile())
+                return f;
+        }
+        return null;
+    }
+
     public static String remove_extension(final String path) {
         final int last = path.lastIndexOf(".");
         return last >= 1 ? path.substring(0, last) : path;
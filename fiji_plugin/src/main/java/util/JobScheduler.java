@@ -0,0 +1,121 @@
+package util;
+
+import org.scijava.log.LogService;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs several stitching jobs at the same time. A job only starts once its estimated memory fits into the global
+ * budget next to the jobs already running; a job that is larger than the whole budget runs alone. Single jobs can be
+ * cancelled without affecting the others.
+ */
+public class JobScheduler {
+    private final long budget;
+    private final LogService log;
+    private final ExecutorService pool;
+    private final Map<StitchingJob, Future<?>> futures = new LinkedHashMap<>();
+    private long in_use = 0;
+    private int running = 0;
+
+    public JobScheduler(final int concurrent_jobs, final long budget_bytes, final LogService log) {
+        this.budget = budget_bytes;
+        this.log = log;
+        this.pool = Executors.newFixedThreadPool(Math.max(1, concurrent_jobs));
+    }
+
+    public synchronized void submit(final StitchingJob job) {
+        futures.put(job, pool.submit(() -> run(job)));
+    }
+
+    public synchronized List<StitchingJob> jobs() {
+        return new ArrayList<>(futures.keySet());
+    }
+
+    public synchronized boolean done(final StitchingJob job) {
+        final Future<?> future = futures.get(job);
+        return future == null || future.isDone();
+    }
+
+    public void cancel(final StitchingJob job) {
+        final Future<?> future;
+        synchronized (this) {
+            future = futures.get(job);
+        }
+        job.cancel();
+        if (future != null)
+            future.cancel(true);
+        log.info("Cancelled " + job.progress());
+    }
+
+    public void cancel_all() {
+        for (StitchingJob job : jobs())
+            if (!done(job))
+                cancel(job);
+    }
+
+    /**
+     * Wait for all submitted jobs to finish or to be cancelled.
+     */
+    public void await() throws InterruptedException {
+        for (StitchingJob job : jobs()) {
+            final Future<?> future;
+            synchronized (this) {
+                future = futures.get(job);
+            }
+            try {
+                future.get();
+            } catch (CancellationException | ExecutionException e) {
+                // Failures are logged by the job thread itself
+            }
+        }
+        pool.shutdown();
+    }
+
+    private void run(final StitchingJob job) {
+        final long estimate = job.estimated_bytes();
+        try {
+            admit(estimate);
+        } catch (InterruptedException e) {
+            return;
+        }
+        try {
+            log.info(String.format("Starting %s, estimated memory %d MB", job.progress(), estimate / 1024 / 1024));
+            job.run();
+            log.info("Finished " + job.progress());
+        } catch (ExecutionException e) {
+            log.error(String.format("One job has failed!\nFile = [%s]\nutil.Series = [%s]\n%s", job.image_file.base_name,
+                    job.series_name, e.getCause()));
+            for (StackTraceElement el : e.getCause().getStackTrace()) {
+                log.error(String.format("%s:%s:%d", el.getClassName(), el.getMethodName(), el.getLineNumber()));
+            }
+        } catch (InterruptedException e) {
+            log.info("Stopped " + job.progress());
+        } catch (RuntimeException e) {
+            log.error(String.format("One job has failed!\nFile = [%s]\nutil.Series = [%s]\n%s", job.image_file.base_name,
+                    job.series_name, e));
+        } finally {
+            release(estimate);
+        }
+    }
+
+    private synchronized void admit(final long estimate) throws InterruptedException {
+        while (running > 0 && in_use + estimate > budget)
+            wait();
+        in_use += estimate;
+        running++;
+    }
+
+    private synchronized void release(final long estimate) {
+        in_use -= estimate;
+        running--;
+        notifyAll();
+    }
+}
@@ -0,0 +1,185 @@
+package util;
+
+import java.nio.ShortBuffer;
+
+/**
+ * The per-pixel loops of the projection, the fusion and the export on unsigned 16-bit data, with a plain and a SIMD
+ * implementation. The SIMD one uses the Vector API; it is compiled from src/main/java16 when building with JDK 16 or
+ * newer and only used if Fiji runs with {@code --add-modules jdk.incubator.vector}. Otherwise, or with
+ * {@code -Dcryoclem.kernels=scalar}, the plain loops are used. None of the kernels allocate.
+ */
+public abstract class Kernels {
+    private static final Kernels SCALAR = new Scalar();
+    private static final Kernels VECTOR = load_vector();
+    private static final Kernels DEFAULT = VECTOR != null && !"scalar".equals(System.getProperty("cryoclem.kernels")) ? VECTOR : SCALAR;
+
+    /**
+     * The fastest kernels available.
+     */
+    public static Kernels get() {
+        return DEFAULT;
+    }
+
+    public static Kernels scalar() {
+        return SCALAR;
+    }
+
+    /**
+     * The SIMD kernels, or null if the Vector API is not available.
+     */
+    public static Kernels vector() {
+        return VECTOR;
+    }
+
+    public abstract String name();
+
+    /**
+     * Running maximum: {@code acc[i] = max(acc[i], values[i])} for the first n values, unsigned.
+     */
+    public abstract void max(short[] acc, short[] values, int n);
+
+    /**
+     * Running maximum over the first n values of a buffer from its position, e.g. a mapped plane, read in place. There
+     * is no SIMD version: the Vector API loads from buffers differently in every JDK release, and the loop is bound by
+     * the reads from the mapping anyway.
+     */
+    public void max(final short[] acc, final ShortBuffer values, final int n) {
+        final int start = values.position();
+        for (int i = 0; i < n; i++) {
+            final short v = values.get(start + i);
+            if ((v & 0xffff) > (acc[i] & 0xffff))
+                acc[i] = v;
+        }
+    }
+
+    /**
+     * Running sum and, unless null, sum of squares of the first n values.
+     */
+    public abstract void accumulate(int[] sum, long[] sum_sq, short[] values, int n);
+
+    /**
+     * Add n weighted samples of one tile row to a running sum, with bilinear interpolation at a fractional offset
+     * that is the same for the whole row: {@code sum[sum_at + k] += weights[weights_at + k] * sample(k)}.
+     *
+     * @param top    index of the first pixel in the upper tile row
+     * @param bottom index of the first pixel in the lower tile row, only read if fy is not 0
+     * @param fx     horizontal offset, pixels right of the row are only read if it is not 0
+     */
+    public abstract void blend(double[] sum, int sum_at, short[] pixels, int top, int bottom, double fx, double fy,
+                               double[] weights, int weights_at, int n);
+
+    /**
+     * Smallest and largest of the first n values, unsigned, as {@code max << 16 | min}.
+     */
+    public abstract int min_max(short[] values, int n);
+
+    public static int min(final int min_max) {
+        return min_max & 0xffff;
+    }
+
+    public static int max(final int min_max) {
+        return min_max >>> 16;
+    }
+
+    /**
+     * Count the first n values into {@code bins[value >>> shift]}. There is no SIMD version: the Vector API has no
+     * scatter that adds, and the loop is bound by memory anyway.
+     */
+    public void histogram(final short[] values, final int n, final int[] bins, final int shift) {
+        for (int i = 0; i < n; i++)
+            bins[(values[i] & 0xffff) >>> shift]++;
+    }
+
+    private static Kernels load_vector() {
+        try {
+            final Kernels vector = (Kernels) Class.forName("util.VectorKernels").getDeclaredConstructor().newInstance();
+            return agrees(vector) ? vector : null;
+        } catch (Throwable e) {
+            // Older JVM or the incubator module is not added
+            return null;
+        }
+    }
+
+    /**
+     * Check the SIMD kernels against the plain ones, on lengths that are not a multiple of any vector size.
+     */
+    private static boolean agrees(final Kernels vector) {
+        final int n = 1031;
+        final short[] values = new short[n], a = new short[n], b = new short[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = (short) (i * 7919);
+            a[i] = b[i] = (short) (i * 104729);
+        }
+        SCALAR.max(a, values, n);
+        vector.max(b, values, n);
+        final int[] sum_a = new int[n], sum_b = new int[n];
+        final long[] sq_a = new long[n], sq_b = new long[n];
+        SCALAR.accumulate(sum_a, sq_a, values, n);
+        vector.accumulate(sum_b, sq_b, values, n);
+        final double[] weights = new double[n], blend_a = new double[n], blend_b = new double[n];
+        for (int i = 0; i < n; i++)
+            weights[i] = i / (double) n;
+        SCALAR.blend(blend_a, 0, values, 0, 0, 0.25, 0.5, weights, 0, n - 1);
+        vector.blend(blend_b, 0, values, 0, 0, 0.25, 0.5, weights, 0, n - 1);
+        for (int i = 0; i < n; i++)
+            if (a[i] != b[i] || sum_a[i] != sum_b[i] || sq_a[i] != sq_b[i] || Math.abs(blend_a[i] - blend_b[i]) > 1e-6)
+                return false;
+        return SCALAR.min_max(values, n) == vector.min_max(values, n);
+    }
+
+    private static class Scalar extends Kernels {
+        @Override
+        public String name() {
+            return "scalar";
+        }
+
+        @Override
+        public void max(final short[] acc, final short[] values, final int n) {
+            for (int i = 0; i < n; i++)
+                if ((values[i] & 0xffff) > (acc[i] & 0xffff))
+                    acc[i] = values[i];
+        }
+
+        @Override
+        public void accumulate(final int[] sum, final long[] sum_sq, final short[] values, final int n) {
+            if (sum_sq == null) {
+                for (int i = 0; i < n; i++)
+                    sum[i] += values[i] & 0xffff;
+            } else {
+                for (int i = 0; i < n; i++) {
+                    final int v = values[i] & 0xffff;
+                    sum[i] += v;
+                    sum_sq[i] += (long) v * v;
+                }
+            }
+        }
+
+        @Override
+        public void blend(final double[] sum, final int sum_at, final short[] pixels, final int top, final int bottom,
+                          final double fx, final double fy, final double[] weights, final int weights_at, final int n) {
+            for (int k = 0; k < n; k++) {
+                double value = fx == 0 ? pixels[top + k] & 0xffff
+                        : (pixels[top + k] & 0xffff) * (1 - fx) + (pixels[top + k + 1] & 0xffff) * fx;
+                if (fy != 0) {
+                    final double below = fx == 0 ? pixels[bottom + k] & 0xffff
+                            : (pixels[bottom + k] & 0xffff) * (1 - fx) + (pixels[bottom + k + 1] & 0xffff) * fx;
+                    value = value * (1 - fy) + below * fy;
+                }
+                sum[sum_at + k] += weights[weights_at + k] * value;
+            }
+        }
+
+        @Override
+        public int min_max(final short[] values, final int n) {
+            int min = 0xffff, max = 0;
+            for (int i = 0; i < n; i++) {
+                final int v = values[i] & 0xffff;
+                if (v < min)
+                    min = v;
+                if (v > max)
+                    max = v;
+            }
+            return n == 0 ? 0 : max << 16 | min;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package util;
+
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Zero-copy access to uncompressed 16-bit planes. LIF files store the planes of a series, also of a tile of a tile
+ * scan, one after the other, so every plane is a fixed window of the file that can be mapped instead of being copied
+ * by Bio-Formats. The plane offsets of the series are checked once against planes read through Bio-Formats. Series
+ * that do not match, 8-bit data and other formats are not supported and have to be read through the pooled readers.
+ */
+public class MappedPlanes implements Closeable {
+    // Mapped windows are limited to 2 GB, smaller windows keep the address space of one series tidy
+    private static final long WINDOW_BYTES = 1L << 30;
+
+    private final ImageFile file;
+    private final Map<Integer, Boolean> supported = new ConcurrentHashMap<>();
+    private final Map<Long, MappedByteBuffer> windows = new ConcurrentHashMap<>();
+    private FileChannel channel;
+    private boolean closed = false;
+
+    MappedPlanes(final ImageFile file) {
+        this.file = file;
+    }
+
+    /**
+     * Whether the planes of the series can be mapped. The first call per series compares a few planes with the
+     * Bio-Formats reader.
+     */
+    public boolean supports(final Series series) {
+        return supported.computeIfAbsent(series.index, i -> check_and_release(series));
+    }
+
+    /**
+     * View of one plane, only valid for series that are {@link #supports(Series) supported}.
+     *
+     * @param plane reader index of the plane
+     */
+    public ShortBuffer plane(final Series series, final int plane) throws IOException {
+        return bytes(series, plane).asShortBuffer();
+    }
+
+    /**
+     * Raw bytes of one plane, in the byte order of the file.
+     */
+    public ByteBuffer bytes(final Series series, final int plane) throws IOException {
+        final int plane_bytes = series.plane_bytes();
+        final long planes_per_window = Math.max(1, WINDOW_BYTES / plane_bytes);
+        final long window_index = plane / planes_per_window;
+        final MappedByteBuffer window;
+        try {
+            window = windows.computeIfAbsent((long) series.index << 32 | window_index, key -> {
+                try {
+                    final long first = window_index * planes_per_window;
+                    final long count = Math.min(planes_per_window, planes(series) - first);
+                    return channel().map(FileChannel.MapMode.READ_ONLY, series.plane_offsets[(int) first], count * plane_bytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        final ByteBuffer view = window.duplicate();
+        final int position = (int) (plane % planes_per_window) * plane_bytes;
+        view.position(position).limit(position + plane_bytes);
+        return view.slice().order(series.little_endian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Drop all mappings. They are unmapped once the garbage collector frees the remaining views.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        windows.clear();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+            channel = null;
+        }
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if (closed)
+            throw new IOException("Image file closed: " + file.getPath());
+        if (channel == null)
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        return channel;
+    }
+
+    private static long planes(final Series series) {
+        return (long) series.size_c * series.size_z * series.size_t;
+    }
+
+    private boolean check(final Series series) {
+        final long[] offsets = series.plane_offsets;
+        if (series.bytes_per_pixel() != 2 || offsets == null || offsets.length == 0 || offsets.length != planes(series))
+            return false;
+        // Windows map runs of planes, so the planes have to follow each other
+        for (int i = 1; i < offsets.length; i++)
+            if (offsets[i] != offsets[0] + (long) i * series.plane_bytes())
+                return false;
+        try {
+            if (offsets[offsets.length - 1] + series.plane_bytes() > channel().size())
+                return false;
+            final IFormatReader reader = file.readers.borrow(series.index);
+            try {
+                if (reader.getImageCount() != planes(series))
+                    return false;
+                final byte[] expected = new byte[series.plane_bytes()];
+                for (int plane : new int[]{0, reader.getImageCount() / 2, reader.getImageCount() - 1}) {
+                    reader.openBytes(plane, expected);
+                    if (!bytes(series, plane).equals(ByteBuffer.wrap(expected)))
+                        return false;
+                }
+                return true;
+            } finally {
+                file.readers.give_back(reader);
+            }
+        } catch (IOException | FormatException | RuntimeException e) {
+            // log.debug(String.format("Not mapping %s[%d]: %s", series.name, series.index, e));
+            return false;
+        }
+    }
+
+    private boolean check_and_release(final Series series) {
+        final boolean ok = check(series);
+        if (!ok)
+            windows.keySet().removeIf(key -> (key >>> 32) == series.index);
+        return ok;
+    }
+}
@@ -1,17 +1,257 @@
 package util;
 
 import ij.ImagePlus;
-import ij.plugin.ZProjector;
-import org.scijava.log.LogService;
-import org.scijava.plugin.Parameter;
+import ij.ImageStack;
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
 
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Z projections of a series, computed plane by plane: the maximum and any of the other {@link Projection projections},
+ * all from one read of every plane. Only one plane buffer and the accumulators of each channel are held in memory,
+ * independent of the number of Z slices.
+ */
 public class MaxProjection extends Series {
+    // The first of the projections
     public final ImagePlus imp;
+    public final Map<Projection, ImagePlus> images;
+
+    /**
+     * Buffers of the plane a thread is folding, reused as long as the plane size stays the same.
+     */
+    private static class Scratch {
+        private static final ThreadLocal<Scratch> CURRENT = new ThreadLocal<>();
+        final short[] values;
+        // Only allocated for the projections that need the sharpness
+        float[] sharpness, box;
+
+        private Scratch(final int n) {
+            values = new short[n];
+        }
+
+        static Scratch get(final int n) {
+            Scratch s = CURRENT.get();
+            if (s == null || s.values.length != n) {
+                s = new Scratch(n);
+                CURRENT.set(s);
+            }
+            return s;
+        }
+
+        void need_sharpness() {
+            if (sharpness == null) {
+                sharpness = new float[values.length];
+                box = new float[values.length];
+            }
+        }
+    }
+
+    /**
+     * Running statistics per channel. Planes can be folded in any order and from several threads.
+     */
+    public static class Accumulator {
+        public final Series series;
+        public final Set<Projection> projections;
+        private final Object[] locks;
+        private final short[][] max;
+        private final int[][] sum;
+        private final long[][] sum_sq;
+        // Sharpness of the sharpest plane so far, its Z index and its pixel values
+        private final float[][] focus;
+        private final short[][] focus_z, focus_values;
+
+        public Accumulator(final Series series) throws FormatException {
+            this(series, EnumSet.of(Projection.MAX));
+        }
+
+        public Accumulator(final Series series, final Set<Projection> projections) throws FormatException {
+            Pixels.check_supported(series.pixel_type);
+            this.series = series;
+            this.projections = Collections.unmodifiableSet(EnumSet.copyOf(projections));
+            final int c = series.size_c, n = series.size_x * series.size_y;
+            this.locks = new Object[c];
+            for (int i = 0; i < c; i++)
+                locks[i] = new Object();
+            this.max = projections.contains(Projection.MAX) ? new short[c][n] : null;
+            this.sum = projections.contains(Projection.MEAN) || projections.contains(Projection.STD) ? new int[c][n] : null;
+            this.sum_sq = projections.contains(Projection.STD) ? new long[c][n] : null;
+            final boolean in_focus = projections.contains(Projection.FOCUS) || projections.contains(Projection.EDF);
+            this.focus = in_focus ? new float[c][n] : null;
+            this.focus_z = in_focus ? new short[c][n] : null;
+            this.focus_values = in_focus ? new short[c][n] : null;
+            if (in_focus)
+                for (float[] f : focus)
+                    Arrays.fill(f, -1);
+        }
+
+        public void fold(final int c, final int z, final byte[] plane) {
+            final Scratch s = Scratch.get(series.size_x * series.size_y);
+            Pixels.values(plane, series.bytes_per_pixel(), series.little_endian, s.values);
+            fold(c, z, s);
+        }
+
+        public void fold(final int c, final int z, final ShortBuffer plane) {
+            final int n = series.size_x * series.size_y;
+            // The maximum alone is folded straight from the buffer, so a mapped plane is never copied
+            if (max != null && sum == null && focus == null) {
+                synchronized (locks[c]) {
+                    Kernels.get().max(max[c], plane, n);
+                }
+                return;
+            }
+            final Scratch s = Scratch.get(n);
+            plane.duplicate().get(s.values);
+            fold(c, z, s);
+        }
+
+        private void fold(final int c, final int z, final Scratch s) {
+            final short[] values = s.values;
+            // The sharpness is the expensive part, it is computed before taking the lock
+            float[] sharpness = null;
+            if (focus != null) {
+                s.need_sharpness();
+                sharpness = s.sharpness;
+                Pixels.focus(values, series.size_x, series.size_y, sharpness, s.box);
+            }
+            synchronized (locks[c]) {
+                if (max != null)
+                    Kernels.get().max(max[c], values, values.length);
+                if (sum != null)
+                    Pixels.sum(values, sum[c], sum_sq != null ? sum_sq[c] : null);
+                if (sharpness != null) {
+                    final float[] best = focus[c];
+                    final short[] best_z = focus_z[c], best_values = focus_values[c];
+                    for (int i = 0; i < best.length; i++) {
+                        // Ties go to the lower plane, so the result does not depend on the order of the planes
+                        if (sharpness[i] > best[i] || sharpness[i] == best[i] && z < best_z[i]) {
+                            best[i] = sharpness[i];
+                            best_z[i] = (short) z;
+                            best_values[i] = values[i];
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Number of planes to fold. Tile scans have a single time point, the projection is done on the first one.
+         */
+        public int planes() {
+            return series.size_c * series.size_z;
+        }
+
+        /**
+         * Reader index of the n-th plane to fold.
+         */
+        public int plane_index(final IFormatReader reader, final int n) {
+            return reader.getIndex(n / series.size_c, n % series.size_c, 0);
+        }
+
+        public int plane_channel(final int n) {
+            return n % series.size_c;
+        }
+
+        public int plane_z(final int n) {
+            return n / series.size_c;
+        }
+
+        /**
+         * The pixels of one projection of one channel, once all planes are folded.
+         */
+        private short[] result(final Projection projection, final int c) {
+            final int n = series.size_x * series.size_y;
+            switch (projection) {
+                case MAX:
+                    return max[c];
+                case EDF:
+                    return focus_values[c];
+                case FOCUS:
+                    return focus_z[c];
+                case MEAN: {
+                    final short[] mean = new short[n];
+                    for (int i = 0; i < n; i++)
+                        mean[i] = (short) Math.round(sum[c][i] / (double) series.size_z);
+                    return mean;
+                }
+                default: {
+                    final short[] std = new short[n];
+                    for (int i = 0; i < n; i++) {
+                        final double mean = sum[c][i] / (double) series.size_z;
+                        final double variance = sum_sq[c][i] / (double) series.size_z - mean * mean;
+                        std[i] = (short) Math.min(65535, Math.round(Math.sqrt(Math.max(variance, 0))));
+                    }
+                    return std;
+                }
+            }
+        }
+    }
+
+    public MaxProjection(final Series series) throws IOException, FormatException {
+        this(series, EnumSet.of(Projection.MAX));
+    }
+
+    public MaxProjection(final Series series, final Set<Projection> projections) throws IOException, FormatException {
+        super(series);
+        final Accumulator acc = new Accumulator(series, projections);
+        // log.debug(String.format("Starting Z-Project of series %s[%d]", series.name, series.index));
+        // Checked before borrowing, the check needs a reader of its own
+        final boolean mapped = file.mapped.supports(this);
+        final IFormatReader reader = file.readers.borrow(index);
+        try {
+            final byte[] plane = mapped ? null : new byte[plane_bytes()];
+            for (int n = 0; n < acc.planes(); n++) {
+                if (mapped) {
+                    acc.fold(acc.plane_channel(n), acc.plane_z(n), file.mapped.plane(this, acc.plane_index(reader, n)));
+                } else {
+                    reader.openBytes(acc.plane_index(reader, n), plane);
+                    acc.fold(acc.plane_channel(n), acc.plane_z(n), plane);
+                }
+            }
+        } finally {
+            file.readers.give_back(reader);
+        }
+        this.images = images(acc);
+        this.imp = images.get(Projection.first(acc.projections));
+        // log.debug(String.format("Z-Project done of series %s[%d]", series.name, series.index));
+    }
+
+    /**
+     * Projections of an accumulator that has seen all planes.
+     */
+    public MaxProjection(final Accumulator acc) {
+        super(acc.series);
+        this.images = images(acc);
+        this.imp = images.get(Projection.first(acc.projections));
+    }
+
+    private Map<Projection, ImagePlus> images(final Accumulator acc) {
+        final Map<Projection, ImagePlus> images = new EnumMap<>(Projection.class);
+        for (Projection projection : acc.projections)
+            images.put(projection, image(projection, acc));
+        return Collections.unmodifiableMap(images);
+    }
 
-    public MaxProjection(final ZStack zstack) {
-        super(zstack);
-        // log.debug(String.format("Starting Z-Project of zstack %s[%d]", zstack.name, zstack.index));
-        this.imp = ZProjector.run(zstack.imp, "max");
-        // log.debug(String.format("Z-Project done of zstack %s[%d]", zstack.name, zstack.index));
+    private ImagePlus image(final Projection projection, final Accumulator acc) {
+        final int bpp = projection.bytes_per_pixel(this);
+        final ImageStack stack = new ImageStack(size_x, size_y);
+        for (int c = 0; c < size_c; c++)
+            stack.addSlice(Pixels.processor(acc.result(projection, c), size_x, size_y, bpp));
+        final ImagePlus imp = new ImagePlus(projection.prefix + mp_title, stack);
+        imp.setDimensions(size_c, 1, 1);
+        imp.setOpenAsHyperStack(size_c > 1);
+        if (cal_x > 0) {
+            imp.getCalibration().pixelWidth = cal_x;
+            imp.getCalibration().pixelHeight = cal_y;
+            imp.getCalibration().setUnit("micron");
+        }
+        return imp;
     }
 }
@@ -0,0 +1,105 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sidecar file next to an image file that holds the series metadata, so that reopening a big LIF does not need
+ * Bio-Formats at all. The index is only used if file size, modification time and a checksum of the file header are
+ * still the same as when it was written.
+ */
+public final class MetadataIndex {
+    private static final int MAGIC = 0x43434c4d; // "CCLM"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 64 * 1024;
+
+    private MetadataIndex() {
+    }
+
+    public static File index_file(final File image_file) {
+        return new File(image_file.getParent(), "." + image_file.getName() + ".index");
+    }
+
+    /**
+     * Load the series of an image file from its index.
+     *
+     * @return the series, or null if there is no valid index
+     */
+    public static ArrayList<Series> load(final ImageFile image_file) {
+        final File index = index_file(image_file);
+        if (!index.isFile())
+            return null;
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(index))))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+            if (in.readLong() != image_file.length() || in.readLong() != image_file.lastModified()
+                    || in.readLong() != header_checksum(image_file))
+                return null;
+            final int count = in.readInt();
+            final ArrayList<Series> series = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                series.add(Series.read(image_file, in));
+            return series;
+        } catch (IOException | RuntimeException e) {
+            // A broken index is just rebuilt
+            return null;
+        }
+    }
+
+    /**
+     * Write the index for an image file. Failing to do so is not an error, the next start will just be slower.
+     */
+    public static void save(final ImageFile image_file, final List<Series> series) {
+        final File index = index_file(image_file);
+        Path tmp = null;
+        try {
+            // A temporary file of its own, concurrent jobs on the same file may save at the same time
+            tmp = Files.createTempFile(index.getAbsoluteFile().getParentFile().toPath(), index.getName() + ".", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(image_file.length());
+                out.writeLong(image_file.lastModified());
+                out.writeLong(header_checksum(image_file));
+                out.writeInt(series.size());
+                for (Series s : series)
+                    s.write(out);
+            }
+            try {
+                Files.move(tmp, index.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            if (tmp != null)
+                tmp.toFile().delete();
+        }
+    }
+
+    static long header_checksum(final File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[HEADER_BYTES];
+        try (InputStream in = new FileInputStream(file)) {
+            int total = 0, n;
+            while (total < buffer.length && (n = in.read(buffer, total, buffer.length - total)) > 0)
+                total += n;
+            crc.update(buffer, 0, total);
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,342 @@
+package util;
+
+import loci.formats.FormatTools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the z-stack of a tile, or one channel of it, as a tiled and compressed OME-TIFF while the planes arrive, in
+ * any order. The tiles of a plane are compressed in parallel on a worker pool and appended as they are done, the
+ * image directories follow on {@link #close()}. Planes are in XYCZT order, the OME-XML in the first directory carries
+ * the sizes, the pixel sizes and the channel colors of the tile. Files that may grow beyond 4 GB are written as
+ * BigTIFF.
+ */
+public class OmeTiffWriter implements PlaneWriter {
+    public static final int TILE = 256;
+    private static final int CLEAR = 256, END = 257;
+
+    public enum Compression {
+        NONE(1), LZW(5), DEFLATE(8);
+
+        final int tag;
+
+        Compression(final int tag) {
+            this.tag = tag;
+        }
+    }
+
+    public final File path;
+    public final boolean big_tiff;
+    private final Series series;
+    private final int channel, channels, bytes_per_pixel, tiles_x, tiles_y;
+    private final Compression compression;
+    private final ForkJoinPool pool;
+    private final ByteOrder order;
+    private final TiffFile file;
+    private final long[][] offsets, counts;
+    private long end;
+    private int written = 0;
+
+    /**
+     * @param channel the channel to write, or -1 for all of them
+     * @param pool    compresses the tiles
+     */
+    public OmeTiffWriter(final File path, final Series series, final int channel, final Compression compression,
+                         final ForkJoinPool pool) throws IOException {
+        this(path, series, channel, compression, pool, may_exceed_4_gb(series, channel));
+    }
+
+    OmeTiffWriter(final File path, final Series series, final int channel, final Compression compression,
+                  final ForkJoinPool pool, final boolean big_tiff) throws IOException {
+        this.path = path;
+        this.series = series;
+        this.channel = channel;
+        this.channels = channel < 0 ? series.size_c : 1;
+        this.bytes_per_pixel = series.bytes_per_pixel();
+        this.compression = compression;
+        this.pool = pool;
+        this.order = series.little_endian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        this.tiles_x = (series.size_x + TILE - 1) / TILE;
+        this.tiles_y = (series.size_y + TILE - 1) / TILE;
+        final int planes = channels * series.size_z * series.size_t;
+        this.offsets = new long[planes][];
+        this.counts = new long[planes][];
+        this.big_tiff = big_tiff;
+        this.file = new TiffFile(path, order, big_tiff);
+        this.end = file.header_bytes();
+    }
+
+    private static boolean may_exceed_4_gb(final Series series, final int channel) {
+        final long planes = (long) (channel < 0 ? series.size_c : 1) * series.size_z * series.size_t;
+        final long tiles = (long) ((series.size_x + TILE - 1) / TILE) * ((series.size_y + TILE - 1) / TILE);
+        // LZW may grow incompressible data by half, the directories take far less than 1 GB
+        return planes * tiles * TILE * TILE * series.bytes_per_pixel() * 3 / 2 + (1L << 30) > TiffFile.MAX_OFFSET;
+    }
+
+    /**
+     * Plane number of a channel, z and t in the file.
+     */
+    public int plane(final int c, final int z, final int t) {
+        return (channel < 0 ? c : 0) + channels * (z + series.size_z * t);
+    }
+
+    /**
+     * Compress the tiles of one plane in parallel and append them.
+     */
+    @Override
+    public void write(final int plane, final ByteBuffer data) throws IOException {
+        if (data.remaining() < series.plane_bytes())
+            throw new IOException(String.format("Plane %d of %s is too short", plane, path.getName()));
+        synchronized (this) {
+            if (offsets[plane] != null)
+                throw new IOException(String.format("Plane %d of %s was already written", plane, path.getName()));
+            offsets[plane] = new long[0];
+        }
+        final byte[][] tiles;
+        try {
+            tiles = pool.submit(() -> IntStream.range(0, tiles_x * tiles_y).parallel()
+                    .mapToObj(i -> compress(tile(data, i % tiles_x, i / tiles_x))).toArray(byte[][]::new)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing " + path.getName(), e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        final long[] tile_offsets = new long[tiles.length], tile_counts = new long[tiles.length];
+        long position;
+        synchronized (this) {
+            position = end;
+            for (int i = 0; i < tiles.length; i++) {
+                tile_offsets[i] = position;
+                tile_counts[i] = tiles[i].length;
+                position += tiles[i].length + (tiles[i].length & 1);
+            }
+            end = position;
+        }
+        for (int i = 0; i < tiles.length; i++)
+            file.write_fully(ByteBuffer.wrap(tiles[i]), tile_offsets[i]);
+        synchronized (this) {
+            offsets[plane] = tile_offsets;
+            counts[plane] = tile_counts;
+            written++;
+        }
+    }
+
+    /**
+     * One tile of a plane, padded with zeros at the right and bottom edges.
+     */
+    private byte[] tile(final ByteBuffer data, final int tx, final int ty) {
+        final byte[] tile = new byte[TILE * TILE * bytes_per_pixel];
+        final int x0 = tx * TILE, y0 = ty * TILE;
+        final int w = Math.min(TILE, series.size_x - x0), h = Math.min(TILE, series.size_y - y0);
+        final ByteBuffer view = data.duplicate();
+        for (int y = 0; y < h; y++) {
+            view.position(data.position() + ((y0 + y) * series.size_x + x0) * bytes_per_pixel);
+            view.get(tile, y * TILE * bytes_per_pixel, w * bytes_per_pixel);
+        }
+        return tile;
+    }
+
+    private byte[] compress(final byte[] tile) {
+        if (compression == Compression.NONE)
+            return tile;
+        predict(tile);
+        if (compression == Compression.LZW)
+            return lzw(tile);
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(tile.length / 2);
+        final byte[] buffer = new byte[1 << 16];
+        try {
+            deflater.setInput(tile);
+            deflater.finish();
+            while (!deflater.finished())
+                compressed.write(buffer, 0, deflater.deflate(buffer));
+        } finally {
+            deflater.end();
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Horizontal differencing (predictor 2), on the samples in the byte order of the file.
+     */
+    private void predict(final byte[] tile) {
+        if (bytes_per_pixel == 1) {
+            for (int y = 0; y < TILE; y++)
+                for (int x = TILE - 1; x > 0; x--)
+                    tile[y * TILE + x] -= tile[y * TILE + x - 1];
+            return;
+        }
+        final ByteBuffer samples = ByteBuffer.wrap(tile).order(order);
+        for (int y = 0; y < TILE; y++)
+            for (int x = TILE - 1; x > 0; x--) {
+                final int at = 2 * (y * TILE + x);
+                samples.putShort(at, (short) (samples.getShort(at) - samples.getShort(at - 2)));
+            }
+    }
+
+    /**
+     * TIFF flavored LZW: codes are packed from the most significant bit and grow one code earlier than in GIF, as
+     * libtiff writes them.
+     */
+    private static byte[] lzw(final byte[] data) {
+        final Bits bits = new Bits(data.length / 2 + 16);
+        // Open addressing table of (prefix code << 8 | byte) to code
+        final int[] keys = new int[8192], codes = new int[8192];
+        Arrays.fill(keys, -1);
+        int width = 9, next = 258;
+        bits.put(CLEAR, width);
+        int prefix = data.length > 0 ? data[0] & 0xff : -1;
+        for (int i = 1; i < data.length; i++) {
+            final int key = prefix << 8 | (data[i] & 0xff);
+            int slot = (key * 0x9E3779B1 >>> 19) & 8191;
+            while (keys[slot] != -1 && keys[slot] != key)
+                slot = (slot + 1) & 8191;
+            if (keys[slot] == key) {
+                prefix = codes[slot];
+                continue;
+            }
+            bits.put(prefix, width);
+            keys[slot] = key;
+            codes[slot] = next++;
+            if (next == 4094) {
+                bits.put(CLEAR, width);
+                Arrays.fill(keys, -1);
+                width = 9;
+                next = 258;
+            } else if (next > (1 << width) - 1) {
+                width++;
+            }
+            prefix = data[i] & 0xff;
+        }
+        if (prefix >= 0) {
+            bits.put(prefix, width);
+            next++;
+            if (next == 4094) {
+                bits.put(CLEAR, width);
+                width = 9;
+            } else if (next > (1 << width) - 1) {
+                width++;
+            }
+        }
+        bits.put(END, width);
+        return bits.toByteArray();
+    }
+
+    private static class Bits {
+        private byte[] bytes;
+        private int length = 0, buffer = 0, count = 0;
+
+        Bits(final int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        void put(final int code, final int width) {
+            buffer = buffer << width | code;
+            count += width;
+            while (count >= 8) {
+                if (length == bytes.length)
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                bytes[length++] = (byte) (buffer >>> (count - 8));
+                count -= 8;
+            }
+            buffer &= (1 << count) - 1;
+        }
+
+        byte[] toByteArray() {
+            if (count > 0)
+                put(0, 8 - count);
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+
+    /**
+     * Write the image directories and close the file. All planes must have been written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (written != offsets.length)
+                throw new IOException(String.format("Only %d of %d planes written to %s", written, offsets.length, path.getName()));
+            final List<TiffFile.Ifd> ifds = new ArrayList<>();
+            for (int i = 0; i < offsets.length; i++) {
+                final TiffFile.Ifd ifd = file.ifd()
+                        .add(256, TiffFile.LONG, series.size_x)
+                        .add(257, TiffFile.LONG, series.size_y)
+                        .add(258, TiffFile.SHORT, bytes_per_pixel * 8)
+                        .add(259, TiffFile.SHORT, compression.tag)
+                        .add(262, TiffFile.SHORT, 1) // Black is zero
+                        .add(277, TiffFile.SHORT, 1)
+                        .add(322, TiffFile.SHORT, TILE)
+                        .add(323, TiffFile.SHORT, TILE)
+                        .add(324, file.offset_type(), offsets[i])
+                        .add(325, file.offset_type(), counts[i])
+                        .add(339, TiffFile.SHORT, series.pixel_type == FormatTools.INT16 ? 2 : 1); // Signed or unsigned
+                if (compression != Compression.NONE)
+                    ifd.add(317, TiffFile.SHORT, 2); // Horizontal differencing
+                if (i == 0)
+                    ifd.add(270, TiffFile.ASCII, description());
+                ifds.add(ifd);
+            }
+            final long start = (end + 7) & ~7L;
+            file.write_ifds(ifds, start, 0);
+            file.header(start);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Override
+    public synchronized void abort() {
+        file.abort();
+    }
+
+    /**
+     * OME-XML of the stack, with a single TiffData since the planes follow the dimension order.
+     */
+    private byte[] description() {
+        final StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        sb.append("<OME xmlns=\"http://www.openmicroscopy.org/Schemas/OME/2016-06\" ")
+                .append("xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" ")
+                .append("xsi:schemaLocation=\"http://www.openmicroscopy.org/Schemas/OME/2016-06 ")
+                .append("http://www.openmicroscopy.org/Schemas/OME/2016-06/ome.xsd\">");
+        sb.append("<Image ID=\"Image:0\" Name=\"").append(escape(series.mp_title)).append("\">");
+        sb.append(String.format(Locale.ROOT, "<Pixels ID=\"Pixels:0\" DimensionOrder=\"XYCZT\" Type=\"%s\" "
+                        + "SizeX=\"%d\" SizeY=\"%d\" SizeZ=\"%d\" SizeC=\"%d\" SizeT=\"%d\" BigEndian=\"%b\"",
+                FormatTools.getPixelTypeString(series.pixel_type), series.size_x, series.size_y, series.size_z, channels,
+                series.size_t, order == ByteOrder.BIG_ENDIAN));
+        if (series.cal_x > 0)
+            sb.append(String.format(Locale.ROOT, " PhysicalSizeX=\"%s\" PhysicalSizeXUnit=\"\u00b5m\" PhysicalSizeY=\"%s\" PhysicalSizeYUnit=\"\u00b5m\"",
+                    series.cal_x, series.cal_y));
+        sb.append('>');
+        for (int c = 0; c < channels; c++) {
+            final int source = channel < 0 ? c : channel;
+            sb.append("<Channel ID=\"Channel:0:").append(c).append("\" SamplesPerPixel=\"1\"");
+            final Channel color = series.channels != null && source < series.channels.length ? series.channels[source] : null;
+            if (color != null)
+                sb.append(" Name=\"").append(escape(color.name)).append("\" Color=\"")
+                        .append(color.R << 24 | color.G << 16 | color.B << 8 | 0xff).append('"');
+            sb.append("/>");
+        }
+        sb.append("<TiffData IFD=\"0\" PlaneCount=\"").append(offsets.length).append("\"/>");
+        sb.append("</Pixels></Image></OME>").append('\0');
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String escape(final String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
@@ -0,0 +1,261 @@
+package util;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Phase correlation between two equally sized images, e.g. the overlap strips of two neighbouring tiles. The images
+ * are zero-padded to powers of two. FFT plans are shared per size and every thread reuses its own work buffers, so no
+ * allocation happens per pair once a thread has seen a size.
+ */
+public final class PhaseCorrelation {
+    // Number of correlation peaks that are checked by cross-correlation, as the "checkPeaks" of the stitching plugin
+    public static final int CHECK_PEAKS = 5;
+    // Minimum number of overlapping pixels for a shift to be considered
+    private static final int MIN_OVERLAP = 64;
+
+    private static final ConcurrentHashMap<Integer, Fft> plans = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Workspace> workspaces = new ThreadLocal<>();
+
+    /**
+     * Shift between two images and its cross-correlation.
+     */
+    public static class Shift {
+        public final double x, y, r;
+
+        Shift(double x, double y, double r) {
+            this.x = x;
+            this.y = y;
+            this.r = r;
+        }
+    }
+
+    private PhaseCorrelation() {
+    }
+
+    /**
+     * Find the shift s with a(p) = b(p - s), i.e. b has to be moved by s to match a.
+     *
+     * @return the shift with the best cross-correlation, or null if no candidate overlaps enough
+     */
+    public static Shift compute(final float[] a, final float[] b, final int width, final int height) {
+        final int pw = next_power_of_two(width), ph = next_power_of_two(height);
+        final Workspace ws = workspace(pw, ph);
+        final Fft fft_x = plan(pw), fft_y = plan(ph);
+
+        ws.load(a, width, height, ws.re_a, ws.im_a);
+        ws.load(b, width, height, ws.re_b, ws.im_b);
+        fft_2d(ws.re_a, ws.im_a, pw, ph, fft_x, fft_y, false);
+        fft_2d(ws.re_b, ws.im_b, pw, ph, fft_x, fft_y, false);
+        // Normalized cross power spectrum, stored in a
+        for (int i = 0; i < pw * ph; i++) {
+            final double re = ws.re_a[i] * ws.re_b[i] + ws.im_a[i] * ws.im_b[i];
+            final double im = ws.im_a[i] * ws.re_b[i] - ws.re_a[i] * ws.im_b[i];
+            final double magnitude = Math.sqrt(re * re + im * im);
+            ws.re_a[i] = magnitude > 1e-12 ? re / magnitude : 0;
+            ws.im_a[i] = magnitude > 1e-12 ? im / magnitude : 0;
+        }
+        fft_2d(ws.re_a, ws.im_a, pw, ph, fft_x, fft_y, true);
+
+        final int[] peaks = top_peaks(ws.re_a, CHECK_PEAKS);
+        Shift best = null;
+        for (int peak : peaks) {
+            if (peak < 0)
+                continue;
+            final int px = peak % pw, py = peak / pw;
+            final double sub_x = subpixel(ws.re_a[py * pw + (px + pw - 1) % pw], ws.re_a[peak], ws.re_a[py * pw + (px + 1) % pw]);
+            final double sub_y = subpixel(ws.re_a[((py + ph - 1) % ph) * pw + px], ws.re_a[peak], ws.re_a[((py + 1) % ph) * pw + px]);
+            // The correlation is periodic, so each peak stands for four possible shifts
+            for (int sx : new int[]{px, px - pw}) {
+                for (int sy : new int[]{py, py - ph}) {
+                    final double r = cross_correlation(a, b, width, height, sx, sy);
+                    if (!Double.isNaN(r) && (best == null || r > best.r))
+                        best = new Shift(sx + sub_x, sy + sub_y, r);
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Bytes of the work buffers a thread keeps for images of the given size.
+     */
+    public static long workspace_bytes(final int width, final int height) {
+        return 4L * Double.BYTES * next_power_of_two(width) * next_power_of_two(height);
+    }
+
+    private static int next_power_of_two(final int n) {
+        int p = 1;
+        while (p < n)
+            p <<= 1;
+        return p;
+    }
+
+    private static Fft plan(final int n) {
+        return plans.computeIfAbsent(n, Fft::new);
+    }
+
+    private static Workspace workspace(final int width, final int height) {
+        Workspace ws = workspaces.get();
+        if (ws == null || ws.width != width || ws.height != height) {
+            ws = new Workspace(width, height);
+            workspaces.set(ws);
+        }
+        return ws;
+    }
+
+    private static void fft_2d(final double[] re, final double[] im, final int width, final int height, final Fft fft_x,
+                               final Fft fft_y, final boolean inverse) {
+        for (int y = 0; y < height; y++)
+            fft_x.transform(re, im, y * width, 1, inverse);
+        for (int x = 0; x < width; x++)
+            fft_y.transform(re, im, x, width, inverse);
+    }
+
+    private static int[] top_peaks(final double[] values, final int count) {
+        final int[] peaks = new int[count];
+        Arrays.fill(peaks, -1);
+        for (int i = 0; i < values.length; i++) {
+            int slot = count;
+            while (slot > 0 && (peaks[slot - 1] < 0 || values[peaks[slot - 1]] < values[i]))
+                slot--;
+            if (slot < count) {
+                System.arraycopy(peaks, slot, peaks, slot + 1, count - slot - 1);
+                peaks[slot] = i;
+            }
+        }
+        return peaks;
+    }
+
+    /**
+     * Vertex offset of a parabola through three neighbouring values.
+     */
+    private static double subpixel(final double left, final double center, final double right) {
+        final double denominator = left - 2 * center + right;
+        if (denominator >= 0)
+            return 0;
+        return Math.max(-0.5, Math.min(0.5, (left - right) / (2 * denominator)));
+    }
+
+    /**
+     * Pearson correlation of a(p) and b(p - s) on the overlapping pixels.
+     */
+    private static double cross_correlation(final float[] a, final float[] b, final int width, final int height,
+                                            final int sx, final int sy) {
+        final int x0 = Math.max(0, sx), x1 = Math.min(width, width + sx);
+        final int y0 = Math.max(0, sy), y1 = Math.min(height, height + sy);
+        final long n = (long) Math.max(0, x1 - x0) * Math.max(0, y1 - y0);
+        if (n < MIN_OVERLAP)
+            return Double.NaN;
+        double sum_a = 0, sum_b = 0;
+        for (int y = y0; y < y1; y++)
+            for (int x = x0; x < x1; x++) {
+                sum_a += a[y * width + x];
+                sum_b += b[(y - sy) * width + x - sx];
+            }
+        final double mean_a = sum_a / n, mean_b = sum_b / n;
+        double cov = 0, var_a = 0, var_b = 0;
+        for (int y = y0; y < y1; y++)
+            for (int x = x0; x < x1; x++) {
+                final double da = a[y * width + x] - mean_a, db = b[(y - sy) * width + x - sx] - mean_b;
+                cov += da * db;
+                var_a += da * da;
+                var_b += db * db;
+            }
+        if (var_a == 0 || var_b == 0)
+            return Double.NaN;
+        return cov / Math.sqrt(var_a * var_b);
+    }
+
+    /**
+     * Per-thread buffers for one padded size.
+     */
+    private static class Workspace {
+        final int width, height;
+        final double[] re_a, im_a, re_b, im_b;
+
+        Workspace(final int width, final int height) {
+            this.width = width;
+            this.height = height;
+            this.re_a = new double[width * height];
+            this.im_a = new double[width * height];
+            this.re_b = new double[width * height];
+            this.im_b = new double[width * height];
+        }
+
+        /**
+         * Copy an image into the top left corner, mean-subtracted and zero-padded.
+         */
+        void load(final float[] image, final int w, final int h, final double[] re, final double[] im) {
+            double mean = 0;
+            for (float v : image)
+                mean += v;
+            mean /= image.length;
+            Arrays.fill(re, 0);
+            Arrays.fill(im, 0);
+            for (int y = 0; y < h; y++)
+                for (int x = 0; x < w; x++)
+                    re[y * width + x] = image[y * w + x] - mean;
+        }
+    }
+
+    /**
+     * In-place radix-2 FFT plan for one length, with precomputed twiddle factors and bit reversal.
+     */
+    static class Fft {
+        final int n;
+        final int[] reversed;
+        final double[] cos, sin;
+
+        Fft(final int n) {
+            this.n = n;
+            this.reversed = new int[n];
+            final int bits = Integer.numberOfTrailingZeros(n);
+            for (int i = 0; i < n; i++)
+                reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+            this.cos = new double[n / 2];
+            this.sin = new double[n / 2];
+            for (int i = 0; i < n / 2; i++) {
+                cos[i] = Math.cos(2 * Math.PI * i / n);
+                sin[i] = Math.sin(2 * Math.PI * i / n);
+            }
+        }
+
+        void transform(final double[] re, final double[] im, final int offset, final int stride, final boolean inverse) {
+            for (int i = 0; i < n; i++) {
+                final int j = reversed[i];
+                if (j > i) {
+                    final int a = offset + i * stride, b = offset + j * stride;
+                    double t = re[a];
+                    re[a] = re[b];
+                    re[b] = t;
+                    t = im[a];
+                    im[a] = im[b];
+                    im[b] = t;
+                }
+            }
+            final double sign = inverse ? 1 : -1;
+            for (int size = 2; size <= n; size <<= 1) {
+                final int half = size / 2, step = n / size;
+                for (int start = 0; start < n; start += size) {
+                    for (int k = 0; k < half; k++) {
+                        final double wr = cos[k * step], wi = sign * sin[k * step];
+                        final int a = offset + (start + k) * stride, b = offset + (start + k + half) * stride;
+                        final double tr = re[b] * wr - im[b] * wi;
+                        final double ti = re[b] * wi + im[b] * wr;
+                        re[b] = re[a] - tr;
+                        im[b] = im[a] - ti;
+                        re[a] += tr;
+                        im[a] += ti;
+                    }
+                }
+            }
+            if (inverse) {
+                for (int i = 0; i < n; i++) {
+                    re[offset + i * stride] /= n;
+                    im[offset + i * stride] /= n;
+                }
+            }
+        }
+    }
+}
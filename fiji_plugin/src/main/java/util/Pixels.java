@@ -0,0 +1,214 @@
+package util;
+
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Loops over raw Bio-Formats plane buffers. Everything works on unsigned 16-bit values, 8-bit data is widened first.
+ * The loops that run for every plane of a tile scan are in {@link Kernels}.
+ */
+public final class Pixels {
+
+    private Pixels() {
+    }
+
+    /**
+     * Only unsigned data is supported: the kernels compare and add values as unsigned, so negative signed values would
+     * count as the largest ones.
+     */
+    public static void check_supported(final int pixel_type) throws FormatException {
+        if (pixel_type != FormatTools.UINT8 && pixel_type != FormatTools.UINT16)
+            throw new FormatException("Unsupported pixel type: " + FormatTools.getPixelTypeString(pixel_type));
+    }
+
+    /**
+     * Widen a raw plane to unsigned 16-bit values.
+     */
+    public static void values(final byte[] plane, final int bytes_per_pixel, final boolean little_endian, final short[] values) {
+        if (bytes_per_pixel == 1) {
+            for (int i = 0; i < values.length; i++)
+                values[i] = (short) (plane[i] & 0xff);
+        } else {
+            // A bulk copy, which the JIT turns into a plain copy or a byte swap
+            ByteBuffer.wrap(plane).order(little_endian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN).asShortBuffer().get(values);
+        }
+    }
+
+    /**
+     * Fold one plane into a running sum and, unless null, a running sum of squares.
+     */
+    public static void sum(final short[] values, final int[] sum, final long[] sum_sq) {
+        Kernels.get().accumulate(sum, sum_sq, values, values.length);
+    }
+
+    /**
+     * Display range that saturates the given percentage of the pixels, half at each end. The same as "Enhance
+     * Contrast", but on the full 16-bit histogram instead of 256 bins.
+     */
+    public static int[] saturated_range(final short[] pixels, final double saturated) {
+        final Kernels kernels = Kernels.get();
+        final int min_max = kernels.min_max(pixels, pixels.length);
+        if (Kernels.min(min_max) == Kernels.max(min_max))
+            return new int[]{Kernels.min(min_max), Kernels.max(min_max)};
+        final int[] bins = new int[65536];
+        kernels.histogram(pixels, pixels.length, bins, 0);
+        return saturated_range(bins, pixels.length, saturated);
+    }
+
+    /**
+     * Saturated range from a full 16-bit histogram of count pixels, e.g. of a whole stack.
+     */
+    public static int[] saturated_range(final int[] bins, final long count, final double saturated) {
+        int min = 0, max = bins.length - 1;
+        while (min < max && bins[min] == 0)
+            min++;
+        while (max > min && bins[max] == 0)
+            max--;
+        final long threshold = (long) (count * saturated / 200);
+        int low = min, high = max;
+        for (long seen = 0; low < max; low++)
+            if ((seen += bins[low]) > threshold)
+                break;
+        for (long seen = 0; high > min; high--)
+            if ((seen += bins[high]) > threshold)
+                break;
+        return low < high ? new int[]{low, high} : new int[]{min, max};
+    }
+
+    /**
+     * Local sharpness of every pixel: the modified Laplacian summed over a 5 x 5 window. The window keeps single
+     * noisy pixels from deciding where a pixel is in focus.
+     *
+     * @param scratch as long as the plane, overwritten
+     */
+    public static void focus(final short[] values, final int width, final int height, final float[] focus, final float[] scratch) {
+        final int r = 2;
+        // Modified Laplacian, borders repeat the nearest pixel
+        for (int y = 0; y < height; y++) {
+            final int up = Math.max(y - 1, 0) * width, down = Math.min(y + 1, height - 1) * width, at = y * width;
+            for (int x = 0; x < width; x++) {
+                final int v = 2 * (values[at + x] & 0xffff);
+                final int left = values[at + Math.max(x - 1, 0)] & 0xffff, right = values[at + Math.min(x + 1, width - 1)] & 0xffff;
+                focus[at + x] = Math.abs(v - left - right) + Math.abs(v - (values[up + x] & 0xffff) - (values[down + x] & 0xffff));
+            }
+        }
+        // Box sums along the rows
+        for (int y = 0; y < height; y++) {
+            final int at = y * width;
+            float window = 0;
+            for (int x = -r; x <= r; x++)
+                window += focus[at + Math.min(Math.max(x, 0), width - 1)];
+            for (int x = 0; x < width; x++) {
+                scratch[at + x] = window;
+                window += focus[at + Math.min(x + r + 1, width - 1)] - focus[at + Math.max(x - r, 0)];
+            }
+        }
+        // and along the columns, row by row with one running sum per column
+        final float[] window = new float[width];
+        for (int y = -r; y <= r; y++) {
+            final int at = Math.min(Math.max(y, 0), height - 1) * width;
+            for (int x = 0; x < width; x++)
+                window[x] += scratch[at + x];
+        }
+        for (int y = 0; y < height; y++) {
+            final int at = y * width, enter = Math.min(y + r + 1, height - 1) * width, leave = Math.max(y - r, 0) * width;
+            for (int x = 0; x < width; x++) {
+                focus[at + x] = window[x];
+                window[x] += scratch[enter + x] - scratch[leave + x];
+            }
+        }
+    }
+
+    /**
+     * Bin a plane by averaging blocks of {@code bin x bin} pixels. Pixels beyond the last full block are dropped.
+     */
+    public static void bin(final short[] values, final int width, final int height, final int bin, final short[] binned) {
+        final int binned_width = width / bin, binned_height = height / bin, area = bin * bin;
+        final int[] row = new int[binned_width];
+        for (int by = 0; by < binned_height; by++) {
+            Arrays.fill(row, 0);
+            for (int y = by * bin; y < (by + 1) * bin; y++) {
+                final int at = y * width;
+                for (int bx = 0, x = 0; bx < binned_width; bx++)
+                    for (int end = x + bin; x < end; x++)
+                        row[bx] += values[at + x] & 0xffff;
+            }
+            for (int bx = 0; bx < binned_width; bx++)
+                binned[by * binned_width + bx] = (short) ((row[bx] + area / 2) / area);
+        }
+    }
+
+    /**
+     * Bin a plane by taking the first pixel of every block of {@code bin x bin} pixels. Only those pixels are read,
+     * so a mapped plane only pages in every bin-th row.
+     */
+    public static void subsample(final ShortBuffer plane, final int width, final int height, final int bin, final short[] binned) {
+        final int binned_width = width / bin, binned_height = height / bin;
+        for (int by = 0; by < binned_height; by++) {
+            final int at = by * bin * width;
+            for (int bx = 0; bx < binned_width; bx++)
+                binned[by * binned_width + bx] = plane.get(at + bx * bin);
+        }
+    }
+
+    /**
+     * Create a processor from a mapped 16-bit plane.
+     */
+    public static ImageProcessor processor(final ShortBuffer plane, final int width, final int height) {
+        final short[] pixels = new short[width * height];
+        plane.duplicate().get(pixels);
+        return new ShortProcessor(width, height, pixels, null);
+    }
+
+    /**
+     * Create a processor from a raw plane, the plane buffer can be reused afterwards.
+     */
+    public static ImageProcessor processor(final byte[] plane, final int width, final int height, final int bytes_per_pixel,
+                                           final boolean little_endian) {
+        if (bytes_per_pixel == 1)
+            return new ByteProcessor(width, height, plane.clone());
+        final short[] pixels = new short[width * height];
+        if (little_endian) {
+            for (int i = 0, j = 0; i < pixels.length; i++, j += 2)
+                pixels[i] = (short) ((plane[j] & 0xff) | (plane[j + 1] & 0xff) << 8);
+        } else {
+            for (int i = 0, j = 0; i < pixels.length; i++, j += 2)
+                pixels[i] = (short) ((plane[j] & 0xff) << 8 | (plane[j + 1] & 0xff));
+        }
+        return new ShortProcessor(width, height, pixels, null);
+    }
+
+    /**
+     * Pixels of an 8- or 16-bit processor as unsigned 16-bit values. 16-bit pixels are returned as they are.
+     */
+    public static short[] to_unsigned_short(final Object pixels) {
+        if (pixels instanceof short[])
+            return (short[]) pixels;
+        final byte[] bytes = (byte[]) pixels;
+        final short[] widened = new short[bytes.length];
+        for (int i = 0; i < bytes.length; i++)
+            widened[i] = (short) (bytes[i] & 0xff);
+        return widened;
+    }
+
+    /**
+     * Wrap an unsigned 16-bit buffer into a processor of the original bit depth.
+     */
+    public static ImageProcessor processor(final short[] pixels, final int width, final int height, final int bytes_per_pixel) {
+        if (bytes_per_pixel == 1) {
+            final byte[] narrowed = new byte[pixels.length];
+            for (int i = 0; i < pixels.length; i++)
+                narrowed[i] = (byte) pixels[i];
+            return new ByteProcessor(width, height, narrowed);
+        }
+        return new ShortProcessor(width, height, pixels, null);
+    }
+}
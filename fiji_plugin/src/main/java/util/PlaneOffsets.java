@@ -0,0 +1,119 @@
+package util;
+
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.ReaderWrapper;
+import loci.formats.in.LIFReader;
+
+import java.lang.reflect.Field;
+import java.util.List;
+
+/**
+ * Bio-Formats does not expose where the pixel data of a series is stored. LIF files keep it uncompressed in one memory
+ * block per LIF image, whose offsets the LIF reader holds in a private field. A tile scan is a single LIF image that
+ * the reader splits into one series per tile, the tiles are stored one after the other in its block. This digs out the
+ * offsets and gives the offset of every plane of a series, or null if that fails or the layout is not certain
+ * (different format, different Bio-Formats version, padded rows, ...).
+ */
+final class PlaneOffsets {
+
+    private PlaneOffsets() {
+    }
+
+    /**
+     * @param reader reader set to the series
+     */
+    static long[] planes(final IFormatReader reader, final int series, final long file_length) {
+        IFormatReader r = reader;
+        while (true) {
+            if (r instanceof ReaderWrapper)
+                r = ((ReaderWrapper) r).getReader();
+            else if (r instanceof ImageReader)
+                r = ((ImageReader) r).getReader();
+            else
+                break;
+        }
+        if (!(r instanceof LIFReader))
+            return null;
+        try {
+            final long[] image_offsets = longs(field(r, "offsets"));
+            final long[] tile_count = longs(field(r, "tileCount"));
+            if (image_offsets == null || tile_count == null)
+                return null;
+            long[] image_ends;
+            try {
+                image_ends = longs(field(r, "endPointer"));
+            } catch (ReflectiveOperationException e) {
+                image_ends = null;
+            }
+            return planes(image_offsets, tile_count, image_ends, file_length, series, reader.getImageCount(),
+                    reader.getSizeX(), reader.getSizeY(),
+                    FormatTools.getBytesPerPixel(reader.getPixelType()) * reader.getRGBChannelCount());
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The plane offsets of a series from the offsets of the LIF images, as the LIF reader computes them: the series is
+     * a tile of a LIF image, its planes follow each other after the planes of the tiles before it.
+     *
+     * @param image_ends end of the data of every LIF image, may be null
+     */
+    static long[] planes(final long[] image_offsets, final long[] tile_count, final long[] image_ends,
+                         final long file_length, final int series, final int image_count, final int size_x,
+                         final int size_y, final int bytes_per_pixel) {
+        int image = 0;
+        long tile = series;
+        while (image < tile_count.length && tile >= tile_count[image])
+            tile -= tile_count[image++];
+        if (image >= tile_count.length || image >= image_offsets.length || image_offsets[image] < 0)
+            return null;
+        final long plane_bytes = (long) size_x * size_y * bytes_per_pixel;
+        final long start = image_offsets[image];
+        final long end = image + 1 < image_offsets.length ? image_offsets[image + 1]
+                : image_ends != null && image < image_ends.length ? image_ends[image] : file_length;
+        final long data = plane_bytes * image_count * tile_count[image];
+        if (end - start < data)
+            return null;
+        // The reader skips bytes after every row if the block holds more than the planes, unless rows are a multiple of 4
+        if (size_x % 4 != 0 && (end - start - data) / size_y != 0)
+            return null;
+        // In the order of the reader, which MappedPlanes checks before relying on it
+        final long[] planes = new long[image_count];
+        final long first = start + tile * plane_bytes * image_count;
+        for (int i = 0; i < image_count; i++)
+            planes[i] = first + i * plane_bytes;
+        return planes;
+    }
+
+    private static Object field(final Object reader, final String name) throws ReflectiveOperationException {
+        final Field field = LIFReader.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(reader);
+    }
+
+    /**
+     * The values of a long[], int[] or a list of numbers, null for anything else.
+     */
+    private static long[] longs(final Object values) {
+        if (values instanceof long[])
+            return (long[]) values;
+        if (values instanceof int[]) {
+            final int[] ints = (int[]) values;
+            final long[] longs = new long[ints.length];
+            for (int i = 0; i < ints.length; i++)
+                longs[i] = ints[i];
+            return longs;
+        }
+        if (values instanceof List) {
+            final List<?> list = (List<?>) values;
+            final long[] longs = new long[list.size()];
+            for (int i = 0; i < longs.length; i++)
+                longs[i] = ((Number) list.get(i)).longValue();
+            return longs;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,26 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A stack file that takes raw planes in any order and is finished on {@link #close()}.
+ */
+public interface PlaneWriter extends Closeable {
+    /**
+     * Write one plane from a buffer, e.g. a mapped plane of the source file, without changing its position.
+     *
+     * @param plane zero-indexed plane number in the order of the file
+     */
+    void write(int plane, ByteBuffer data) throws IOException;
+
+    default void write(final int plane, final byte[] data) throws IOException {
+        write(plane, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Close and delete an incomplete file.
+     */
+    void abort();
+}
@@ -0,0 +1,212 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Renders a written stitch as an RGB PNG, as ImageJ does for a composite with channel LUTs: every channel is scaled
+ * to 8 bits with its display range, colored with the LUT of its channel color and the colors are added up. The
+ * display ranges come from the histograms the {@link StitchWriter} collected during the fusion, so the stitch is read
+ * back once, band by band. Bands are rendered, filtered and compressed in parallel, each into its own deflate stream
+ * that ends on a byte boundary (as pigz does), and written in order, so only a few bands are in memory at a time.
+ */
+public class PngExport {
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    // Pixels per band, bands are at least 16 and at most BLOCK_SIZE rows high
+    private static final int BAND_PIXELS = 1 << 20;
+    private static final int ADLER_BASE = 65521;
+
+    private PngExport() {
+    }
+
+    /**
+     * Heap used by the bands in flight: their pixels, RGB rows and compressed data.
+     */
+    public static long estimated_bytes(final int channels, final int threads) {
+        return (Math.max(1, threads) + 1L) * BAND_PIXELS * (channels * 2 + 3 + 2);
+    }
+
+    /**
+     * Write the PNG export of a closed stitch.
+     *
+     * @param colors channel colors, may be null or contain nulls for grey
+     */
+    public static void write(final StitchWriter stitch, final Channel[] colors, final File path, final int threads) throws IOException {
+        final int width = stitch.width, height = stitch.height;
+        final int[][] tables = tables(stitch, colors);
+        final int band_rows = Math.max(16, Math.min(BlendingFusion.BLOCK_SIZE, BAND_PIXELS / width));
+        final int bands = (height + band_rows - 1) / band_rows;
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try (FileChannel in = FileChannel.open(stitch.path.toPath(), StandardOpenOption.READ);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 20))) {
+            out.write(SIGNATURE);
+            final ByteBuffer header = ByteBuffer.allocate(13);
+            header.putInt(width).putInt(height).put((byte) 8).put((byte) 2) // 8-bit RGB
+                    .put((byte) 0).put((byte) 0).put((byte) 0); // Deflate, adaptive filters, not interlaced
+            chunk(out, "IHDR", header.array(), header.position());
+            // zlib header: deflate with a 32 KB window, no dictionary
+            chunk(out, "IDAT", new byte[]{0x78, 0x01}, 2);
+
+            final ArrayDeque<Future<Band>> pending = new ArrayDeque<>();
+            long adler = 1;
+            for (int next = 0, written = 0; written < bands; written++) {
+                for (; next < bands && pending.size() <= Math.max(1, threads); next++) {
+                    final int y = next * band_rows, rows = Math.min(band_rows, height - y);
+                    final boolean last = next == bands - 1;
+                    pending.add(pool.submit(() -> render(stitch, in, tables, y, rows, last)));
+                }
+                final Band band = pending.remove().get();
+                chunk(out, "IDAT", band.compressed, band.compressed.length);
+                adler = adler32_combine(adler, band.adler, band.length);
+            }
+            chunk(out, "IDAT", ByteBuffer.allocate(4).putInt((int) adler).array(), 4);
+            chunk(out, "IEND", new byte[0], 0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            path.delete();
+            throw new IOException("Interrupted while writing " + path.getName(), e);
+        } catch (ExecutionException e) {
+            path.delete();
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (IOException | RuntimeException e) {
+            path.delete();
+            throw e;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * The color of every pixel value of every channel, mapped like ImageJ's create8BitImage and the LUT of
+     * LUT.createLutFromColor.
+     */
+    private static int[][] tables(final StitchWriter stitch, final Channel[] colors) {
+        final int[][] ranges = stitch.ranges();
+        final int values = stitch.bytes_per_pixel == 1 ? 256 : 65536;
+        final int[][] tables = new int[stitch.channels][values];
+        for (int c = 0; c < stitch.channels; c++) {
+            final Channel color = colors != null && c < colors.length && colors[c] != null ? colors[c] : Channel.get_channel("Grays");
+            final int min = ranges[c][0];
+            final double scale = 256.0 / (ranges[c][1] - min + 1);
+            for (int v = 0; v < values; v++) {
+                final int index = (int) (Math.max(v - min, 0) * scale + 0.5);
+                tables[c][v] = color.rgb(Math.min(index, 255));
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * A band compressed as a deflate stream of its own, with the checksum of its filtered rows.
+     */
+    private static class Band {
+        final byte[] compressed;
+        final long adler;
+        final long length;
+
+        Band(final byte[] compressed, final long adler, final long length) {
+            this.compressed = compressed;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+
+    private static Band render(final StitchWriter stitch, final FileChannel in, final int[][] tables, final int y,
+                               final int rows, final boolean last) throws IOException {
+        final int width = stitch.width, channels = stitch.channels, line = 1 + 3 * width;
+        final short[][] values = new short[channels][rows * width];
+        for (int c = 0; c < channels; c++)
+            stitch.read(in, c, y, rows, values[c]);
+        final byte[] raw = new byte[rows * line];
+        for (int row = 0; row < rows; row++) {
+            final int at = row * line;
+            raw[at] = 1; // Sub filter: the difference to the pixel on the left
+            for (int x = 0, i = row * width; x < width; x++, i++) {
+                int r = 0, g = 0, b = 0;
+                for (int c = 0; c < channels; c++) {
+                    final int rgb = tables[c][values[c][i] & 0xffff];
+                    r += rgb >>> 16;
+                    g += (rgb >>> 8) & 0xff;
+                    b += rgb & 0xff;
+                }
+                raw[at + 1 + 3 * x] = (byte) Math.min(r, 255);
+                raw[at + 2 + 3 * x] = (byte) Math.min(g, 255);
+                raw[at + 3 + 3 * x] = (byte) Math.min(b, 255);
+            }
+            for (int k = line - 1; k > 3; k--)
+                raw[at + k] -= raw[at + k - 3];
+        }
+        final Adler32 adler = new Adler32();
+        adler.update(raw, 0, raw.length);
+
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4 + 64);
+        final byte[] buffer = new byte[1 << 16];
+        try {
+            deflater.setInput(raw);
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished())
+                    compressed.write(buffer, 0, deflater.deflate(buffer));
+            } else {
+                // A sync flush ends the stream of the band on a byte boundary without ending the whole stream
+                int n;
+                do {
+                    n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    compressed.write(buffer, 0, n);
+                } while (n == buffer.length);
+            }
+        } finally {
+            deflater.end();
+        }
+        return new Band(compressed.toByteArray(), adler.getValue(), raw.length);
+    }
+
+    private static void chunk(final DataOutputStream out, final String type, final byte[] data, final int length) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        crc.update(name);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(name);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Checksum of two pieces of data from the checksums of the pieces and the length of the second, as zlib's
+     * adler32_combine.
+     */
+    static long adler32_combine(final long adler1, final long adler2, final long length2) {
+        final long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = rem * sum1 % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE)
+            sum1 -= ADLER_BASE;
+        if (sum1 >= ADLER_BASE)
+            sum1 -= ADLER_BASE;
+        if (sum2 >= 2L * ADLER_BASE)
+            sum2 -= 2L * ADLER_BASE;
+        if (sum2 >= ADLER_BASE)
+            sum2 -= ADLER_BASE;
+        return sum1 | sum2 << 16;
+    }
+}
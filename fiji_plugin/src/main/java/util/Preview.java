@@ -0,0 +1,68 @@
+package util;
+
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.Set;
+
+/**
+ * Low-resolution projections for a quick first look at a tile scan. Every plane is binned right after it is read, so
+ * only the binned plane reaches the projection, and only every z_step-th plane is read at all. Subsampling picks one
+ * pixel per block instead of averaging; on mapped planes it only touches every bin-th row of the file.
+ */
+public class Preview {
+    public final int bin, z_step;
+    public final boolean subsample;
+
+    public Preview(final int bin, final int z_step, final boolean subsample) {
+        this.bin = Math.max(1, bin);
+        this.z_step = Math.max(1, z_step);
+        this.subsample = subsample;
+    }
+
+    /**
+     * Project one tile. The projections have the binned geometry, with the stage position scaled down alike.
+     */
+    public MaxProjection project(final Series series, final Set<Projection> projections, final RunReport report)
+            throws IOException, FormatException {
+        final Series binned = series.binned(bin, z_step);
+        final MaxProjection.Accumulator acc = new MaxProjection.Accumulator(binned, projections);
+        final int n = series.size_x * series.size_y;
+        final short[] values = new short[n], out = new short[binned.size_x * binned.size_y];
+        // Checked before borrowing, the check needs a reader of its own
+        final boolean mapped = series.file.mapped.supports(series);
+        final byte[] plane = mapped ? null : new byte[series.plane_bytes()];
+        final IFormatReader reader = series.file.readers.borrow(series.index);
+        try {
+            for (int z = 0; z < binned.size_z; z++) {
+                for (int c = 0; c < series.size_c; c++) {
+                    final int i = reader.getIndex(z * z_step, c, 0);
+                    try (RunReport.Span ignored = report.time("preview_read")) {
+                        if (mapped && subsample) {
+                            Pixels.subsample(series.file.mapped.plane(series, i), series.size_x, series.size_y, bin, out);
+                        } else {
+                            if (mapped) {
+                                series.file.mapped.plane(series, i).get(values);
+                            } else {
+                                reader.openBytes(i, plane);
+                                Pixels.values(plane, series.bytes_per_pixel(), series.little_endian, values);
+                            }
+                            if (subsample)
+                                Pixels.subsample(ShortBuffer.wrap(values), series.size_x, series.size_y, bin, out);
+                            else
+                                Pixels.bin(values, series.size_x, series.size_y, bin, out);
+                        }
+                    }
+                    report.read("preview_read", mapped && subsample ? (long) series.plane_bytes() / bin : series.plane_bytes());
+                    report.planes("preview_read", 1);
+                    acc.fold(c, z, ShortBuffer.wrap(out));
+                }
+            }
+        } finally {
+            series.file.readers.give_back(reader);
+        }
+        return new MaxProjection(acc);
+    }
+}
@@ -0,0 +1,46 @@
+package util;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * The projections a stitching job can compute, all in the same pass over the planes of a tile. The first selected
+ * projection in this order is used for the registration and the pyramid, so the ones that show the structures best
+ * come first.
+ */
+public enum Projection {
+    MAX("max", "MAX_", "Maximum"),
+    // Extended depth of field: every pixel taken from the plane where it is in focus
+    EDF("edf", "EDF_", "Extended depth of field"),
+    MEAN("mean", "AVG_", "Mean"),
+    STD("std", "STD_", "Standard deviation"),
+    // Z index of the plane where each pixel is in focus
+    FOCUS("focus", "FOCUS_", "Best focus index");
+
+    public final String key, prefix, label;
+
+    Projection(final String key, final String prefix, final String label) {
+        this.key = key;
+        this.prefix = prefix;
+        this.label = label;
+    }
+
+    /**
+     * Inserted into the names of output files, empty for the maximum, which keeps the names from before.
+     */
+    public String suffix() {
+        return this == MAX ? "" : "_" + key;
+    }
+
+    /**
+     * Bytes per pixel of the projection of a series. The focus index is always 16-bit, as stacks may have more than
+     * 256 planes.
+     */
+    public int bytes_per_pixel(final Series series) {
+        return this == FOCUS ? 2 : series.bytes_per_pixel();
+    }
+
+    public static Projection first(final Set<Projection> projections) {
+        return EnumSet.copyOf(projections).iterator().next();
+    }
+}
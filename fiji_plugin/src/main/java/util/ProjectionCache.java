@@ -0,0 +1,156 @@
+package util;
+
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps projections across stitching jobs, so re-stitching a tile scan with other settings or resuming an interrupted
+ * job does not project the tiles again. Entries are addressed by the content they were made from: the identity of the
+ * image file (size, modification time and header checksum, not its path), the series index and the projection. The
+ * cache is limited in size; the least recently used entries are evicted first. The size of every cache directory is
+ * kept as a running total, so the directory is only listed when the cache has to shrink.
+ */
+public class ProjectionCache {
+    // Changes whenever the way projections are computed changes, which invalidates all entries
+    private static final String VERSION = "v2";
+    private static final String SUFFIX = ".tif";
+    // Entries handed out to running jobs, which eviction must not delete
+    private static final Map<File, Integer> PINNED = new ConcurrentHashMap<>();
+    // Total size of the entries per cache directory, guarded by PINNED
+    private static final Map<File, Long> SIZES = new HashMap<>();
+
+    public final File dir;
+    private final long limit_bytes;
+    private final Map<File, String> identities = new ConcurrentHashMap<>();
+
+    /**
+     * @param limit_bytes size the cache is trimmed to once a new entry exceeds it
+     */
+    public ProjectionCache(final File dir, final long limit_bytes) {
+        this.dir = dir.getAbsoluteFile();
+        this.limit_bytes = limit_bytes;
+    }
+
+    /**
+     * The cached projection of a series, or null if there is none. A hit counts as a use for the eviction, and the
+     * entry is kept until it is {@link #unpin(File) unpinned}.
+     */
+    public File get(final Series series, final Projection projection) throws IOException {
+        final File entry = entry(series, projection);
+        PINNED.merge(entry, 1, Integer::sum);
+        if (!entry.isFile() || entry.length() == 0) {
+            unpin(entry);
+            return null;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        return entry;
+    }
+
+    public void unpin(final File entry) {
+        PINNED.computeIfPresent(entry, (f, n) -> n > 1 ? n - 1 : null);
+    }
+
+    /**
+     * Add a projection, then evict entries if the cache no longer fits into its limit.
+     */
+    public void put(final TileStore.Tile tile, final Projection projection) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create directory " + dir.getPath());
+        final File entry = entry(tile, projection);
+        // Written under a temporary name, so an interrupted write never looks like an entry
+        final File tmp = new File(dir, entry.getName() + ".tmp");
+        if (tile.spilled()) {
+            Files.copy(tile.file().toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } else if (!new FileSaver(tile.open()).saveAsTiff(tmp.getPath())) {
+            tmp.delete();
+            throw new IOException("Unable to write cache entry " + tmp.getPath());
+        }
+        final long replaced = entry.length();
+        try {
+            Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        // Jobs of the same session share the cache directory
+        synchronized (PINNED) {
+            final Long total = SIZES.get(dir);
+            final long size = total != null ? total + entry.length() - replaced : size();
+            SIZES.put(dir, size);
+            if (size > limit_bytes)
+                evict();
+        }
+    }
+
+    /**
+     * Total size of all entries.
+     */
+    public long size() {
+        long size = 0;
+        for (File f : entries())
+            size += f.length();
+        return size;
+    }
+
+    /**
+     * Delete the least recently used entries until the cache fits, called with PINNED held. The directory is listed
+     * again, which also corrects the running total for entries other sessions added or removed.
+     */
+    private void evict() {
+        final File[] entries = entries();
+        long size = 0;
+        for (File f : entries)
+            size += f.length();
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (File f : entries) {
+            if (size <= limit_bytes)
+                break;
+            if (PINNED.containsKey(f))
+                continue;
+            final long length = f.length();
+            if (f.delete())
+                size -= length;
+        }
+        SIZES.put(dir, size);
+    }
+
+    private File[] entries() {
+        final File[] entries = dir.listFiles(f -> f.isFile() && f.getName().endsWith(SUFFIX));
+        return entries != null ? entries : new File[0];
+    }
+
+    private File entry(final Series series, final Projection projection) throws IOException {
+        String identity = identities.get(series.file);
+        if (identity == null) {
+            identity = String.format("%d/%d/%d", series.file.length(), series.file.lastModified(),
+                    MetadataIndex.header_checksum(series.file));
+            identities.put(series.file, identity);
+        }
+        final String key = String.format("%s/%d/%d/%d/%d/%d/%d/%s-%s", identity, series.index, series.size_x, series.size_y,
+                series.size_c, series.size_z, series.pixel_type, projection.key, VERSION);
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder name = new StringBuilder();
+            for (byte b : digest)
+                name.append(String.format("%02x", b));
+            return new File(dir, name.append(SUFFIX).toString());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package util;
+
+import ij.CompositeImage;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.LUT;
+
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Multi-resolution pyramid of a stitch in the chunked Zarr (v2) layout with OME-NGFF multiscales metadata. Level 0
+ * has the full resolution, every further level halves both axes until the image fits into a single chunk. Chunks are
+ * zlib compressed and stored as {@code <level>/<channel>/<chunk y>/<chunk x>}.
+ */
+public class Pyramid {
+    public static final int CHUNK_SIZE = BlendingFusion.BLOCK_SIZE;
+    private static final Pattern SHAPE = Pattern.compile("\"shape\"\\s*:\\s*\\[\\s*(\\d+)\\s*,\\s*(\\d+)\\s*,\\s*(\\d+)\\s*]");
+    private static final Pattern DTYPE = Pattern.compile("\"dtype\"\\s*:\\s*\"[<>|]u(\\d)\"");
+    private static final Pattern SCALE = Pattern.compile("\"scale\"\\s*:\\s*\\[\\s*[^,]+,\\s*([^,\\s]+)\\s*,\\s*([^\\]\\s]+)\\s*]");
+    private static final Pattern COLOR = Pattern.compile("\"color\"\\s*:\\s*\"([0-9A-Fa-f]{6})\"");
+
+    public final File dir;
+    public final int channels, bytes_per_pixel;
+    public final int[] width, height;
+    // Pixel size of level 0 in micron, 0 if unknown
+    public final double cal_x, cal_y;
+    public final Color[] colors;
+
+    public Pyramid(final File dir) throws IOException {
+        this.dir = dir;
+        final List<int[]> shapes = new ArrayList<>();
+        int bpp = 0;
+        for (int level = 0; new File(dir, level + File.separator + ".zarray").isFile(); level++) {
+            final String zarray = read(new File(dir, level + File.separator + ".zarray"));
+            final Matcher shape = SHAPE.matcher(zarray), dtype = DTYPE.matcher(zarray);
+            if (!shape.find() || !dtype.find())
+                throw new IOException("Unsupported array in " + dir.getPath() + " at level " + level);
+            shapes.add(new int[]{Integer.parseInt(shape.group(1)), Integer.parseInt(shape.group(2)), Integer.parseInt(shape.group(3))});
+            bpp = Integer.parseInt(dtype.group(1));
+        }
+        if (shapes.isEmpty())
+            throw new IOException("No pyramid in " + dir.getPath());
+        this.channels = shapes.get(0)[0];
+        this.bytes_per_pixel = bpp;
+        this.width = new int[shapes.size()];
+        this.height = new int[shapes.size()];
+        for (int i = 0; i < shapes.size(); i++) {
+            height[i] = shapes.get(i)[1];
+            width[i] = shapes.get(i)[2];
+        }
+        final String zattrs = read(new File(dir, ".zattrs"));
+        final Matcher scale = SCALE.matcher(zattrs);
+        // Without a unit the scales are plain pixel factors
+        if (zattrs.contains("micrometer") && scale.find()) {
+            cal_y = Double.parseDouble(scale.group(1));
+            cal_x = Double.parseDouble(scale.group(2));
+        } else {
+            cal_x = cal_y = 0;
+        }
+        final List<Color> found = new ArrayList<>();
+        final Matcher color = COLOR.matcher(zattrs);
+        while (color.find())
+            found.add(new Color(Integer.parseInt(color.group(1), 16)));
+        this.colors = found.size() == channels ? found.toArray(new Color[0]) : null;
+    }
+
+    public int levels() {
+        return width.length;
+    }
+
+    /**
+     * Downsampling factor of a level relative to level 0.
+     */
+    public int scale(final int level) {
+        return 1 << level;
+    }
+
+    /**
+     * The highest resolution level that fits into the given size, or the smallest level if none does.
+     */
+    public int fitting_level(final int max_width, final int max_height) {
+        for (int level = 0; level < levels(); level++)
+            if (width[level] <= max_width && height[level] <= max_height)
+                return level;
+        return levels() - 1;
+    }
+
+    /**
+     * Read one level, with the channel colors and calibration of the stitch. Chunks are decompressed in parallel.
+     */
+    public ImagePlus open(final int level, final String title) throws IOException {
+        final int w = width[level], h = height[level];
+        final int chunks_x = (w + CHUNK_SIZE - 1) / CHUNK_SIZE, chunks_y = (h + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        final short[][] pixels = new short[channels][w * h];
+        try {
+            IntStream.range(0, channels * chunks_y * chunks_x).parallel().forEach(n -> {
+                final int c = n / (chunks_y * chunks_x), cy = n / chunks_x % chunks_y, cx = n % chunks_x;
+                final File chunk = new File(dir, String.format("%d/%d/%d/%d", level, c, cy, cx));
+                if (!chunk.isFile())
+                    return; // Chunks that were never written hold the fill value
+                try {
+                    read_chunk(chunk, pixels[c], w, h, cx * CHUNK_SIZE, cy * CHUNK_SIZE);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        final ImageStack stack = new ImageStack(w, h);
+        for (int c = 0; c < channels; c++)
+            stack.addSlice(Pixels.processor(pixels[c], w, h, bytes_per_pixel));
+        ImagePlus imp = new ImagePlus(title, stack);
+        imp.setDimensions(channels, 1, 1);
+        if (channels > 1)
+            imp = new CompositeImage(imp, IJ.COMPOSITE);
+        if (colors != null) {
+            for (int c = 0; c < channels; c++) {
+                final LUT lut = LUT.createLutFromColor(colors[c]);
+                if (imp.isComposite())
+                    ((CompositeImage) imp).setChannelLut(lut, c + 1);
+                else
+                    imp.setLut(lut);
+            }
+        }
+        if (cal_x > 0) {
+            imp.getCalibration().pixelWidth = cal_x * scale(level);
+            imp.getCalibration().pixelHeight = cal_y * scale(level);
+            imp.getCalibration().setUnit("micron");
+        }
+        return imp;
+    }
+
+    private void read_chunk(final File chunk, final short[] pixels, final int w, final int h, final int x0, final int y0) throws IOException {
+        final byte[] raw = new byte[CHUNK_SIZE * CHUNK_SIZE * bytes_per_pixel];
+        try (InflaterInputStream in = new InflaterInputStream(Files.newInputStream(chunk.toPath()))) {
+            int read = 0;
+            for (int n; read < raw.length && (n = in.read(raw, read, raw.length - read)) > 0; )
+                read += n;
+            if (read < raw.length)
+                throw new IOException("Truncated chunk " + chunk.getPath());
+        }
+        for (int y = 0; y < CHUNK_SIZE && y0 + y < h; y++) {
+            for (int x = 0; x < CHUNK_SIZE && x0 + x < w; x++) {
+                final int j = (y * CHUNK_SIZE + x) * bytes_per_pixel;
+                pixels[(y0 + y) * w + x0 + x] = bytes_per_pixel == 1 ? (short) (raw[j] & 0xff)
+                        : (short) ((raw[j] & 0xff) | (raw[j + 1] & 0xff) << 8);
+            }
+        }
+    }
+
+    private static String read(final File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+
+    private static void write(final File file, final String text) throws IOException {
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a pyramid band by band while the stitch is fused. Each level keeps one band of chunk height, when it is
+     * full its chunks are compressed in parallel and it is downsampled into the band of the next level.
+     */
+    public static class Writer implements BlendingFusion.BandSink {
+        private final File dir;
+        private final int channels, bytes_per_pixel;
+        private final Level first;
+
+        /**
+         * @param colors channel colors shown by viewers, may be null
+         */
+        public Writer(final File dir, final int width, final int height, final int channels, final int bytes_per_pixel,
+                      final double cal_x, final double cal_y, final Channel[] colors) throws IOException {
+            this.dir = dir;
+            this.channels = channels;
+            this.bytes_per_pixel = bytes_per_pixel;
+            delete(dir);
+            if (!dir.mkdirs())
+                throw new IOException("Unable to create directory " + dir.getPath());
+
+            final List<int[]> sizes = new ArrayList<>();
+            for (int w = width, h = height; ; w = (w + 1) / 2, h = (h + 1) / 2) {
+                sizes.add(new int[]{w, h});
+                if (w <= CHUNK_SIZE && h <= CHUNK_SIZE)
+                    break;
+            }
+            Level next = null;
+            for (int level = sizes.size() - 1; level >= 0; level--)
+                next = new Level(level, sizes.get(level)[0], sizes.get(level)[1], next);
+            this.first = next;
+
+            write(new File(dir, ".zgroup"), "{\"zarr_format\": 2}\n");
+            final StringBuilder datasets = new StringBuilder();
+            for (int level = 0; level < sizes.size(); level++) {
+                final double scale = 1 << level;
+                datasets.append(String.format("%s{\"path\": \"%d\", \"coordinateTransformations\": [{\"type\": \"scale\", \"scale\": [1, %s, %s]}]}",
+                        level > 0 ? ", " : "", level, cal_y > 0 ? cal_y * scale : scale, cal_x > 0 ? cal_x * scale : scale));
+            }
+            final StringBuilder omero = new StringBuilder();
+            for (int c = 0; colors != null && c < colors.length; c++) {
+                final String color = colors[c] == null ? "FFFFFF" : String.format("%02X%02X%02X", colors[c].R, colors[c].G, colors[c].B);
+                omero.append(String.format("%s{\"color\": \"%s\", \"active\": true}", c > 0 ? ", " : "", color));
+            }
+            final String unit = cal_x > 0 ? ", \"unit\": \"micrometer\"" : "";
+            write(new File(dir, ".zattrs"), String.format("{\"multiscales\": [{\"version\": \"0.4\", \"name\": \"%s\", " +
+                            "\"axes\": [{\"name\": \"c\", \"type\": \"channel\"}, {\"name\": \"y\", \"type\": \"space\"%s}, " +
+                            "{\"name\": \"x\", \"type\": \"space\"%s}], \"datasets\": [%s]}], \"omero\": {\"channels\": [%s]}}\n",
+                    dir.getName(), unit, unit, datasets, omero));
+        }
+
+        /**
+         * Add rows [band_y, band_end) of the fused canvas. Bands must be added top to bottom.
+         */
+        @Override
+        public void add_band(final short[][] band, final int band_y, final int band_end, final ForkJoinPool pool) throws IOException {
+            first.append(band, 0, band_end - band_y, pool);
+        }
+
+        private static void delete(final File file) {
+            final File[] children = file.listFiles();
+            if (children != null)
+                for (File child : children)
+                    delete(child);
+            file.delete();
+        }
+
+        private class Level {
+            private final int index, width, height;
+            private final Level next;
+            private final short[][] band;
+            private int band_y = 0, filled = 0;
+
+            private Level(final int index, final int width, final int height, final Level next) throws IOException {
+                this.index = index;
+                this.width = width;
+                this.height = height;
+                this.next = next;
+                this.band = new short[channels][width * CHUNK_SIZE];
+                final File level_dir = new File(dir, Integer.toString(index));
+                if (!level_dir.mkdirs())
+                    throw new IOException("Unable to create directory " + level_dir.getPath());
+                write(new File(level_dir, ".zarray"), String.format("{\"zarr_format\": 2, \"shape\": [%d, %d, %d], " +
+                                "\"chunks\": [1, %d, %d], \"dtype\": \"%s\", \"compressor\": {\"id\": \"zlib\", \"level\": 1}, " +
+                                "\"fill_value\": 0, \"order\": \"C\", \"filters\": null, \"dimension_separator\": \"/\"}\n",
+                        channels, height, width, CHUNK_SIZE, CHUNK_SIZE, bytes_per_pixel == 1 ? "|u1" : "<u2"));
+            }
+
+            /**
+             * Copy full rows of this level's width from src, starting at row src_y.
+             */
+            private void append(final short[][] src, final int src_y, final int rows, final ForkJoinPool pool) throws IOException {
+                for (int done = 0; done < rows; ) {
+                    final int n = Math.min(rows - done, CHUNK_SIZE - filled);
+                    for (int c = 0; c < channels; c++)
+                        System.arraycopy(src[c], (src_y + done) * width, band[c], filled * width, n * width);
+                    filled += n;
+                    done += n;
+                    if (filled == CHUNK_SIZE || band_y + filled == height)
+                        flush(pool);
+                }
+            }
+
+            private void flush(final ForkJoinPool pool) throws IOException {
+                final int chunks_x = (width + CHUNK_SIZE - 1) / CHUNK_SIZE, chunk_y = band_y / CHUNK_SIZE;
+                for (int c = 0; c < channels; c++) {
+                    final File row_dir = new File(dir, String.format("%d/%d/%d", index, c, chunk_y));
+                    if (!row_dir.isDirectory() && !row_dir.mkdirs())
+                        throw new IOException("Unable to create directory " + row_dir.getPath());
+                }
+                try {
+                    pool.submit(() -> IntStream.range(0, channels * chunks_x).parallel().forEach(n -> {
+                        try {
+                            write_chunk(n / chunks_x, chunk_y, n % chunks_x);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while writing the pyramid", e);
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof UncheckedIOException ? ((UncheckedIOException) e.getCause()).getCause()
+                            : new IOException(e.getCause());
+                }
+                if (next != null) {
+                    // 2x2 mean, edge pixels of odd sizes are averaged with themselves
+                    final int rows = (filled + 1) / 2;
+                    final short[][] half = new short[channels][next.width * rows];
+                    for (int c = 0; c < channels; c++) {
+                        final short[] s = band[c], d = half[c];
+                        for (int y = 0; y < rows; y++) {
+                            final int y0 = 2 * y * width, y1 = Math.min(2 * y + 1, filled - 1) * width;
+                            for (int x = 0; x < next.width; x++) {
+                                final int x0 = 2 * x, x1 = Math.min(2 * x + 1, width - 1);
+                                final int sum = (s[y0 + x0] & 0xffff) + (s[y0 + x1] & 0xffff) + (s[y1 + x0] & 0xffff) + (s[y1 + x1] & 0xffff);
+                                d[y * next.width + x] = (short) ((sum + 2) >> 2);
+                            }
+                        }
+                    }
+                    next.append(half, 0, rows, pool);
+                }
+                band_y += filled;
+                filled = 0;
+            }
+
+            private void write_chunk(final int c, final int chunk_y, final int chunk_x) throws IOException {
+                // Chunks are always complete, edge chunks are padded with the fill value
+                final byte[] raw = new byte[CHUNK_SIZE * CHUNK_SIZE * bytes_per_pixel];
+                final int x0 = chunk_x * CHUNK_SIZE, x_end = Math.min(x0 + CHUNK_SIZE, width);
+                for (int y = 0; y < filled; y++) {
+                    for (int x = x0; x < x_end; x++) {
+                        final int v = band[c][y * width + x], j = (y * CHUNK_SIZE + x - x0) * bytes_per_pixel;
+                        raw[j] = (byte) v;
+                        if (bytes_per_pixel == 2)
+                            raw[j + 1] = (byte) (v >> 8);
+                    }
+                }
+                final ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4);
+                final Deflater deflater = new Deflater(1);
+                try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater)) {
+                    out.write(raw);
+                } finally {
+                    deflater.end();
+                }
+                Files.write(new File(dir, String.format("%d/%d/%d/%d", index, c, chunk_y, chunk_x)).toPath(), compressed.toByteArray());
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package util;
+
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.ChannelSeparator;
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+import loci.formats.Memoizer;
+import loci.formats.services.OMEXMLService;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * A bounded pool of initialized readers for one image file. Parsing a LIF header takes long for big tile scans, so
+ * readers are created once, handed out with {@link #borrow(int)} and put back with {@link #give_back(IFormatReader)}.
+ * The readers are wrapped in a {@link Memoizer}, which keeps the parsed state in a .bfmemo file next to the image,
+ * so even creating a new reader does not parse the header again.
+ */
+public class ReaderPool implements Closeable {
+    public static final int DEFAULT_SIZE = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+
+    private final String path;
+    private final int size;
+    private final ArrayDeque<IFormatReader> idle;
+    private final ArrayList<IFormatReader> all;
+    private boolean closed = false;
+
+    public ReaderPool(final String path, final int size) {
+        this.path = path;
+        this.size = size;
+        this.idle = new ArrayDeque<>(size);
+        this.all = new ArrayList<>(size);
+    }
+
+    /**
+     * Get a reader set to the given series. Blocks if all readers are in use and the pool is full.
+     *
+     * @throws IOException if the pool is closed, also while waiting
+     */
+    public IFormatReader borrow(final int series) throws IOException, FormatException {
+        IFormatReader reader;
+        synchronized (this) {
+            while (true) {
+                if (closed)
+                    throw new IOException("Image file closed: " + path);
+                reader = idle.poll();
+                if (reader != null || all.size() < size)
+                    break;
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a reader of " + path);
+                }
+            }
+            // Reserve the place of a new reader
+            if (reader == null)
+                all.add(null);
+        }
+        if (reader == null)
+            reader = create();
+        reader.setSeries(series);
+        return reader;
+    }
+
+    public void give_back(final IFormatReader reader) {
+        synchronized (this) {
+            if (!closed) {
+                idle.add(reader);
+                notify();
+                return;
+            }
+        }
+        close_quietly(reader);
+    }
+
+    private IFormatReader create() throws IOException, FormatException {
+        final IFormatReader reader = new ChannelSeparator(new Memoizer());
+        try {
+            final OMEXMLService service = new ServiceFactory().getInstance(OMEXMLService.class);
+            reader.setMetadataStore(service.createOMEXMLMetadata());
+            reader.setId(path);
+        } catch (DependencyException | ServiceException e) {
+            release();
+            throw new FormatException(e);
+        } catch (IOException | FormatException | RuntimeException e) {
+            release();
+            throw e;
+        }
+        synchronized (this) {
+            // Closed while the reader was set up, its place is gone already
+            if (!closed) {
+                all.set(all.indexOf(null), reader);
+                return reader;
+            }
+        }
+        close_quietly(reader);
+        throw new IOException("Image file closed: " + path);
+    }
+
+    private synchronized void release() {
+        all.remove(null);
+        notify();
+    }
+
+    @Override
+    public void close() {
+        final ArrayList<IFormatReader> readers;
+        synchronized (this) {
+            closed = true;
+            readers = new ArrayList<>(all);
+            all.clear();
+            idle.clear();
+            notifyAll();
+        }
+        for (IFormatReader reader : readers)
+            if (reader != null)
+                close_quietly(reader);
+    }
+
+    private static void close_quietly(final IFormatReader reader) {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            // Nothing sensible to do here
+        }
+    }
+}
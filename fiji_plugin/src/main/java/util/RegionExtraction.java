@@ -0,0 +1,211 @@
+package util;
+
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Extracts the z-stack of a rectangle of the stitch that may span several tiles, into one TIFF per channel. Only the
+ * part of every plane of a tile that lies inside the rectangle is read, so the bytes read scale with the rectangle and
+ * not with the tiles. Overlaps are blended with the weights of the fusion. Planes are fused in parallel and each is
+ * written to its place in the stack as soon as it is done, so the files hold them in stack order.
+ */
+public class RegionExtraction {
+    public final int x, y, width, height;
+    public final int size_c, size_z, size_t;
+    // Contributing tiles with their part of the region, in region and in tile coordinates
+    public final List<Series> tiles = new ArrayList<>();
+    private final List<int[]> parts = new ArrayList<>();
+    private final List<float[]> weights = new ArrayList<>();
+    private final double[] total;
+    private final Series first;
+
+    /**
+     * @param series   tiles of one tile scan
+     * @param origin_x tile positions in full resolution pixels of the stitch
+     * @param origin_y tile positions in full resolution pixels of the stitch
+     * @param x        the region in full resolution pixels of the stitch
+     */
+    public RegionExtraction(final List<Series> series, final int[] origin_x, final int[] origin_y, final int x, final int y,
+                            final int width, final int height) throws IOException, FormatException {
+        this.x = x;
+        this.y = y;
+        this.width = width;
+        this.height = height;
+        this.total = new double[width * height];
+        for (int i = 0; i < series.size(); i++) {
+            final Series tile = series.get(i);
+            final int x0 = Math.max(x, origin_x[i]), x1 = Math.min(x + width, origin_x[i] + tile.size_x);
+            final int y0 = Math.max(y, origin_y[i]), y1 = Math.min(y + height, origin_y[i] + tile.size_y);
+            if (x0 >= x1 || y0 >= y1)
+                continue;
+            // Region x, y, tile x, y, width, height
+            final int[] part = {x0 - x, y0 - y, x0 - origin_x[i], y0 - origin_y[i], x1 - x0, y1 - y0};
+            final float[] weight = new float[part[4] * part[5]];
+            for (int j = 0; j < part[5]; j++) {
+                final double wy = BlendingFusion.axis_weight(part[3] + j, tile.size_y);
+                for (int k = 0; k < part[4]; k++) {
+                    weight[j * part[4] + k] = (float) BlendingFusion.weight(BlendingFusion.axis_weight(part[2] + k, tile.size_x), wy);
+                    total[(part[1] + j) * width + part[0] + k] += weight[j * part[4] + k];
+                }
+            }
+            tiles.add(tile);
+            parts.add(part);
+            weights.add(weight);
+        }
+        if (tiles.isEmpty())
+            throw new IOException("No tiles in the region");
+        this.first = tiles.get(0);
+        Pixels.check_supported(first.pixel_type);
+        for (Series tile : tiles)
+            if (tile.size_c != first.size_c || tile.size_z != first.size_z || tile.size_t != first.size_t || tile.pixel_type != first.pixel_type)
+                throw new IOException(String.format("Tiles %s and %s differ in size or pixel type", first.mp_title, tile.mp_title));
+        this.size_c = first.size_c;
+        this.size_z = first.size_z;
+        this.size_t = first.size_t;
+    }
+
+    /**
+     * Bytes read per plane, summed over the tiles.
+     */
+    public long plane_bytes_read() {
+        long bytes = 0;
+        for (int[] part : parts)
+            bytes += (long) part[4] * part[5] * first.bytes_per_pixel();
+        return bytes;
+    }
+
+    /**
+     * Fuse and write every plane, the channel files are written to {@code <base_path>_channel_<c>.tif}.
+     */
+    public File[] run(final File base_path, final int threads, final RunReport report) throws IOException, InterruptedException {
+        final File[] paths = new File[size_c];
+        for (int c = 0; c < size_c; c++) {
+            paths[c] = new File(base_path.getPath() + "_channel_" + c + ".tif");
+            if (paths[c].exists())
+                throw new IOException("Output file exists: " + paths[c].getPath());
+        }
+        final int bytes_per_pixel = first.bytes_per_pixel();
+        final TiffWriter[] writers = new TiffWriter[size_c];
+        final ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            for (int c = 0; c < size_c; c++)
+                writers[c] = new TiffWriter(paths[c], width, height, bytes_per_pixel, true, size_z, size_t, first.cal_x, first.cal_y);
+            pool.submit(() -> IntStream.range(0, size_c * size_z * size_t).parallel().forEach(n -> {
+                final int c = n % size_c, z = n / size_c % size_z, t = n / (size_c * size_z);
+                try {
+                    final short[] plane = fuse(c, z, t, report);
+                    final ByteBuffer data = ByteBuffer.allocate(plane.length * bytes_per_pixel).order(ByteOrder.LITTLE_ENDIAN);
+                    if (bytes_per_pixel == 1) {
+                        for (short v : plane)
+                            data.put((byte) v);
+                        data.flip();
+                    } else {
+                        data.asShortBuffer().put(plane);
+                    }
+                    // Planes finish in any order, the writer puts each at its own offset
+                    try (RunReport.Span ignored = report.time("extraction_write")) {
+                        writers[c].write(z + t * size_z, data);
+                    }
+                    report.written("extraction_write", data.remaining());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (FormatException e) {
+                    throw new UncheckedIOException(new IOException(e));
+                }
+            })).get();
+            for (TiffWriter writer : writers)
+                writer.close();
+        } catch (ExecutionException e) {
+            abort(writers);
+            throw e.getCause() instanceof UncheckedIOException ? ((UncheckedIOException) e.getCause()).getCause()
+                    : new IOException(e.getCause());
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            abort(writers);
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+        return paths;
+    }
+
+    /**
+     * Blend the parts of one plane of all tiles.
+     */
+    private short[] fuse(final int c, final int z, final int t, final RunReport report) throws IOException, FormatException {
+        final double[] sum = new double[width * height];
+        for (int i = 0; i < tiles.size(); i++) {
+            final Series tile = tiles.get(i);
+            final int[] part = parts.get(i);
+            final float[] weight = weights.get(i);
+            final short[] values = read(tile, c, z, t, part, report);
+            for (int j = 0; j < part[5]; j++) {
+                final int row = (part[1] + j) * width + part[0];
+                for (int k = 0; k < part[4]; k++)
+                    sum[row + k] += weight[j * part[4] + k] * (values[j * part[4] + k] & 0xffff);
+            }
+        }
+        final short[] plane = new short[width * height];
+        for (int j = 0; j < plane.length; j++)
+            if (total[j] > 0)
+                plane[j] = (short) Math.min(65535, Math.round(sum[j] / total[j]));
+        return plane;
+    }
+
+    /**
+     * Read the part of one plane of a tile, from the mapping if the file supports it, otherwise as a region of the
+     * reader.
+     */
+    private static short[] read(final Series tile, final int c, final int z, final int t, final int[] part,
+                                final RunReport report) throws IOException, FormatException {
+        final int bytes_per_pixel = tile.bytes_per_pixel(), row_bytes = part[4] * bytes_per_pixel;
+        final byte[] bytes = new byte[row_bytes * part[5]];
+        final boolean mapped = tile.file.mapped.supports(tile);
+        try (RunReport.Span ignored = report.time("extraction_read")) {
+            final IFormatReader reader = tile.file.readers.borrow(tile.index);
+            try {
+                final int index = reader.getIndex(z, c, t);
+                if (mapped) {
+                    final ByteBuffer plane = tile.file.mapped.bytes(tile, index);
+                    final int start = plane.position();
+                    for (int j = 0; j < part[5]; j++) {
+                        final ByteBuffer row = plane.duplicate();
+                        row.position(start + ((part[3] + j) * tile.size_x + part[2]) * bytes_per_pixel);
+                        row.get(bytes, j * row_bytes, row_bytes);
+                    }
+                } else {
+                    reader.openBytes(index, bytes, part[2], part[3], part[4], part[5]);
+                }
+            } finally {
+                tile.file.readers.give_back(reader);
+            }
+        }
+        report.read("extraction_read", bytes.length);
+        report.planes("extraction_read", 1);
+        final short[] values = new short[part[4] * part[5]];
+        if (bytes_per_pixel == 1) {
+            for (int i = 0; i < values.length; i++)
+                values[i] = (short) (bytes[i] & 0xff);
+        } else {
+            ByteBuffer.wrap(bytes).order(tile.little_endian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN)
+                    .asShortBuffer().get(values);
+        }
+        return values;
+    }
+
+    private static void abort(final TiffWriter[] writers) {
+        for (TiffWriter writer : writers)
+            if (writer != null)
+                writer.abort();
+    }
+}
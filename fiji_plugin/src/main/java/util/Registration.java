@@ -0,0 +1,310 @@
+package util;
+
+import ij.ImagePlus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Refines the stage positions of the tiles by phase correlation. Only pairs of tiles that overlap according to the
+ * stage positions are registered, and only on their overlap strips. The pairwise shifts are then combined into
+ * final positions by a global least-squares optimization, dropping links with the thresholds of the stitching plugin.
+ * Tiles are cut row by row in the order of their stage positions and every pair is correlated as soon as both of its
+ * strips are there, so only the strips of pairs that reach past the tiles cut so far are held at once.
+ */
+public class Registration {
+    public static final double REGRESSION_THRESHOLD = 0.30;
+    public static final double RELATIVE_THRESHOLD = 2.50;
+    public static final double ABSOLUTE_THRESHOLD = 3.50;
+    // Pairs whose overlap is narrower than this are not registered
+    public static final int MIN_OVERLAP = 16;
+
+    public final double[] position_x, position_y;
+    // Number of overlapping pairs, links above the regression threshold and links left after optimization
+    public final int pairs, links_found, links_kept;
+
+    private final List<TileStore.Tile> tiles;
+
+    private static class Link {
+        final int i, j;
+        // Overlap strip in the rounded stage coordinates
+        final int x, y, width, height;
+        float[] strip_i, strip_j;
+        double dx, dy, r;
+
+        Link(int i, int j, int x, int y, int width, int height) {
+            this.i = i;
+            this.j = j;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    public Registration(final List<TileStore.Tile> tiles, final double[] stage_x, final double[] stage_y, final int threads)
+            throws IOException, InterruptedException {
+        this.tiles = tiles;
+        final int n = tiles.size();
+        final long[] origin_x = round(stage_x), origin_y = round(stage_y);
+        final List<Link> candidates = candidates(tiles, origin_x, origin_y);
+        this.pairs = candidates.size();
+        final List<List<Link>> adjacent = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            adjacent.add(new ArrayList<>());
+        for (Link link : candidates) {
+            adjacent.get(link.i).add(link);
+            adjacent.get(link.j).add(link);
+        }
+
+        final int[] order = order(origin_x, origin_y);
+        final AtomicInteger next = new AtomicInteger();
+        final ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+        try {
+            // Every worker takes the next tile in order, opens it once to cut all of its strips and correlates the
+            // pairs it completes
+            pool.submit(() -> IntStream.range(0, Math.max(1, threads)).parallel().forEach(worker -> {
+                for (int k = next.getAndIncrement(); k < n; k = next.getAndIncrement()) {
+                    final int t = order[k];
+                    try {
+                        for (Link link : cut_strips(t, adjacent.get(t), origin_x[t], origin_y[t]))
+                            correlate(link, origin_x, origin_y);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            })).get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause() instanceof RuntimeException && e.getCause().getCause() != null
+                    ? e.getCause().getCause() : e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException("Registration of the tiles failed", cause);
+        } finally {
+            pool.shutdown();
+        }
+
+        final List<Link> links = new ArrayList<>();
+        for (Link link : candidates)
+            if (link.r >= REGRESSION_THRESHOLD)
+                links.add(link);
+        this.links_found = links.size();
+
+        this.position_x = stage_x.clone();
+        this.position_y = stage_y.clone();
+        while (true) {
+            optimize(links, stage_x, stage_y);
+            if (links.isEmpty())
+                break;
+            double sum = 0, max = -1;
+            Link worst = null;
+            for (Link link : links) {
+                final double error = Math.hypot(position_x[link.j] - position_x[link.i] - link.dx,
+                        position_y[link.j] - position_y[link.i] - link.dy);
+                sum += error;
+                if (error > max) {
+                    max = error;
+                    worst = link;
+                }
+            }
+            final double avg = sum / links.size();
+            if ((avg * RELATIVE_THRESHOLD < max && max > 0.95) || avg > ABSOLUTE_THRESHOLD)
+                links.remove(worst);
+            else
+                break;
+        }
+        this.links_kept = links.size();
+    }
+
+    /**
+     * Rough peak heap use of a registration: the strips waiting for the other tile of their pair while the tiles are
+     * cut in order, and an opened tile with its unsigned copy and the correlation buffers for every thread.
+     */
+    public static long estimated_bytes(final List<? extends Series> tiles, final double[] stage_x, final double[] stage_y,
+                                       final int threads) {
+        final long[] origin_x = round(stage_x), origin_y = round(stage_y);
+        final List<Link> candidates = candidates(tiles, origin_x, origin_y);
+        final int[] rank = new int[tiles.size()];
+        final int[] order = order(origin_x, origin_y);
+        for (int k = 0; k < order.length; k++)
+            rank[order[k]] = k;
+        // Strip bytes added when the first tile of a pair is cut and freed with the second one
+        final long[] change = new long[tiles.size() + 1];
+        long workspace = 0;
+        for (Link link : candidates) {
+            final long bytes = (long) link.width * link.height * Float.BYTES;
+            change[Math.min(rank[link.i], rank[link.j])] += bytes;
+            change[Math.max(rank[link.i], rank[link.j]) + 1] -= bytes;
+            workspace = Math.max(workspace, PhaseCorrelation.workspace_bytes(link.width, link.height));
+        }
+        long strips = 0, peak = 0;
+        for (long c : change) {
+            strips += c;
+            peak = Math.max(peak, strips);
+        }
+        long tile = 0;
+        for (Series s : tiles)
+            tile = Math.max(tile, (long) s.size_x * s.size_y * s.size_c * 2 * 2);
+        return peak + Math.max(1, threads) * (tile + workspace);
+    }
+
+    private static long[] round(final double[] positions) {
+        final long[] rounded = new long[positions.length];
+        for (int i = 0; i < positions.length; i++)
+            rounded[i] = Math.round(positions[i]);
+        return rounded;
+    }
+
+    /**
+     * Pairs that overlap according to the stage positions.
+     */
+    private static List<Link> candidates(final List<? extends Series> tiles, final long[] origin_x, final long[] origin_y) {
+        final List<Link> candidates = new ArrayList<>();
+        for (int i = 0; i < tiles.size(); i++) {
+            for (int j = i + 1; j < tiles.size(); j++) {
+                final long x0 = Math.max(origin_x[i], origin_x[j]);
+                final long x1 = Math.min(origin_x[i] + tiles.get(i).size_x, origin_x[j] + tiles.get(j).size_x);
+                final long y0 = Math.max(origin_y[i], origin_y[j]);
+                final long y1 = Math.min(origin_y[i] + tiles.get(i).size_y, origin_y[j] + tiles.get(j).size_y);
+                if (x1 - x0 >= MIN_OVERLAP && y1 - y0 >= MIN_OVERLAP)
+                    candidates.add(new Link(i, j, (int) x0, (int) y0, (int) (x1 - x0), (int) (y1 - y0)));
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Tile indices row by row, top to bottom and left to right.
+     */
+    private static int[] order(final long[] origin_x, final long[] origin_y) {
+        return IntStream.range(0, origin_x.length).boxed()
+                .sorted(Comparator.<Integer>comparingLong(t -> origin_y[t]).thenComparingLong(t -> origin_x[t]))
+                .mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Cut the overlap strips of one tile, averaged over all channels.
+     *
+     * @param links the pairs of the tile
+     * @return the pairs whose strips are both cut now
+     */
+    private List<Link> cut_strips(final int t, final List<Link> links, final long origin_x, final long origin_y)
+            throws IOException {
+        final List<Link> complete = new ArrayList<>();
+        if (links.isEmpty())
+            return complete;
+        final TileStore.Tile tile = tiles.get(t);
+        final ImagePlus imp = tile.open();
+        final short[][] pixels = new short[tile.size_c][];
+        for (int c = 0; c < tile.size_c; c++)
+            pixels[c] = Pixels.to_unsigned_short(imp.getStack().getProcessor(c + 1).getPixels());
+        for (Link link : links) {
+            final float[] strip = new float[link.width * link.height];
+            final int x0 = (int) (link.x - origin_x), y0 = (int) (link.y - origin_y);
+            for (int y = 0; y < link.height; y++) {
+                for (int x = 0; x < link.width; x++) {
+                    float sum = 0;
+                    for (short[] channel : pixels)
+                        sum += channel[(y0 + y) * tile.size_x + x0 + x] & 0xffff;
+                    strip[y * link.width + x] = sum / pixels.length;
+                }
+            }
+            synchronized (link) {
+                if (link.i == t)
+                    link.strip_i = strip;
+                else
+                    link.strip_j = strip;
+                if (link.strip_i != null && link.strip_j != null)
+                    complete.add(link);
+            }
+        }
+        return complete;
+    }
+
+    /**
+     * Correlate the strips of a pair and drop them.
+     */
+    private static void correlate(final Link link, final long[] origin_x, final long[] origin_y) {
+        final float[] strip_i, strip_j;
+        synchronized (link) {
+            strip_i = link.strip_i;
+            strip_j = link.strip_j;
+            link.strip_i = link.strip_j = null;
+        }
+        final PhaseCorrelation.Shift shift = PhaseCorrelation.compute(strip_i, strip_j, link.width, link.height);
+        link.r = shift != null ? shift.r : -1;
+        if (shift != null) {
+            link.dx = origin_x[link.j] - origin_x[link.i] + shift.x;
+            link.dy = origin_y[link.j] - origin_y[link.i] + shift.y;
+        }
+    }
+
+    /**
+     * Least-squares positions for the given links. In every connected group of tiles the tile with the lowest index
+     * keeps its stage position, tiles without links keep theirs as well.
+     */
+    private void optimize(final List<Link> links, final double[] stage_x, final double[] stage_y) {
+        final int n = tiles.size();
+        final List<List<Link>> adjacent = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            adjacent.add(new ArrayList<>());
+        for (Link link : links) {
+            adjacent.get(link.i).add(link);
+            adjacent.get(link.j).add(link);
+        }
+        // Fix the first tile of every connected group
+        final boolean[] fixed = new boolean[n], seen = new boolean[n];
+        final int[] queue = new int[n];
+        for (int root = 0; root < n; root++) {
+            if (seen[root])
+                continue;
+            fixed[root] = true;
+            seen[root] = true;
+            int head = 0, tail = 0;
+            queue[tail++] = root;
+            while (head < tail) {
+                final int k = queue[head++];
+                for (Link link : adjacent.get(k)) {
+                    final int other = link.i == k ? link.j : link.i;
+                    if (!seen[other]) {
+                        seen[other] = true;
+                        queue[tail++] = other;
+                    }
+                }
+            }
+        }
+        System.arraycopy(stage_x, 0, position_x, 0, n);
+        System.arraycopy(stage_y, 0, position_y, 0, n);
+        // Gauss-Seidel iterations on the normal equations
+        for (int iteration = 0; iteration < 100000; iteration++) {
+            double change = 0;
+            for (int k = 0; k < n; k++) {
+                if (fixed[k] || adjacent.get(k).isEmpty())
+                    continue;
+                double x = 0, y = 0;
+                for (Link link : adjacent.get(k)) {
+                    if (link.i == k) {
+                        x += position_x[link.j] - link.dx;
+                        y += position_y[link.j] - link.dy;
+                    } else {
+                        x += position_x[link.i] + link.dx;
+                        y += position_y[link.i] + link.dy;
+                    }
+                }
+                x /= adjacent.get(k).size();
+                y /= adjacent.get(k).size();
+                change = Math.max(change, Math.max(Math.abs(x - position_x[k]), Math.abs(y - position_y[k])));
+                position_x[k] = x;
+                position_y[k] = y;
+            }
+            if (change < 1e-4)
+                break;
+        }
+    }
+}
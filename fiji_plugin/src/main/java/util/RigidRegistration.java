@@ -0,0 +1,404 @@
+package util;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Rigid 3D registration of two z-stacks on one channel, e.g. the fiducials imaged before and after milling, the same
+ * as the Matlab script did. The metric is the normalized mutual information of the overlap, maximized by a compass
+ * search from the coarsest to the finest level of a pyramid. The metric is evaluated in parallel over slabs of planes
+ * of the fixed stack, and resampling runs in parallel over the planes.
+ * <p>
+ * The transformation maps a point of the fixed stack, in micron, to the moving stack: it is rotated about the center
+ * of the fixed stack by the angles rx, ry and rz (in that order, in radians) and shifted by tx, ty and tz.
+ */
+public class RigidRegistration {
+    public static final int BINS = 32;
+    // Samples of the metric per evaluation at most, larger levels use every n-th voxel in x and y
+    public static final long MAX_SAMPLES = 1 << 21;
+    // Levels are not made smaller than this in x and y
+    public static final int MIN_SIZE = 32;
+    // Percentage of the voxels outside the intensity range used for the bins
+    public static final double SATURATED = 0.2;
+    public static final int MAX_EVALUATIONS_PER_LEVEL = 2000;
+
+    // rx, ry, rz, tx, ty, tz
+    public final double[] parameters;
+    public final double metric;
+    public final int levels, evaluations;
+
+    private final Volume fixed;
+    private final int threads;
+    // Rotation center and distance of the corners from it, which turns angles into displacements
+    private final double center_x, center_y, center_z, radius;
+
+    /**
+     * A z-stack of 16-bit planes with its voxel size in micron. The origin is the position of the first voxel, which
+     * moves by half a voxel on every level of the pyramid.
+     */
+    public static class Volume {
+        public final int width, height, depth;
+        public final double cal_x, cal_y, cal_z;
+        public final double origin_x, origin_y, origin_z;
+        public final short[][] planes;
+
+        public Volume(final short[][] planes, final int width, final int height, final double cal_x, final double cal_y,
+                      final double cal_z) {
+            this(planes, width, height, cal_x, cal_y, cal_z, 0, 0, 0);
+        }
+
+        private Volume(final short[][] planes, final int width, final int height, final double cal_x, final double cal_y,
+                       final double cal_z, final double origin_x, final double origin_y, final double origin_z) {
+            this.planes = planes;
+            this.width = width;
+            this.height = height;
+            this.depth = planes.length;
+            this.cal_x = cal_x;
+            this.cal_y = cal_y;
+            this.cal_z = cal_z;
+            this.origin_x = origin_x;
+            this.origin_y = origin_y;
+            this.origin_z = origin_z;
+        }
+
+        /**
+         * The planes of a stack. The pixel size is taken from the image if it is calibrated in micron.
+         */
+        public static Volume of(final ImagePlus imp, final double cal_xy, final double cal_z) {
+            final ImageStack stack = imp.getStack();
+            final short[][] planes = new short[stack.getSize()][];
+            for (int z = 0; z < planes.length; z++)
+                planes[z] = Pixels.to_unsigned_short(stack.getPixels(z + 1));
+            final Calibration cal = imp.getCalibration();
+            final boolean micron = cal.scaled() && (cal.getUnit().equals("micron") || cal.getUnit().equals("\u00b5m") || cal.getUnit().equals("um"));
+            return new Volume(planes, imp.getWidth(), imp.getHeight(), micron ? cal.pixelWidth : cal_xy,
+                    micron ? cal.pixelHeight : cal_xy, cal_z);
+        }
+
+        public ImagePlus image(final String title) {
+            final ImageStack stack = new ImageStack(width, height);
+            for (short[] plane : planes)
+                stack.addSlice(new ShortProcessor(width, height, plane, null));
+            final ImagePlus imp = new ImagePlus(title, stack);
+            imp.getCalibration().pixelWidth = cal_x;
+            imp.getCalibration().pixelHeight = cal_y;
+            imp.getCalibration().pixelDepth = cal_z;
+            imp.getCalibration().setUnit("micron");
+            return imp;
+        }
+
+        /**
+         * The next level of the pyramid: 2 x 2 voxels averaged in x and y, and 2 planes in z while the planes are
+         * closer than the new pixel size.
+         */
+        Volume half(final ForkJoinPool pool) throws InterruptedException, ExecutionException {
+            final boolean bin_z = depth >= 8 && cal_z < 2 * cal_x;
+            final int w = width / 2, h = height / 2, d = bin_z ? depth / 2 : depth, dz = bin_z ? 2 : 1;
+            final short[][] binned = new short[d][];
+            pool.submit(() -> IntStream.range(0, d).parallel().forEach(k -> {
+                final short[] plane = new short[w * h];
+                for (int y = 0; y < h; y++) {
+                    for (int x = 0; x < w; x++) {
+                        int sum = 0;
+                        for (int z = k * dz; z < (k + 1) * dz; z++) {
+                            final short[] source = planes[z];
+                            final int at = 2 * y * width + 2 * x;
+                            sum += (source[at] & 0xffff) + (source[at + 1] & 0xffff)
+                                    + (source[at + width] & 0xffff) + (source[at + width + 1] & 0xffff);
+                        }
+                        plane[y * w + x] = (short) ((sum + 2 * dz) / (4 * dz));
+                    }
+                }
+                binned[k] = plane;
+            })).get();
+            return new Volume(binned, w, h, 2 * cal_x, 2 * cal_y, dz * cal_z,
+                    origin_x + cal_x / 2, origin_y + cal_y / 2, bin_z ? origin_z + cal_z / 2 : origin_z);
+        }
+
+        /**
+         * Trilinear interpolation at voxel coordinates, the caller checks that they are inside.
+         */
+        double value(final double x, final double y, final double z) {
+            final int x0 = (int) x, y0 = (int) y, z0 = (int) z;
+            final int x1 = Math.min(x0 + 1, width - 1), y1 = Math.min(y0 + 1, height - 1), z1 = Math.min(z0 + 1, depth - 1);
+            final double fx = x - x0, fy = y - y0, fz = z - z0;
+            return plane_value(planes[z0], x0, x1, y0, y1, fx, fy) * (1 - fz) + plane_value(planes[z1], x0, x1, y0, y1, fx, fy) * fz;
+        }
+
+        private double plane_value(final short[] plane, final int x0, final int x1, final int y0, final int y1,
+                                   final double fx, final double fy) {
+            final double top = (plane[y0 * width + x0] & 0xffff) * (1 - fx) + (plane[y0 * width + x1] & 0xffff) * fx;
+            final double bottom = (plane[y1 * width + x0] & 0xffff) * (1 - fx) + (plane[y1 * width + x1] & 0xffff) * fx;
+            return top * (1 - fy) + bottom * fy;
+        }
+
+        boolean inside(final double x, final double y, final double z) {
+            return x >= 0 && y >= 0 && z >= 0 && x <= width - 1 && y <= height - 1 && z <= depth - 1;
+        }
+
+        /**
+         * Saturated intensity range of the whole stack.
+         */
+        int[] range() {
+            final int[] bins = new int[65536];
+            for (short[] plane : planes)
+                Kernels.get().histogram(plane, plane.length, bins, 0);
+            return Pixels.saturated_range(bins, (long) width * height * depth, SATURATED);
+        }
+    }
+
+    /**
+     * One level of the pyramid, with the fixed stack already reduced to bins.
+     */
+    private static class Level {
+        final Volume fixed, moving;
+        final byte[][] fixed_bins;
+        final int stride;
+        final long samples;
+        final double moving_low, moving_scale;
+
+        Level(final Volume fixed, final Volume moving, final int[] fixed_range, final int[] moving_range) {
+            this.fixed = fixed;
+            this.moving = moving;
+            this.stride = (int) Math.max(1, Math.ceil(Math.sqrt((double) fixed.width * fixed.height * fixed.depth / MAX_SAMPLES)));
+            this.samples = (long) ((fixed.width + stride - 1) / stride) * ((fixed.height + stride - 1) / stride) * fixed.depth;
+            final double fixed_scale = BINS / (fixed_range[1] - fixed_range[0] + 1.0);
+            this.fixed_bins = new byte[fixed.depth][fixed.width * fixed.height];
+            for (int z = 0; z < fixed.depth; z++)
+                for (int i = 0; i < fixed_bins[z].length; i++)
+                    fixed_bins[z][i] = (byte) bin(fixed.planes[z][i] & 0xffff, fixed_range[0], fixed_scale);
+            this.moving_low = moving_range[0];
+            this.moving_scale = BINS / (moving_range[1] - moving_range[0] + 1.0);
+        }
+
+        static int bin(final double value, final double low, final double scale) {
+            return Math.min(BINS - 1, Math.max(0, (int) ((value - low) * scale)));
+        }
+    }
+
+    /**
+     * Register the moving stack to the fixed stack, on the given number of pyramid levels.
+     *
+     * @param threads threads evaluating the metric and resampling
+     */
+    public RigidRegistration(final Volume fixed, final Volume moving, final int levels, final int threads, final RunReport report)
+            throws InterruptedException, ExecutionException {
+        this.fixed = fixed;
+        this.threads = Math.max(1, threads);
+        this.center_x = fixed.origin_x + (fixed.width - 1) * fixed.cal_x / 2;
+        this.center_y = fixed.origin_y + (fixed.height - 1) * fixed.cal_y / 2;
+        this.center_z = fixed.origin_z + (fixed.depth - 1) * fixed.cal_z / 2;
+        this.radius = Math.max(1e-6, Math.sqrt(Math.pow(center_x - fixed.origin_x, 2) + Math.pow(center_y - fixed.origin_y, 2)
+                + Math.pow(center_z - fixed.origin_z, 2)));
+        final ForkJoinPool pool = new ForkJoinPool(this.threads);
+        try {
+            // Pyramid, finest level first
+            final List<Level> pyramid = new ArrayList<>();
+            try (RunReport.Span ignored = report.time("pyramid")) {
+                final int[] fixed_range = fixed.range(), moving_range = moving.range();
+                Volume f = fixed, m = moving;
+                pyramid.add(new Level(f, m, fixed_range, moving_range));
+                while (pyramid.size() < levels && Math.min(f.width, f.height) >= 2 * MIN_SIZE && Math.min(m.width, m.height) >= 2 * MIN_SIZE) {
+                    f = f.half(pool);
+                    m = m.half(pool);
+                    pyramid.add(new Level(f, m, fixed_range, moving_range));
+                }
+            }
+            this.levels = pyramid.size();
+
+            double[] p = new double[6];
+            double value = 0;
+            int count = 0;
+            try (RunReport.Span ignored = report.time("registration")) {
+                for (int l = pyramid.size() - 1; l >= 0; l--) {
+                    final Level level = pyramid.get(l);
+                    // Larger first steps on the coarsest level, where the stacks may still be off by a few voxels
+                    final double step = (l == pyramid.size() - 1 ? 4 : 1) * level.fixed.cal_x;
+                    double[] best = p;
+                    double best_value = metric(pool, level, best);
+                    int evaluated = 1;
+                    for (double s = step; s >= level.fixed.cal_x / 8 && evaluated < MAX_EVALUATIONS_PER_LEVEL; ) {
+                        boolean improved = false;
+                        for (int i = 0; i < 6 && !improved; i++) {
+                            for (int sign = -1; sign <= 1 && !improved; sign += 2) {
+                                final double[] trial = best.clone();
+                                // A rotation by s / radius moves no voxel further than s
+                                trial[i] += sign * (i < 3 ? s / radius : s);
+                                final double v = metric(pool, level, trial);
+                                evaluated++;
+                                if (v > best_value) {
+                                    best = trial;
+                                    best_value = v;
+                                    improved = true;
+                                }
+                            }
+                        }
+                        if (!improved)
+                            s /= 2;
+                    }
+                    p = best;
+                    value = best_value;
+                    count += evaluated;
+                    report.info("level_" + l + "_metric", best_value);
+                }
+            }
+            this.parameters = p;
+            this.metric = value;
+            this.evaluations = count;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Coefficients that map voxel coordinates of the fixed stack to voxel coordinates of the moving stack, as
+     * {@code {a00, a01, a02, b0, a10, ..., b2}}.
+     */
+    private double[] voxel_transform(final double[] p, final Volume fixed, final Volume moving) {
+        final double[][] r = rotation(p);
+        final double[] m = new double[12];
+        final double[] cal_f = {fixed.cal_x, fixed.cal_y, fixed.cal_z}, origin_f = {fixed.origin_x, fixed.origin_y, fixed.origin_z};
+        final double[] cal_m = {moving.cal_x, moving.cal_y, moving.cal_z}, origin_m = {moving.origin_x, moving.origin_y, moving.origin_z};
+        final double[] c = {center_x, center_y, center_z};
+        for (int i = 0; i < 3; i++) {
+            // q = R (origin_f + cal_f * v - c) + c + t, and the moving voxel is (q - origin_m) / cal_m
+            double b = c[i] + p[3 + i] - origin_m[i];
+            for (int j = 0; j < 3; j++) {
+                m[4 * i + j] = r[i][j] * cal_f[j] / cal_m[i];
+                b += r[i][j] * (origin_f[j] - c[j]);
+            }
+            m[4 * i + 3] = b / cal_m[i];
+        }
+        return m;
+    }
+
+    /**
+     * Rotation matrix of Rz * Ry * Rx.
+     */
+    private static double[][] rotation(final double[] p) {
+        final double cx = Math.cos(p[0]), sx = Math.sin(p[0]), cy = Math.cos(p[1]), sy = Math.sin(p[1]);
+        final double cz = Math.cos(p[2]), sz = Math.sin(p[2]);
+        return new double[][]{
+                {cz * cy, cz * sy * sx - sz * cx, cz * sy * cx + sz * sx},
+                {sz * cy, sz * sy * sx + cz * cx, sz * sy * cx - cz * sx},
+                {-sy, cy * sx, cy * cx}};
+    }
+
+    /**
+     * Normalized mutual information of the overlap, (H(fixed) + H(moving)) / H(fixed, moving), or 0 if the stacks
+     * hardly overlap.
+     */
+    private double metric(final ForkJoinPool pool, final Level level, final double[] p) throws InterruptedException, ExecutionException {
+        final double[] m = voxel_transform(p, level.fixed, level.moving);
+        final int slabs = Math.min(level.fixed.depth, 4 * threads);
+        final List<long[]> partial = pool.submit(() -> IntStream.range(0, slabs).parallel()
+                .mapToObj(slab -> joint_histogram(level, m, slab * level.fixed.depth / slabs, (slab + 1) * level.fixed.depth / slabs))
+                .collect(Collectors.toList())).get();
+        final long[] joint = new long[BINS * BINS];
+        for (long[] h : partial)
+            for (int i = 0; i < joint.length; i++)
+                joint[i] += h[i];
+        final long[] fixed_marginal = new long[BINS], moving_marginal = new long[BINS];
+        long n = 0;
+        for (int i = 0; i < BINS; i++) {
+            for (int j = 0; j < BINS; j++) {
+                fixed_marginal[i] += joint[i * BINS + j];
+                moving_marginal[j] += joint[i * BINS + j];
+                n += joint[i * BINS + j];
+            }
+        }
+        // Moving out of the overlap must not pay off
+        if (n < level.samples / 4)
+            return 0;
+        final double joint_entropy = entropy(joint, n);
+        return joint_entropy > 0 ? (entropy(fixed_marginal, n) + entropy(moving_marginal, n)) / joint_entropy : 0;
+    }
+
+    private static long[] joint_histogram(final Level level, final double[] m, final int z_start, final int z_end) {
+        final long[] joint = new long[BINS * BINS];
+        final Volume fixed = level.fixed, moving = level.moving;
+        final int stride = level.stride;
+        for (int z = z_start; z < z_end; z++) {
+            final byte[] bins = level.fixed_bins[z];
+            for (int y = 0; y < fixed.height; y += stride) {
+                // Moving voxel of the first sample in the row, then steps along x
+                double mx = m[1] * y + m[2] * z + m[3], my = m[5] * y + m[6] * z + m[7], mz = m[9] * y + m[10] * z + m[11];
+                final double dx = m[0] * stride, dy = m[4] * stride, dz = m[8] * stride;
+                for (int x = 0; x < fixed.width; x += stride, mx += dx, my += dy, mz += dz) {
+                    if (!moving.inside(mx, my, mz))
+                        continue;
+                    final int moving_bin = Level.bin(moving.value(mx, my, mz), level.moving_low, level.moving_scale);
+                    joint[bins[y * fixed.width + x] * BINS + moving_bin]++;
+                }
+            }
+        }
+        return joint;
+    }
+
+    private static double entropy(final long[] histogram, final long n) {
+        double h = 0;
+        for (long count : histogram) {
+            if (count > 0) {
+                final double p = count / (double) n;
+                h -= p * Math.log(p);
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Resample one channel of the moving stack onto the voxels of the fixed stack. Voxels outside the moving stack
+     * are 0.
+     */
+    public Volume resample(final Volume moving) throws InterruptedException, ExecutionException {
+        final double[] m = voxel_transform(parameters, fixed, moving);
+        final short[][] planes = new short[fixed.depth][];
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            pool.submit(() -> IntStream.range(0, fixed.depth).parallel().forEach(z -> {
+                final short[] plane = new short[fixed.width * fixed.height];
+                for (int y = 0; y < fixed.height; y++) {
+                    double mx = m[1] * y + m[2] * z + m[3], my = m[5] * y + m[6] * z + m[7], mz = m[9] * y + m[10] * z + m[11];
+                    for (int x = 0; x < fixed.width; x++, mx += m[0], my += m[4], mz += m[8])
+                        if (moving.inside(mx, my, mz))
+                            plane[y * fixed.width + x] = (short) Math.min(65535, Math.round(moving.value(mx, my, mz)));
+                }
+                planes[z] = plane;
+            })).get();
+        } finally {
+            pool.shutdown();
+        }
+        return new Volume(planes, fixed.width, fixed.height, fixed.cal_x, fixed.cal_y, fixed.cal_z);
+    }
+
+    /**
+     * The transformation from the moving to the fixed stack in the convention of Matlab's affine3d, which the script
+     * wrote: {@code [x y z 1] * T}, in micron with the center of the first voxel at one voxel size, as in imref3d.
+     */
+    public double[][] matrix(final Volume moving) {
+        final double[][] r = rotation(parameters);
+        final double[] c = {center_x, center_y, center_z}, t = {parameters[3], parameters[4], parameters[5]};
+        final double[] shift_f = {fixed.cal_x, fixed.cal_y, fixed.cal_z}, shift_m = {moving.cal_x, moving.cal_y, moving.cal_z};
+        // p = R^T (q - c - t) + c, shifted to the world coordinates of both stacks
+        final double[][] matrix = new double[4][4];
+        for (int j = 0; j < 3; j++) {
+            double d = c[j] + shift_f[j];
+            for (int i = 0; i < 3; i++) {
+                matrix[i][j] = r[i][j];
+                d -= r[i][j] * (c[i] + t[i] + shift_m[i]);
+            }
+            matrix[3][j] = d;
+        }
+        matrix[3][3] = 1;
+        return matrix;
+    }
+}
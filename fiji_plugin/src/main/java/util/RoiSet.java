@@ -0,0 +1,64 @@
+package util;
+
+import ij.gui.Roi;
+import ij.io.RoiDecoder;
+import ij.io.RoiEncoder;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Reads and writes ROI sets in the zip format of the RoiManager, without needing a RoiManager window.
+ */
+public final class RoiSet {
+
+    private RoiSet() {
+    }
+
+    /**
+     * The ROIs of a set in the order of the RoiManager, named like the entries without the extension.
+     */
+    public static Roi[] open(final File path) throws IOException {
+        final List<Roi> rois = new ArrayList<>();
+        try (ZipInputStream zip = new ZipInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            for (ZipEntry entry; (entry = zip.getNextEntry()) != null; ) {
+                if (!entry.getName().endsWith(".roi"))
+                    continue;
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                final byte[] buffer = new byte[8192];
+                for (int n; (n = zip.read(buffer)) > 0; )
+                    bytes.write(buffer, 0, n);
+                final String name = entry.getName().substring(0, entry.getName().length() - ".roi".length());
+                final Roi roi = RoiDecoder.openFromByteArray(bytes.toByteArray());
+                if (roi == null)
+                    throw new IOException(String.format("Invalid ROI %s in %s", entry.getName(), path.getPath()));
+                roi.setName(name);
+                rois.add(roi);
+            }
+        }
+        return rois.toArray(new Roi[0]);
+    }
+
+    public static void save(final Roi[] rois, final File path) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+             DataOutputStream out = new DataOutputStream(zip)) {
+            final RoiEncoder encoder = new RoiEncoder(out);
+            for (Roi roi : rois) {
+                zip.putNextEntry(new ZipEntry(roi.getName() + ".roi"));
+                encoder.write(roi);
+                out.flush();
+            }
+        }
+    }
+}
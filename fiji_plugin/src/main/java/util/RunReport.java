@@ -0,0 +1,233 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings and throughput of one stitching job or extraction session, per stage: time spent, bytes read and written
+ * and planes handled, plus queue depths and the peak heap use while the run lasts. Everything can be recorded from
+ * any thread. The report is written as JSON once the run is done.
+ */
+public class RunReport {
+    private static final ScheduledExecutorService SAMPLER = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "Run report heap sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public final String name;
+    private final long started_millis = System.currentTimeMillis();
+    private final long started = System.nanoTime();
+    private final Map<String, Stage> stages = new ConcurrentHashMap<>();
+    private final Map<String, Queue> queues = new ConcurrentHashMap<>();
+    private final Map<String, String> info = new ConcurrentHashMap<>();
+    private final AtomicLong peak_heap = new AtomicLong();
+    private final ScheduledFuture<?> sampling;
+    private volatile long finished = 0;
+
+    private static class Stage {
+        // Time summed over all threads, parallel stages add up to more than their wall time
+        final AtomicLong nanos = new AtomicLong(), count = new AtomicLong();
+        final AtomicLong bytes_read = new AtomicLong(), bytes_written = new AtomicLong(), planes = new AtomicLong();
+        final AtomicLong first_start = new AtomicLong(Long.MAX_VALUE), last_end = new AtomicLong(Long.MIN_VALUE);
+    }
+
+    private static class Queue {
+        final AtomicLong samples = new AtomicLong(), sum = new AtomicLong(), max = new AtomicLong();
+    }
+
+    /**
+     * Time of one piece of work, added to its stage when closed.
+     */
+    public class Span implements AutoCloseable {
+        private final Stage stage;
+        private final long start = System.nanoTime();
+
+        private Span(final Stage stage) {
+            this.stage = stage;
+            stage.first_start.accumulateAndGet(start, Math::min);
+        }
+
+        @Override
+        public void close() {
+            final long end = System.nanoTime();
+            stage.nanos.addAndGet(end - start);
+            stage.count.incrementAndGet();
+            stage.last_end.accumulateAndGet(end, Math::max);
+        }
+    }
+
+    public RunReport(final String name) {
+        this.name = name;
+        sample_heap();
+        this.sampling = SAMPLER.scheduleAtFixedRate(this::sample_heap, 100, 100, TimeUnit.MILLISECONDS);
+    }
+
+    private Stage stage(final String name) {
+        return stages.computeIfAbsent(name, n -> new Stage());
+    }
+
+    public Span time(final String stage) {
+        return new Span(stage(stage));
+    }
+
+    public void read(final String stage, final long bytes) {
+        stage(stage).bytes_read.addAndGet(bytes);
+    }
+
+    public void written(final String stage, final long bytes) {
+        stage(stage).bytes_written.addAndGet(bytes);
+    }
+
+    public void planes(final String stage, final long planes) {
+        stage(stage).planes.addAndGet(planes);
+    }
+
+    /**
+     * Add time spent outside of a span, e.g. before the report existed.
+     */
+    public void add_time(final String stage, final long nanos) {
+        stage(stage).nanos.addAndGet(nanos);
+        stage(stage).count.incrementAndGet();
+    }
+
+    public void queue(final String name, final int depth) {
+        final Queue queue = queues.computeIfAbsent(name, n -> new Queue());
+        queue.samples.incrementAndGet();
+        queue.sum.addAndGet(depth);
+        queue.max.accumulateAndGet(depth, Math::max);
+    }
+
+    public void info(final String key, final Object value) {
+        info.put(key, String.valueOf(value));
+    }
+
+    /**
+     * Seconds since the start, up to the end once finished.
+     */
+    public double seconds() {
+        return seconds((finished != 0 ? finished : System.nanoTime()) - started);
+    }
+
+    /**
+     * Planes read so far, over all stages that read planes.
+     */
+    public long planes_read() {
+        long planes = 0;
+        for (Stage stage : stages.values())
+            if (stage.bytes_read.get() > 0)
+                planes += stage.planes.get();
+        return planes;
+    }
+
+    public long bytes_read() {
+        long bytes = 0;
+        for (Stage stage : stages.values())
+            bytes += stage.bytes_read.get();
+        return bytes;
+    }
+
+    public long bytes_written() {
+        long bytes = 0;
+        for (Stage stage : stages.values())
+            bytes += stage.bytes_written.get();
+        return bytes;
+    }
+
+    /**
+     * Live one-line summary of the counters, e.g. for the status bar.
+     */
+    public String counters() {
+        final double seconds = Math.max(seconds(), 1e-3);
+        return String.format("%d planes (%.0f/s), %.0f MB read (%.1f MB/s), %.0f MB written", planes_read(),
+                planes_read() / seconds, bytes_read() / 1e6, bytes_read() / 1e6 / seconds, bytes_written() / 1e6);
+    }
+
+    /**
+     * Stop sampling the heap. Later spans are still recorded.
+     */
+    public void finish() {
+        if (finished == 0) {
+            finished = System.nanoTime();
+            sampling.cancel(false);
+            sample_heap();
+        }
+    }
+
+    public void write(final File path) throws IOException {
+        finish();
+        final StringBuilder json = new StringBuilder("{\n");
+        json.append(String.format(Locale.ROOT, "  \"name\": %s,\n", quote(name)));
+        // ISO 8601 with the zone offset as +02:00
+        final String timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX", Locale.ROOT).format(new Date(started_millis));
+        json.append(String.format(Locale.ROOT, "  \"started\": %s,\n", quote(timestamp)));
+        json.append(String.format(Locale.ROOT, "  \"wall_seconds\": %.3f,\n", seconds()));
+        json.append(String.format(Locale.ROOT, "  \"peak_heap_bytes\": %d,\n", peak_heap.get()));
+        json.append(String.format(Locale.ROOT, "  \"max_heap_bytes\": %d,\n", Runtime.getRuntime().maxMemory()));
+        json.append("  \"info\": {");
+        String separator = "\n";
+        for (Map.Entry<String, String> e : new TreeMap<>(info).entrySet()) {
+            json.append(separator).append(String.format(Locale.ROOT, "    %s: %s", quote(e.getKey()), quote(e.getValue())));
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"stages\": {");
+        separator = "\n";
+        for (Map.Entry<String, Stage> e : new TreeMap<>(stages).entrySet()) {
+            final Stage s = e.getValue();
+            final double busy = seconds(s.nanos.get());
+            final double wall = s.last_end.get() >= s.first_start.get() ? seconds(s.last_end.get() - s.first_start.get()) : busy;
+            json.append(separator).append(String.format(Locale.ROOT, "    %s: {\"seconds\": %.3f, \"wall_seconds\": %.3f, \"count\": %d, " +
+                            "\"bytes_read\": %d, \"bytes_written\": %d, \"planes\": %d, \"planes_per_second\": %.1f, " +
+                            "\"read_mb_per_second\": %.1f, \"write_mb_per_second\": %.1f}",
+                    quote(e.getKey()), busy, wall, s.count.get(), s.bytes_read.get(), s.bytes_written.get(), s.planes.get(),
+                    s.planes.get() / Math.max(wall, 1e-6), s.bytes_read.get() / 1e6 / Math.max(wall, 1e-6),
+                    s.bytes_written.get() / 1e6 / Math.max(wall, 1e-6)));
+            separator = ",\n";
+        }
+        json.append("\n  },\n  \"queues\": {");
+        separator = "\n";
+        for (Map.Entry<String, Queue> e : new TreeMap<>(queues).entrySet()) {
+            final Queue q = e.getValue();
+            json.append(separator).append(String.format(Locale.ROOT, "    %s: {\"samples\": %d, \"mean_depth\": %.2f, \"max_depth\": %d}",
+                    quote(e.getKey()), q.samples.get(), q.sum.get() / (double) Math.max(1, q.samples.get()), q.max.get()));
+            separator = ",\n";
+        }
+        json.append("\n  }\n}\n");
+        Files.write(path.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void sample_heap() {
+        final Runtime runtime = Runtime.getRuntime();
+        peak_heap.accumulateAndGet(runtime.totalMemory() - runtime.freeMemory(), Math::max);
+    }
+
+    private static double seconds(final long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static String quote(final String s) {
+        final StringBuilder sb = new StringBuilder("\"");
+        for (char ch : s.toCharArray()) {
+            if (ch == '"' || ch == '\\')
+                sb.append('\\').append(ch);
+            else if (ch < 0x20)
+                sb.append(String.format(Locale.ROOT, "\\u%04x", (int) ch));
+            else
+                sb.append(ch);
+        }
+        return sb.append('"').toString();
+    }
+}
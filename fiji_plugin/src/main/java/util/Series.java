@@ -1,5 +1,6 @@
 package util;
 
+import loci.formats.FormatTools;
 import loci.formats.IFormatReader;
 import loci.formats.meta.MetadataRetrieve;
 import ome.units.quantity.Length;
@@ -8,17 +9,28 @@ import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
 import stitching.CommonFunctions;
 
-import java.io.File;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 
 public class Series {
-    public final File file;
+    public final ImageFile file;
     public final String name, mp_title;
     public final int index;
     public final double pos_x, pos_y;
     public final Channel[] channels;
+    // Plane geometry, needed to read pixels plane by plane without an ImagePlus
+    public final int size_x, size_y, size_z, size_c, size_t, pixel_type;
+    public final boolean little_endian;
+    // Physical pixel size in micron, 0 if unknown
+    public final double cal_x, cal_y;
+    // File offset of every plane in the order of the reader if the pixel data is stored uncompressed, null otherwise
+    public final long[] plane_offsets;
 
-    private Series(File file, String name, String mp_title, int index, double pos_x, double pos_y, Channel[] channels) {
+    Series(ImageFile file, String name, String mp_title, int index, double pos_x, double pos_y, Channel[] channels,
+                   int size_x, int size_y, int size_z, int size_c, int size_t, int pixel_type, boolean little_endian,
+                   double cal_x, double cal_y, long[] plane_offsets) {
         this.file = file;
         this.name = name;
         this.mp_title = mp_title;
@@ -26,13 +38,87 @@ public class Series {
         this.pos_x = pos_x;
         this.pos_y = pos_y;
         this.channels = channels;
+        this.size_x = size_x;
+        this.size_y = size_y;
+        this.size_z = size_z;
+        this.size_c = size_c;
+        this.size_t = size_t;
+        this.pixel_type = pixel_type;
+        this.little_endian = little_endian;
+        this.cal_x = cal_x;
+        this.cal_y = cal_y;
+        this.plane_offsets = plane_offsets;
     }
 
     Series(Series series) {
-        this(series.file, series.name, series.mp_title, series.index, series.pos_x, series.pos_y, series.channels);
+        this(series.file, series.name, series.mp_title, series.index, series.pos_x, series.pos_y, series.channels,
+                series.size_x, series.size_y, series.size_z, series.size_c, series.size_t, series.pixel_type,
+                series.little_endian, series.cal_x, series.cal_y, series.plane_offsets);
     }
 
-    public Series(final File file, final int index, final IFormatReader reader, final MetadataRetrieve retrieve) {
+    /**
+     * Read a series back from a {@link MetadataIndex}.
+     */
+    static Series read(final ImageFile file, final DataInput in) throws IOException {
+        final String name = in.readUTF();
+        final int index = in.readInt();
+        final double pos_x = in.readDouble(), pos_y = in.readDouble();
+        final Channel[] channels = new Channel[in.readInt()];
+        for (int c = 0; c < channels.length; c++)
+            channels[c] = Channel.get_channel(in.readUTF());
+        final int size_x = in.readInt(), size_y = in.readInt(), size_z = in.readInt(), size_c = in.readInt(),
+                size_t = in.readInt(), pixel_type = in.readInt();
+        final boolean little_endian = in.readBoolean();
+        final double cal_x = in.readDouble(), cal_y = in.readDouble();
+        final int planes = in.readInt();
+        final long[] plane_offsets = planes < 0 ? null : new long[planes];
+        for (int i = 0; i < planes; i++)
+            plane_offsets[i] = in.readLong();
+        return new Series(file, name, name + "_mp_" + index + ".tif", index, pos_x, pos_y, channels,
+                size_x, size_y, size_z, size_c, size_t, pixel_type, little_endian, cal_x, cal_y, plane_offsets);
+    }
+
+    void write(final DataOutput out) throws IOException {
+        out.writeUTF(name);
+        out.writeInt(index);
+        out.writeDouble(pos_x);
+        out.writeDouble(pos_y);
+        out.writeInt(channels.length);
+        for (Channel channel : channels)
+            out.writeUTF(channel != null ? channel.name : "");
+        out.writeInt(size_x);
+        out.writeInt(size_y);
+        out.writeInt(size_z);
+        out.writeInt(size_c);
+        out.writeInt(size_t);
+        out.writeInt(pixel_type);
+        out.writeBoolean(little_endian);
+        out.writeDouble(cal_x);
+        out.writeDouble(cal_y);
+        out.writeInt(plane_offsets != null ? plane_offsets.length : -1);
+        if (plane_offsets != null)
+            for (long offset : plane_offsets)
+                out.writeLong(offset);
+    }
+
+    /**
+     * The geometry of this series binned by a factor in X and Y and with every z_step-th plane only, as seen by a
+     * preview. Its pixels can not be read through it.
+     */
+    Series binned(final int bin, final int z_step) {
+        return new Series(file, name, mp_title, index, pos_x / bin, pos_y / bin, channels, size_x / bin, size_y / bin,
+                (size_z + z_step - 1) / z_step, size_c, size_t, pixel_type, little_endian, cal_x * bin, cal_y * bin, null);
+    }
+
+    public int bytes_per_pixel() {
+        return FormatTools.getBytesPerPixel(pixel_type);
+    }
+
+    public int plane_bytes() {
+        return size_x * size_y * bytes_per_pixel();
+    }
+
+    public Series(final ImageFile file, final int index, final IFormatReader reader, final MetadataRetrieve retrieve) {
         // log.debug(String.format("Reading metadata for file %s, index=%d", file.getName(), index));
         this.file = file;
         this.index = index;
@@ -58,6 +144,18 @@ public class Series {
             this.pos_y = location[1] * 1000000 / cal.value().doubleValue();
         else
             this.pos_y = 0;
+        this.cal_x = cal != null ? cal.value().doubleValue() : 0;
+        final Length cal_y = retrieve.getPixelsPhysicalSizeY(index);
+        this.cal_y = cal_y != null ? cal_y.value().doubleValue() : this.cal_x;
+
+        this.size_x = reader.getSizeX();
+        this.size_y = reader.getSizeY();
+        this.size_z = reader.getSizeZ();
+        this.size_c = reader.getSizeC();
+        this.size_t = reader.getSizeT();
+        this.pixel_type = reader.getPixelType();
+        this.little_endian = reader.isLittleEndian();
+        this.plane_offsets = PlaneOffsets.planes(reader, this.index, file.length());
 
         this.channels = new Channel[retrieve.getChannelCount(this.index)];
         for (int c = 0; c < retrieve.getChannelCount(this.index); c++) {
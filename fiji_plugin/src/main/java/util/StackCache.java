@@ -0,0 +1,305 @@
+package util;
+
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size-bounded cache of the planes of tile z-stacks, in the order of the file, for the interactive extraction. The
+ * least recently used stacks are dropped first. A background thread prefetches the tile under the cursor and as many
+ * of its neighbours as fit next to it, so a click on them writes from memory instead of waiting on the file.
+ * Prefetching pauses while an extraction reads from the file, and never drops the tile under the cursor. Planes are
+ * handed out while they are read, so an extraction writes them as they arrive. Tiles of memory-mapped files are never
+ * cached, their planes are already in memory.
+ */
+public class StackCache {
+    public final long capacity;
+    private final RunReport report;
+    // Access order, so the first entry is the least recently used
+    private final LinkedHashMap<Integer, Stack> stacks = new LinkedHashMap<>(16, 0.75f, true);
+    private final ThreadPoolExecutor prefetch_pool;
+    // Bytes of the cached and loading stacks
+    private long bytes = 0;
+    // Tiles of the last prefetch request, prefetches of their neighbours must not drop them
+    private Set<Integer> hovered = new HashSet<>();
+    // Extractions reading from the file, guarded by the lock
+    private final Object foreground = new Object();
+    private int reading = 0;
+
+    /**
+     * Takes the planes of a stack in the order of the file, with the z, c and t of each.
+     */
+    public interface PlaneConsumer {
+        void accept(int[] zct, byte[] plane) throws IOException;
+    }
+
+    /**
+     * The planes of one tile, filled in the order of the file while it loads.
+     */
+    private static class Stack {
+        final byte[][] planes;
+        final int[][] zct;
+        final long bytes;
+        private int loaded = 0;
+        private Throwable failure;
+        // Set once an extraction waits for the stack, its prefetch no longer gives way then
+        volatile boolean wanted = false;
+
+        Stack(final Series series) {
+            this.planes = new byte[series.size_c * series.size_z * series.size_t][];
+            this.zct = new int[planes.length][];
+            this.bytes = (long) planes.length * series.plane_bytes();
+        }
+
+        synchronized void add(final int[] zct, final byte[] plane) {
+            this.zct[loaded] = zct;
+            this.planes[loaded++] = plane;
+            notifyAll();
+        }
+
+        synchronized void fail(final Throwable e) {
+            failure = e;
+            notifyAll();
+        }
+
+        synchronized boolean complete() {
+            return loaded == planes.length;
+        }
+
+        /**
+         * Wait until plane i is loaded.
+         */
+        synchronized void await(final int i) throws IOException, FormatException, InterruptedException {
+            while (i >= loaded && failure == null)
+                wait();
+            if (i < loaded)
+                return;
+            if (failure instanceof FormatException)
+                throw (FormatException) failure;
+            throw failure instanceof IOException ? (IOException) failure : new IOException(failure);
+        }
+    }
+
+    public StackCache(final long capacity, final RunReport report) {
+        this.capacity = capacity;
+        this.report = report;
+        this.prefetch_pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            final Thread thread = new Thread(r, "Tile prefetch");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    private static long stack_bytes(final Series series) {
+        return (long) series.plane_bytes() * series.size_c * series.size_z * series.size_t;
+    }
+
+    /**
+     * Whether the stack of a tile would be cached: it is not mapped and fits into the cache.
+     */
+    public boolean caches(final Series series) {
+        return stack_bytes(series) <= capacity && !series.file.mapped.supports(series);
+    }
+
+    /**
+     * Hand all planes of a tile to the consumer in the calling thread, in the order of the file: from the cache, as a
+     * running prefetch reads them, or as they are read now into the cache. Every plane is handed out as soon as it is
+     * there.
+     */
+    public void get(final Series series, final PlaneConsumer consumer) throws IOException, FormatException, InterruptedException {
+        final Stack stack;
+        final boolean load;
+        synchronized (this) {
+            final Stack cached = stacks.get(series.index);
+            load = cached == null;
+            if (load) {
+                stack = new Stack(series);
+                reserve(stack.bytes, false);
+                stacks.put(series.index, stack);
+            } else {
+                stack = cached;
+            }
+        }
+        if (load) {
+            load(series, stack, false, consumer);
+            return;
+        }
+        if (stack.complete()) {
+            report.planes("extraction_cache", stack.planes.length);
+        } else {
+            stack.wanted = true;
+            synchronized (foreground) {
+                foreground.notifyAll();
+            }
+        }
+        for (int i = 0; i < stack.planes.length; i++) {
+            stack.await(i);
+            consumer.accept(stack.zct[i], stack.planes[i]);
+        }
+    }
+
+    /**
+     * Replace the queued prefetches by the given tiles and their neighbours in the same tile scan, nearest first, as
+     * many as fit into the cache together. Tiles that are cached already or do not fit are skipped.
+     */
+    public void prefetch(final List<Series> series, final Series... tiles) {
+        prefetch_pool.getQueue().clear();
+        final Map<Integer, Series> wanted = new LinkedHashMap<>();
+        for (Series tile : tiles)
+            if (tile != null)
+                wanted.put(tile.index, tile);
+        synchronized (this) {
+            hovered = new HashSet<>(wanted.keySet());
+        }
+        for (Series tile : tiles) {
+            if (tile == null)
+                continue;
+            final List<Series> neighbours = neighbours(series, tile);
+            neighbours.sort(Comparator.comparingDouble(s -> Math.hypot(s.pos_x - tile.pos_x, s.pos_y - tile.pos_y)));
+            for (Series s : neighbours)
+                wanted.putIfAbsent(s.index, s);
+        }
+        // Tiles further down the list would only drop the ones before them
+        long total = 0;
+        for (Series tile : wanted.values()) {
+            total += stack_bytes(tile);
+            if (total > capacity)
+                break;
+            prefetch_pool.execute(() -> {
+                // Checked outside the lock, the check may need a reader
+                if (!caches(tile))
+                    return;
+                final Stack stack;
+                synchronized (this) {
+                    if (stacks.containsKey(tile.index) || !reserve(stack_bytes(tile), true))
+                        return;
+                    stack = new Stack(tile);
+                    stacks.put(tile.index, stack);
+                }
+                try {
+                    load(tile, stack, true, null);
+                } catch (IOException | FormatException | InterruptedException | RuntimeException e) {
+                    // Read again when it is extracted
+                }
+            });
+        }
+    }
+
+    /**
+     * Tiles of the same tile scan that overlap or touch the given tile, also diagonally.
+     */
+    public static List<Series> neighbours(final List<Series> series, final Series tile) {
+        final List<Series> neighbours = new ArrayList<>();
+        for (Series s : series) {
+            if (s.index == tile.index || !s.name.equals(tile.name))
+                continue;
+            if (Math.abs(s.pos_x - tile.pos_x) < 1.5 * tile.size_x && Math.abs(s.pos_y - tile.pos_y) < 1.5 * tile.size_y)
+                neighbours.add(s);
+        }
+        return neighbours;
+    }
+
+    /**
+     * Stop prefetching and drop all stacks.
+     */
+    public void close() {
+        prefetch_pool.shutdownNow();
+        synchronized (this) {
+            stacks.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Make room for a stack by dropping the least recently used complete stacks, called with the lock held. A
+     * prefetch never drops the hovered tiles and is only added if it fits, an extraction drops what it has to.
+     *
+     * @return whether the stack is added to the bytes of the cache
+     */
+    private boolean reserve(final long stack_bytes, final boolean prefetch) {
+        final Iterator<Map.Entry<Integer, Stack>> it = stacks.entrySet().iterator();
+        while (bytes + stack_bytes > capacity && it.hasNext()) {
+            final Map.Entry<Integer, Stack> entry = it.next();
+            if (!entry.getValue().complete() || (prefetch && hovered.contains(entry.getKey())))
+                continue;
+            bytes -= entry.getValue().bytes;
+            it.remove();
+        }
+        if (prefetch && bytes + stack_bytes > capacity)
+            return false;
+        bytes += stack_bytes;
+        return true;
+    }
+
+    /**
+     * Read all planes of a tile in the order of the file into its stack, handing each to the consumer. Failed stacks
+     * are not kept, so the next request reads them again.
+     *
+     * @param consumer may be null
+     */
+    private void load(final Series series, final Stack stack, final boolean prefetch, final PlaneConsumer consumer)
+            throws IOException, FormatException, InterruptedException {
+        final String stage = prefetch ? "extraction_prefetch" : "extraction_read";
+        try {
+            final IFormatReader reader = series.file.readers.borrow(series.index);
+            // Counted once the reader is borrowed, a paused prefetch may hold the last one
+            if (!prefetch) {
+                synchronized (foreground) {
+                    reading++;
+                }
+            }
+            try {
+                if (reader.getImageCount() != stack.planes.length)
+                    throw new IOException(String.format("%s has %d planes, expected %d", series.mp_title,
+                            reader.getImageCount(), stack.planes.length));
+                for (int i = 0; i < stack.planes.length; i++) {
+                    // Give way to extractions of tiles that are not cached, unless one waits for this stack
+                    if (prefetch) {
+                        synchronized (foreground) {
+                            while (reading > 0 && !stack.wanted)
+                                foreground.wait();
+                        }
+                    }
+                    final byte[] plane = new byte[series.plane_bytes()];
+                    final int[] zct = reader.getZCTCoords(i);
+                    try (RunReport.Span ignored = report.time(stage)) {
+                        reader.openBytes(i, plane);
+                    }
+                    report.read(stage, plane.length);
+                    report.planes(stage, 1);
+                    stack.add(zct, plane);
+                    if (consumer != null)
+                        consumer.accept(zct, plane);
+                }
+            } finally {
+                if (!prefetch) {
+                    synchronized (foreground) {
+                        if (--reading == 0)
+                            foreground.notifyAll();
+                    }
+                }
+                series.file.readers.give_back(reader);
+            }
+        } catch (IOException | FormatException | InterruptedException | RuntimeException e) {
+            synchronized (this) {
+                if (stacks.remove(series.index, stack))
+                    bytes -= stack.bytes;
+            }
+            stack.fail(e);
+            throw e;
+        }
+    }
+}
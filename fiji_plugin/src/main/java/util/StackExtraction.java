@@ -0,0 +1,217 @@
+package util;
+
+import loci.formats.FormatException;
+import loci.formats.IFormatReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Extracts the z-stack of one tile into one TIFF per channel, or into compressed OME-TIFFs. A read task reads every
+ * plane once, in the order of the file, and hands it to the write pool, which appends it to the TIFF of its channel.
+ * The number of plane buffers in flight is bounded, so a slow disk stalls the reader instead of filling the memory.
+ * With a {@link StackCache}, the planes of tiles that fit into it are taken from it, or read into it, and written as
+ * they arrive.
+ */
+public class StackExtraction extends Series {
+    public static final int BUFFERS = 8;
+
+    public final File[] paths;
+    private final StackCache cache;
+    private final Output output;
+
+    /**
+     * How the stack is written: uncompressed ImageJ TIFFs, one per channel, as the downstream tools expect them, or
+     * tiled and compressed OME-TIFFs, one per channel or one with all channels.
+     */
+    public static class Output {
+        public static final String IMAGEJ = "ImageJ TIFF per channel", OME_CHANNELS = "OME-TIFF per channel",
+                OME = "OME-TIFF with all channels";
+        public static final Output DEFAULT = new Output(IMAGEJ, OmeTiffWriter.Compression.NONE, null);
+
+        public final String layout;
+        public final OmeTiffWriter.Compression compression;
+        public final ForkJoinPool pool;
+
+        /**
+         * @param pool compresses the tiles of the OME-TIFFs
+         */
+        public Output(final String layout, final OmeTiffWriter.Compression compression, final ForkJoinPool pool) {
+            this.layout = layout;
+            this.compression = compression;
+            this.pool = pool;
+        }
+    }
+
+    /**
+     * @param base_path the channel files are written to {@code <base_path>_channel_<c>.tif}
+     */
+    public StackExtraction(final Series series, final File base_path) {
+        this(series, base_path, null, Output.DEFAULT);
+    }
+
+    /**
+     * @param cache  planes are taken from and kept in the cache if the tile fits, may be null
+     * @param output OME-TIFFs are written to {@code <base_path>_channel_<c>.ome.tif} or {@code <base_path>.ome.tif}
+     */
+    public StackExtraction(final Series series, final File base_path, final StackCache cache, final Output output) {
+        super(series);
+        this.cache = cache;
+        this.output = output;
+        if (Output.OME.equals(output.layout)) {
+            this.paths = new File[]{new File(base_path.getPath() + ".ome.tif")};
+        } else {
+            this.paths = new File[size_c];
+            for (int c = 0; c < size_c; c++)
+                paths[c] = new File(base_path.getPath() + "_channel_" + c + (Output.IMAGEJ.equals(output.layout) ? ".tif" : ".ome.tif"));
+        }
+    }
+
+    /**
+     * Plane number of a channel, z and t in its file.
+     */
+    private int plane(final int c, final int z, final int t) {
+        return Output.OME.equals(output.layout) ? c + size_c * (z + size_z * t) : z + t * size_z;
+    }
+
+    /**
+     * Queue the extraction: reading runs on the read pool, writing on the write pool.
+     */
+    public CompletableFuture<Void> submit(final ExecutorService read_pool, final ExecutorService write_pool, final RunReport report) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                run(write_pool, report);
+            } catch (IOException | FormatException | InterruptedException e) {
+                throw new CompletionException(e);
+            }
+        }, read_pool);
+    }
+
+    /**
+     * Extract in the calling thread, writing on the write pool.
+     *
+     * @param report records reads, writes and the plane buffers in flight of the extraction session
+     */
+    public void run(final ExecutorService write_pool, final RunReport report) throws IOException, FormatException, InterruptedException {
+        Pixels.check_supported(pixel_type);
+        for (File path : paths)
+            if (path.exists())
+                throw new IOException("Output file exists: " + path.getPath());
+        // The writer of every channel, all the same with one file
+        final PlaneWriter[] writers = new PlaneWriter[size_c];
+        final Semaphore buffers = new Semaphore(BUFFERS);
+        final ConcurrentLinkedQueue<byte[]> recycled = new ConcurrentLinkedQueue<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final List<Future<?>> writes = new ArrayList<>();
+        try {
+            for (int c = 0; c < size_c; c++) {
+                if (Output.IMAGEJ.equals(output.layout))
+                    writers[c] = new TiffWriter(paths[c], size_x, size_y, bytes_per_pixel(), little_endian, size_z, size_t, cal_x, cal_y);
+                else if (Output.OME_CHANNELS.equals(output.layout))
+                    writers[c] = new OmeTiffWriter(paths[c], this, c, output.compression, output.pool);
+                else
+                    writers[c] = c == 0 ? new OmeTiffWriter(paths[0], this, -1, output.compression, output.pool) : writers[0];
+            }
+            // Checked before borrowing, the check needs a reader of its own
+            final boolean mapped = file.mapped.supports(this);
+            if (!mapped && cache != null && cache.caches(this)) {
+                // Planes are written while they are read into the cache, or while a running prefetch reads them
+                cache.get(this, (zct, data) -> {
+                    if (failure.get() != null)
+                        return;
+                    final PlaneWriter writer = writers[zct[1]];
+                    final int plane = plane(zct[1], zct[0], zct[2]);
+                    writes.add(write_pool.submit(() -> {
+                        try (RunReport.Span ignored = report.time("extraction_write")) {
+                            writer.write(plane, data);
+                            report.written("extraction_write", data.length);
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }));
+                });
+            } else {
+                final IFormatReader reader = file.readers.borrow(index);
+                try {
+                    // Plane indices follow the order of the planes in the file
+                    for (int i = 0; i < reader.getImageCount() && failure.get() == null; i++) {
+                        final int[] zct = reader.getZCTCoords(i);
+                        final PlaneWriter writer = writers[zct[1]];
+                        final int plane = plane(zct[1], zct[0], zct[2]);
+                        buffers.acquire();
+                        report.queue("extraction_buffers", BUFFERS - buffers.availablePermits());
+                        report.read("extraction_read", plane_bytes());
+                        report.planes("extraction_read", 1);
+                        if (mapped) {
+                            // Written straight from the mapping, without a copy on the heap
+                            final ByteBuffer data = file.mapped.bytes(this, i);
+                            writes.add(write_pool.submit(() -> {
+                                try (RunReport.Span ignored = report.time("extraction_write")) {
+                                    writer.write(plane, data);
+                                    report.written("extraction_write", data.remaining());
+                                } catch (Throwable e) {
+                                    failure.compareAndSet(null, e);
+                                } finally {
+                                    buffers.release();
+                                }
+                            }));
+                            continue;
+                        }
+                        byte[] buffer = recycled.poll();
+                        if (buffer == null)
+                            buffer = new byte[plane_bytes()];
+                        try (RunReport.Span ignored = report.time("extraction_read")) {
+                            reader.openBytes(i, buffer);
+                        }
+                        final byte[] data = buffer;
+                        writes.add(write_pool.submit(() -> {
+                            try (RunReport.Span ignored = report.time("extraction_write")) {
+                                writer.write(plane, data);
+                                report.written("extraction_write", data.length);
+                            } catch (Throwable e) {
+                                failure.compareAndSet(null, e);
+                            } finally {
+                                recycled.offer(data);
+                                buffers.release();
+                            }
+                        }));
+                    }
+                } finally {
+                    file.readers.give_back(reader);
+                }
+            }
+            for (Future<?> write : writes)
+                write.get();
+            if (failure.get() != null)
+                throw failure.get() instanceof IOException ? (IOException) failure.get() : new IOException(failure.get());
+            for (int c = 0; c < paths.length; c++)
+                writers[c].close();
+        } catch (ExecutionException e) {
+            abort(writers, writes);
+            throw new IOException(e.getCause());
+        } catch (IOException | FormatException | InterruptedException | RuntimeException e) {
+            abort(writers, writes);
+            throw e;
+        }
+    }
+
+    private static void abort(final PlaneWriter[] writers, final List<Future<?>> writes) {
+        for (Future<?> write : writes)
+            write.cancel(false);
+        for (PlaneWriter writer : writers)
+            if (writer != null)
+                writer.abort();
+    }
+}
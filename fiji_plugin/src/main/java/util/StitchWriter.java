@@ -0,0 +1,253 @@
+package util;
+
+import ij.IJ;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Writes a stitch to a TIFF band by band while it is fused, so the canvas never has to be held in memory. The size
+ * of every channel plane is known up front, so each band goes straight to its final place and the planes end up
+ * contiguous, the layout ImageJ expects. Files larger than 4 GB are written as BigTIFF. The display range of every
+ * channel is taken from histograms collected on the way (the full range for grey channels) and stored with the
+ * channel colors in ImageJ's metadata tags, so ImageJ opens the file as the same composite as before.
+ */
+public class StitchWriter implements BlendingFusion.BandSink {
+    // Header of the ImageJ metadata and its entry types, "IJIJ", "rang" and "luts"
+    private static final int MAGIC = 0x494a494a, RANGES = 0x72616e67, LUTS = 0x6c757473;
+    private static final long HEADER = 16;
+
+    public final File path;
+    public final boolean big_tiff;
+    public final int width, height, channels, bytes_per_pixel;
+    private final double cal_x, cal_y, saturated;
+    private final Channel[] colors;
+    private final TiffFile file;
+    private final int[][] histograms;
+    private final ByteBuffer[] buffers;
+    private int rows = 0;
+    private long nanos = 0;
+    private int[][] ranges;
+
+    /**
+     * @param colors    channel colors, may be null or contain nulls for grey
+     * @param saturated percentage of saturated pixels of the display ranges, as for "Enhance Contrast"
+     */
+    public StitchWriter(final File path, final int width, final int height, final int channels, final int bytes_per_pixel,
+                        final double cal_x, final double cal_y, final Channel[] colors, final double saturated) throws IOException {
+        this.path = path;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.bytes_per_pixel = bytes_per_pixel;
+        this.cal_x = cal_x;
+        this.cal_y = cal_y;
+        this.colors = colors;
+        this.saturated = saturated;
+        // Directories and metadata take far less than 1 GB, even for many strips
+        this.big_tiff = HEADER + (long) channels * plane_bytes() + (1L << 30) > 0xffffffffL;
+        this.histograms = new int[channels][65536];
+        this.buffers = new ByteBuffer[channels];
+        this.file = new TiffFile(path, ByteOrder.BIG_ENDIAN, big_tiff);
+    }
+
+    private long plane_bytes() {
+        return (long) width * height * bytes_per_pixel;
+    }
+
+    /**
+     * Write the rows of the next band into every channel plane. Bands must be added top to bottom.
+     */
+    @Override
+    public void add_band(final short[][] band, final int band_y, final int band_end, final ForkJoinPool pool) throws IOException {
+        if (band_y != rows)
+            throw new IOException(String.format("Band at row %d of %s added after row %d", band_y, path.getName(), rows));
+        final long start = System.nanoTime();
+        final int n = (band_end - band_y) * width;
+        try {
+            pool.submit(() -> IntStream.range(0, channels).parallel().forEach(c -> {
+                Kernels.get().histogram(band[c], n, histograms[c], 0);
+                if (buffers[c] == null || buffers[c].capacity() < n * bytes_per_pixel)
+                    buffers[c] = ByteBuffer.allocate(n * bytes_per_pixel).order(ByteOrder.BIG_ENDIAN);
+                final ByteBuffer buffer = buffers[c];
+                buffer.clear();
+                if (bytes_per_pixel == 1) {
+                    for (int i = 0; i < n; i++)
+                        buffer.put((byte) band[c][i]);
+                    buffer.flip();
+                } else {
+                    buffer.asShortBuffer().put(band[c], 0, n);
+                    buffer.limit(2 * n);
+                }
+                try {
+                    file.write_fully(buffer, HEADER + c * plane_bytes() + (long) band_y * width * bytes_per_pixel);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing " + path.getName(), e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof UncheckedIOException ? ((UncheckedIOException) e.getCause()).getCause()
+                    : new IOException(e.getCause());
+        }
+        rows = band_end;
+        nanos += System.nanoTime() - start;
+    }
+
+    /**
+     * Time spent writing bands so far.
+     */
+    public long nanos() {
+        return nanos;
+    }
+
+    /**
+     * Display range of every channel, once closed.
+     */
+    public int[][] ranges() {
+        return ranges;
+    }
+
+    /**
+     * Write the header and the image directories and close the file. All rows must have been added.
+     */
+    public void close() throws IOException {
+        final long start = System.nanoTime();
+        try {
+            if (rows != height)
+                throw new IOException(String.format("Only %d of %d rows written to %s", rows, height, path.getName()));
+            ranges = new int[channels][];
+            for (int c = 0; c < channels; c++)
+                ranges[c] = Pixels.saturated_range(histograms[c], (long) width * height, color(c) != null ? saturated : 0);
+
+            // Planes are cut into strips of one band each
+            final int strip_rows = BlendingFusion.BLOCK_SIZE, strips = (height + strip_rows - 1) / strip_rows;
+            final List<TiffFile.Ifd> ifds = new ArrayList<>();
+            for (int c = 0; c < channels; c++) {
+                final long[] offsets = new long[strips], counts = new long[strips];
+                for (int s = 0; s < strips; s++) {
+                    offsets[s] = HEADER + c * plane_bytes() + (long) s * strip_rows * width * bytes_per_pixel;
+                    counts[s] = (long) Math.min(strip_rows, height - s * strip_rows) * width * bytes_per_pixel;
+                }
+                final TiffFile.Ifd ifd = file.ifd()
+                        .add(256, TiffFile.LONG, width)
+                        .add(257, TiffFile.LONG, height)
+                        .add(258, TiffFile.SHORT, bytes_per_pixel * 8)
+                        .add(259, TiffFile.SHORT, 1) // No compression
+                        .add(262, TiffFile.SHORT, 1) // Black is zero
+                        .add(273, file.offset_type(), offsets)
+                        .add(277, TiffFile.SHORT, 1)
+                        .add(278, TiffFile.LONG, strip_rows)
+                        .add(279, file.offset_type(), counts)
+                        .add(282, TiffFile.RATIONAL, TiffFile.rational(cal_x))
+                        .add(283, TiffFile.RATIONAL, TiffFile.rational(cal_y))
+                        .add(296, TiffFile.SHORT, 1); // The unit is in the description
+                if (c == 0) {
+                    final byte[][] metadata = metadata();
+                    final long[] counts_ij = new long[metadata.length];
+                    int length = 0;
+                    for (int i = 0; i < metadata.length; i++) {
+                        counts_ij[i] = metadata[i].length;
+                        length += metadata[i].length;
+                    }
+                    final ByteBuffer data = ByteBuffer.allocate(length);
+                    for (byte[] part : metadata)
+                        data.put(part);
+                    ifd.add(270, TiffFile.ASCII, description())
+                            .add(50838, TiffFile.LONG, counts_ij)
+                            .add(50839, TiffFile.BYTE, data.array());
+                }
+                ifds.add(ifd);
+            }
+            // Directories start on a word boundary
+            final long ifd_start = (HEADER + channels * plane_bytes() + 7) & ~7L;
+            file.write_ifds(ifds, ifd_start, 0);
+            file.header(ifd_start);
+        } finally {
+            file.close();
+            nanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Close and delete an incomplete file.
+     */
+    public void abort() {
+        file.abort();
+    }
+
+    private byte[] description() {
+        final StringBuilder sb = new StringBuilder("ImageJ=").append(IJ.getVersion()).append('\n');
+        sb.append("images=").append(channels).append('\n');
+        if (channels > 1)
+            sb.append("channels=").append(channels).append('\n').append("mode=composite\n");
+        if (cal_x > 0)
+            sb.append("unit=micron\n");
+        sb.append("loop=false\n").append('\0');
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * ImageJ's metadata: a header listing the entry types and their counts, the display ranges and the channel LUTs.
+     */
+    private byte[][] metadata() {
+        final byte[][] parts = new byte[2 + channels][];
+        parts[0] = ByteBuffer.allocate(4 + 16).putInt(MAGIC).putInt(RANGES).putInt(1).putInt(LUTS).putInt(channels).array();
+        final ByteBuffer range = ByteBuffer.allocate(channels * 16);
+        for (int[] r : ranges)
+            range.putDouble(r[0]).putDouble(r[1]);
+        parts[1] = range.array();
+        for (int c = 0; c < channels; c++) {
+            final Channel color = color(c);
+            final byte[] lut = new byte[768];
+            for (int i = 0; i < 256; i++) {
+                final int rgb = color != null ? color.rgb(i) : i * 0x010101;
+                lut[i] = (byte) (rgb >>> 16);
+                lut[256 + i] = (byte) (rgb >>> 8);
+                lut[512 + i] = (byte) rgb;
+            }
+            parts[2 + c] = lut;
+        }
+        return parts;
+    }
+
+    private Channel color(final int c) {
+        return colors != null && c < colors.length ? colors[c] : null;
+    }
+
+    /**
+     * Read rows [y, y + rows) of one channel back from the closed file, e.g. for the PNG export. Safe to call from
+     * several threads on the same channel.
+     */
+    public void read(final FileChannel in, final int c, final int y, final int rows, final short[] values) throws IOException {
+        final int n = rows * width;
+        final ByteBuffer buffer = ByteBuffer.allocate(n * bytes_per_pixel).order(ByteOrder.BIG_ENDIAN);
+        long position = HEADER + c * plane_bytes() + (long) y * width * bytes_per_pixel;
+        while (buffer.hasRemaining()) {
+            final int read = in.read(buffer, position);
+            if (read < 0)
+                throw new EOFException("Unexpected end of " + path.getName());
+            position += read;
+        }
+        buffer.flip();
+        if (bytes_per_pixel == 1) {
+            for (int i = 0; i < n; i++)
+                values[i] = (short) (buffer.get(i) & 0xff);
+        } else {
+            buffer.asShortBuffer().get(values, 0, n);
+        }
+    }
+}
@@ -0,0 +1,522 @@
+package util;
+
+import org.scijava.log.LogService;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+
+/**
+ * Stitches all tiles of one tile scan in an image file: projects the tiles, optionally registers them, fuses them and
+ * writes the stitch of every selected projection, the ROI set and the optional PNG exports next to the image file. Jobs do not use any windows, so
+ * several of them can run at the same time.
+ */
+public class StitchingJob {
+    // Saturated pixels of the display ranges, as "Enhance Contrast" used to set them
+    public static final double SATURATED = 0.35;
+
+    public static class Options {
+        public boolean use_cross_correlation, png_export, invert_x, invert_y;
+        // All computed in one pass over the planes and stitched with the same positions
+        public EnumSet<Projection> projections = EnumSet.of(Projection.MAX);
+        // Also write a tiled multi-resolution pyramid (<base>_stitch.zarr)
+        public boolean pyramid;
+        // Keep projections in memory up to the budget, spill them to disk otherwise
+        public boolean in_memory;
+        public long memory_budget_bytes = Runtime.getRuntime().maxMemory() / 2;
+        public int fusion_threads = Runtime.getRuntime().availableProcessors();
+        public TilePipeline.Settings pipeline = new TilePipeline.Settings();
+        // Projections are kept across jobs up to this size, 0 turns the cache off
+        public long cache_limit_bytes = 0;
+        // Cache location, null for the temporary directory of the machine, so the cache stays off the storage of the
+        // image files
+        public File cache_dir;
+        // Preview: planes binned by this factor while they are read, and only every z_step-th plane read
+        public int preview_bin = 1, preview_z_step = 1;
+        public boolean preview_subsample;
+        // Series indices of the tiles to stitch, null for all tiles of the tile scan
+        public Set<Integer> tiles;
+
+        public boolean preview() {
+            return preview_bin > 1 || preview_z_step > 1;
+        }
+
+        /**
+         * Inserted into the names of the outputs, so previews and regions do not overwrite the full stitch.
+         */
+        public String suffix() {
+            return preview() ? "_preview" : tiles != null ? "_region" : "";
+        }
+    }
+
+    public final ImageFile image_file;
+    public final String series_name;
+    public final File max_projection_dir;
+    public final Channel[] channels;
+    public final List<Series> series;
+    private final Options options;
+    private final LogService log;
+
+    private volatile String stage = "Queued";
+    private volatile int tiles_done = 0;
+    private volatile boolean cancelled = false;
+    private volatile RunReport report;
+
+    public StitchingJob(final ImageFile image_file, final String series_name, final Options options, final LogService log) {
+        this.image_file = image_file;
+        this.series_name = series_name;
+        this.options = options;
+        this.log = log;
+        // Jobs of the same file may run at the same time, so each one spills into its own directory
+        this.max_projection_dir = new File(this.image_file.getParent() + File.separator + ".max_projections"
+                + File.separator + series_name + options.suffix());
+        this.channels = image_file.channels(series_name);
+        this.series = image_file.series.stream()
+                .filter(s -> s.name.equals(series_name))
+                .filter(s -> options.tiles == null || options.tiles.contains(s.index))
+                .collect(Collectors.toList());
+    }
+
+    public String save_path() {
+        return image_file.getParent() + File.separator + image_file.base_name + "_" + series_name + options.suffix();
+    }
+
+    /**
+     * Rough estimate of the peak heap use: the band being fused, the bands of the PNG export, the projections
+     * kept in memory, the buffers of the projection pipeline and the strips of the registration.
+     */
+    public long estimated_bytes() {
+        if (series.isEmpty())
+            return 0;
+        final Series first = series.get(0);
+        final long tile_bytes = (long) first.size_x * first.size_y * first.size_c * 2;
+        final double[][] positions = BlendingFusion.stage_positions(series, options.invert_x, options.invert_y);
+        double min_x = Double.MAX_VALUE, max_x = -Double.MAX_VALUE;
+        for (int i = 0; i < series.size(); i++) {
+            min_x = Math.min(min_x, positions[0][i]);
+            max_x = Math.max(max_x, positions[0][i] + series.get(i).size_x);
+        }
+        // Previews shrink the projections by the square of the binning
+        final long scale = (long) options.preview_bin * options.preview_bin;
+        final long width = (long) Math.ceil(max_x - min_x);
+        // The band, the write buffers of the stitch and the bands of the pyramid
+        long canvas = width * BlendingFusion.BLOCK_SIZE * first.size_c * 2 * 3 / options.preview_bin;
+        if (options.png_export)
+            canvas += PngExport.estimated_bytes(first.size_c, options.fusion_threads);
+        final long projections = options.in_memory || options.preview()
+                ? Math.min(options.memory_budget_bytes, tile_bytes / scale * series.size() * options.projections.size()) : 0;
+        final long accumulator = (long) first.size_x * first.size_y * first.size_c * accumulator_bytes_per_pixel();
+        final TilePipeline.Settings p = options.pipeline;
+        final long pipeline = (long) (p.plane_queue + p.readers) * first.plane_bytes()
+                + (long) (p.readers + p.tile_queue + p.writers) * accumulator;
+        // Previews register the binned tiles
+        final long registration = options.use_cross_correlation
+                ? Registration.estimated_bytes(series, positions[0], positions[1], options.fusion_threads) / scale : 0;
+        return canvas + projections + pipeline + registration;
+    }
+
+    /**
+     * Bytes per pixel and channel of the running statistics of one tile.
+     */
+    private long accumulator_bytes_per_pixel() {
+        final EnumSet<Projection> p = options.projections;
+        long bytes = p.contains(Projection.MAX) ? 2 : 0;
+        if (p.contains(Projection.MEAN) || p.contains(Projection.STD))
+            bytes += 4;
+        if (p.contains(Projection.STD))
+            bytes += 8;
+        if (p.contains(Projection.FOCUS) || p.contains(Projection.EDF))
+            bytes += 8;
+        return bytes;
+    }
+
+    public String progress() {
+        final RunReport report = this.report;
+        return String.format("%s [%s]: %s (%d/%d tiles projected)%s", image_file.getName(), series_name, stage, tiles_done,
+                series.size(), report != null ? ", " + report.counters() : "");
+    }
+
+    /**
+     * Timings of the running or last run of this job, or null before it started.
+     */
+    public RunReport report() {
+        return report;
+    }
+
+    /**
+     * Stop the job at the next tile or stage. The running thread is interrupted by whoever runs the job.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean cancelled() {
+        return cancelled;
+    }
+
+    private void check_cancelled() throws InterruptedException {
+        if (cancelled || Thread.currentThread().isInterrupted())
+            throw new InterruptedException("Cancelled stitching of " + series_name);
+    }
+
+    public void run() throws ExecutionException, InterruptedException {
+        log.debug(String.format("Launching new stitching job.\nImage file: %s\nutil.Series name:%s\nMax Projections dir: %s",
+                this.image_file,
+                this.series_name,
+                this.max_projection_dir));
+        // Previews are small, they are kept in memory as far as possible
+        final Map<Projection, TileStore> stores = stores(max_projection_dir,
+                options.in_memory || options.preview() ? options.memory_budget_bytes : 0);
+        final File cache_dir = options.cache_dir != null ? options.cache_dir
+                : new File(System.getProperty("java.io.tmpdir"), "cryoclem_projection_cache");
+        final ProjectionCache cache = options.cache_limit_bytes > 0 && !options.preview()
+                ? new ProjectionCache(cache_dir, options.cache_limit_bytes) : null;
+        final List<File> pinned = new ArrayList<>();
+        start_report(series);
+        try {
+            stage = "Projecting";
+            stitch(options.preview() ? project_preview(stores) : project_tiles(stores, series, cache, pinned));
+            stage = "Done";
+        } catch (IOException e) {
+            stage = "Failed";
+            throw new ExecutionException(e);
+        } catch (InterruptedException e) {
+            stage = "Cancelled";
+            throw e;
+        } finally {
+            // Cleanup
+            log.debug("Deleting max. projection dir at " + max_projection_dir.getPath());
+            for (TileStore store : stores.values())
+                store.clear();
+            // Only removed once the last job of this file is done with it
+            max_projection_dir.getParentFile().delete();
+            for (File entry : pinned)
+                cache.unpin(entry);
+            write_report(new File(save_path() + "_report.json"));
+        }
+    }
+
+    private void start_report(final List<Series> tiles) {
+        report = new RunReport(image_file.getName() + " [" + series_name + "]");
+        report.add_time("metadata", image_file.metadata_nanos);
+        report.info("file", image_file.getPath());
+        report.info("series", series_name);
+        report.info("tiles", tiles.size());
+        report.info("metadata_indexed", image_file.metadata_indexed);
+        report.info("projections", options.projections);
+        if (options.preview())
+            report.info("preview", String.format("bin %d, every %d. plane, %s", options.preview_bin, options.preview_z_step,
+                    options.preview_subsample ? "subsampled" : "averaged"));
+        report.info("cross_correlation", options.use_cross_correlation);
+        report.info("in_memory", options.in_memory);
+        report.info("readers", options.pipeline.readers);
+        report.info("projectors", options.pipeline.projectors);
+        report.info("writers", options.pipeline.writers);
+        report.info("fusion_threads", options.fusion_threads);
+    }
+
+    /**
+     * Write the report of the run, also for failed and cancelled runs. The job does not depend on it.
+     */
+    private void write_report(final File path) {
+        report.info("result", stage);
+        try {
+            report.write(path);
+        } catch (IOException e) {
+            log.warn(String.format("Unable to write run report %s: %s", path.getPath(), e.getMessage()));
+        }
+    }
+
+    /**
+     * One tile store per selected projection. The maximum spills into the given directory, the other projections into
+     * directories next to it, and the memory budget is shared evenly.
+     */
+    private Map<Projection, TileStore> stores(final File dir, final long budget_bytes) {
+        final Map<Projection, TileStore> stores = new EnumMap<>(Projection.class);
+        for (Projection projection : options.projections)
+            stores.put(projection, new TileStore(projection_dir(dir, projection), budget_bytes / options.projections.size(),
+                    projection));
+        return stores;
+    }
+
+    private static File projection_dir(final File dir, final Projection projection) {
+        return new File(dir.getPath() + projection.suffix());
+    }
+
+    /**
+     * Directory of the projections of this job's tile scan inside a shard directory.
+     */
+    public File shard_series_dir(final File shard_dir) {
+        return new File(shard_dir, series_name);
+    }
+
+    private File shard_marker(final File shard_dir, final int shard, final int shard_count) {
+        return new File(shard_series_dir(shard_dir), String.format("shard_%d_of_%d.done", shard, shard_count));
+    }
+
+    /**
+     * Project the tiles whose series index falls into the given shard and write them to the shard directory, so that
+     * several processes can share the projection of one tile scan. A marker file is written when the shard is complete.
+     */
+    public void project_shard(final File shard_dir, final int shard, final int shard_count) throws ExecutionException, InterruptedException {
+        final List<Series> shard_series = series.stream()
+                .filter(s -> s.index % shard_count == shard)
+                .collect(Collectors.toList());
+        log.info(String.format("Projecting shard %d of %d of %s: %d tiles", shard, shard_count, series_name, shard_series.size()));
+        // Every tile is spilled, the spill files are the output of the shard
+        final Map<Projection, TileStore> stores = stores(shard_series_dir(shard_dir), 0);
+        start_report(shard_series);
+        report.info("shard", shard + " of " + shard_count);
+        try {
+            stage = "Projecting shard " + shard;
+            // Shards write their projections to the shard directory, so they do not use the cache
+            project_tiles(stores, shard_series, null, null);
+            final File marker = shard_marker(shard_dir, shard, shard_count);
+            if (!shard_series_dir(shard_dir).isDirectory() && !shard_series_dir(shard_dir).mkdirs()
+                    || !marker.createNewFile() && !marker.isFile())
+                throw new IOException("Unable to write shard marker " + marker.getPath());
+            stage = "Done";
+        } catch (IOException e) {
+            stage = "Failed";
+            throw new ExecutionException(e);
+        } catch (InterruptedException e) {
+            stage = "Cancelled";
+            throw e;
+        } finally {
+            write_report(new File(shard_series_dir(shard_dir), String.format("shard_%d_of_%d_report.json", shard, shard_count)));
+        }
+    }
+
+    /**
+     * Stitch the projections written by all shards. The shards must have computed the selected projections.
+     */
+    public void merge_shards(final File shard_dir, final int shard_count, final boolean delete_shards) throws ExecutionException, InterruptedException {
+        final File dir = shard_series_dir(shard_dir);
+        final Map<Projection, TileStore> stores = stores(dir, 0);
+        start_report(series);
+        try {
+            for (int shard = 0; shard < shard_count; shard++)
+                if (!shard_marker(shard_dir, shard, shard_count).isFile())
+                    throw new IOException(String.format("Shard %d of %d of %s is not complete", shard, shard_count, series_name));
+            final Map<Projection, List<TileStore.Tile>> tiles = new EnumMap<>(Projection.class);
+            for (Map.Entry<Projection, TileStore> store : stores.entrySet()) {
+                final List<TileStore.Tile> list = new ArrayList<>(series.size());
+                for (Series s : series)
+                    list.add(store.getValue().add_spilled(s, new File(store.getValue().spill_dir, s.mp_title)));
+                tiles.put(store.getKey(), list);
+            }
+            tiles_done = series.size();
+            stitch(tiles);
+            stage = "Done";
+        } catch (IOException e) {
+            stage = "Failed";
+            throw new ExecutionException(e);
+        } catch (InterruptedException e) {
+            stage = "Cancelled";
+            throw e;
+        } finally {
+            write_report(new File(save_path() + "_report.json"));
+        }
+        if (delete_shards) {
+            for (TileStore store : stores.values())
+                store.clear();
+            for (int shard = 0; shard < shard_count; shard++)
+                shard_marker(shard_dir, shard, shard_count).delete();
+            dir.delete();
+            shard_dir.delete();
+        }
+    }
+
+    /**
+     * Register (if enabled) the tiles of the first projection, fuse every projection with the same positions, then
+     * write the stitches, the ROI set and the PNG exports.
+     */
+    private void stitch(final Map<Projection, List<TileStore.Tile>> projections) throws IOException, InterruptedException {
+        final Projection first_projection = Projection.first(projections.keySet());
+        final List<TileStore.Tile> reference = projections.get(first_projection);
+        double[][] positions = BlendingFusion.stage_positions(reference, options.invert_x, options.invert_y);
+        if (options.use_cross_correlation) {
+            check_cancelled();
+            stage = "Registering";
+            final Registration registration;
+            try (RunReport.Span ignored = report.time("registration")) {
+                registration = new Registration(reference, positions[0], positions[1], options.fusion_threads);
+            }
+            log.info(String.format("Registration of %s: %d overlapping pairs, %d links above the regression threshold, %d links kept",
+                    series_name, registration.pairs, registration.links_found, registration.links_kept));
+            positions = new double[][]{registration.position_x, registration.position_y};
+        }
+        for (Map.Entry<Projection, List<TileStore.Tile>> entry : projections.entrySet()) {
+            final Projection projection = entry.getKey();
+            final List<TileStore.Tile> tiles = entry.getValue();
+            final String path = save_path() + projection.suffix();
+            check_cancelled();
+            stage = projections.size() > 1 ? "Fusing " + projection.label : "Fusing";
+            final BlendingFusion fusion = new BlendingFusion(tiles, positions[0], positions[1]);
+            log.debug(String.format("Fusing %d tiles into %d x %d pixels", tiles.size(), fusion.width, fusion.height));
+            final Series first = tiles.get(0);
+            final Pyramid.Writer pyramid = options.pyramid && !options.preview() && projection == first_projection ? new Pyramid.Writer(new File(path + "_stitch.zarr"),
+                    fusion.width, fusion.height, fusion.channels, fusion.bytes_per_pixel, first.cal_x, first.cal_y, channels) : null;
+            // The stitch is written while it is fused, the PNG export reads it back
+            final StitchWriter writer = new StitchWriter(new File(path + "_stitch.tif"), fusion.width, fusion.height,
+                    fusion.channels, fusion.bytes_per_pixel, first.cal_x, first.cal_y, channels, SATURATED);
+            try {
+                try (RunReport.Span ignored = report.time("fusion")) {
+                    fusion.fuse(options.fusion_threads, writer, pyramid);
+                }
+                check_cancelled();
+                stage = projections.size() > 1 ? "Saving " + projection.label : "Saving";
+                log.debug("Saving stitched tif");
+                writer.close();
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                writer.abort();
+                throw e;
+            }
+            report.add_time("tiff_save", writer.nanos());
+            report.written("tiff_save", writer.path.length());
+            report.info("stitch_size", fusion.width + " x " + fusion.height);
+            if (writer.big_tiff)
+                report.info("stitch_format", "BigTIFF");
+
+            if (projection == first_projection) {
+                // The tiles are at the same positions in every projection
+                log.debug("Saving ROIset");
+                final File roi_set = new File(save_path() + "_ROIset.zip");
+                try (RunReport.Span ignored = report.time("roi_set")) {
+                    RoiSet.save(fusion.rois, roi_set);
+                }
+                report.written("roi_set", roi_set.length());
+            }
+
+            // Export PNG
+            if (options.png_export) {
+                log.debug("Rendering and saving PNG export");
+                try (RunReport.Span ignored = report.time("png_save")) {
+                    PngExport.write(writer, channels, new File(path + "_stitched.png"), options.fusion_threads);
+                }
+                report.written("png_save", new File(path + "_stitched.png").length());
+            }
+        }
+    }
+
+    /**
+     * Project all tiles of the series into the tile stores of the projections, which keep them in memory as far as
+     * the budget allows. Tiles whose projections are all found in the cache are not projected again, new projections
+     * are added to the cache as they complete.
+     *
+     * @param cache  the projection cache, or null
+     * @param pinned collects the cache entries used by this job
+     */
+    private Map<Projection, List<TileStore.Tile>> project_tiles(final Map<Projection, TileStore> stores, final List<Series> series,
+                                                               final ProjectionCache cache, final List<File> pinned)
+            throws ExecutionException, InterruptedException {
+        final Map<Projection, List<TileStore.Tile>> tiles = new EnumMap<>(Projection.class);
+        for (Projection projection : stores.keySet())
+            tiles.put(projection, new ArrayList<>(series.size()));
+        List<Series> missing = series;
+        if (cache != null) {
+            missing = new ArrayList<>();
+            int hits = 0;
+            try (RunReport.Span ignored = report.time("cache_lookup")) {
+                for (Series s : series) {
+                    final Map<Projection, File> cached = new EnumMap<>(Projection.class);
+                    for (Projection projection : stores.keySet()) {
+                        final File entry = cache.get(s, projection);
+                        if (entry != null)
+                            cached.put(projection, entry);
+                    }
+                    if (cached.size() < stores.size()) {
+                        // The tile is read anyway, so all its projections are computed again
+                        for (File entry : cached.values())
+                            cache.unpin(entry);
+                        missing.add(s);
+                        continue;
+                    }
+                    for (Map.Entry<Projection, File> entry : cached.entrySet()) {
+                        pinned.add(entry.getValue());
+                        tiles.get(entry.getKey()).add(stores.get(entry.getKey()).add_shared(s, entry.getValue()));
+                        report.read("cache_lookup", entry.getValue().length());
+                    }
+                    hits++;
+                }
+            } catch (IOException e) {
+                throw new ExecutionException(e);
+            }
+            tiles_done = hits;
+            if (hits > 0)
+                log.info(String.format("%d of %d tiles of %s taken from the projection cache", hits, series.size(), series_name));
+        }
+        try (TilePipeline pipeline = new TilePipeline(missing, stores, options.pipeline, report)) {
+            Map<Projection, TileStore.Tile> projected;
+            while ((projected = pipeline.take()) != null) {
+                for (Map.Entry<Projection, TileStore.Tile> entry : projected.entrySet()) {
+                    final TileStore.Tile tile = entry.getValue();
+                    log.debug(String.format("Done with %s projection: %s (%s), %d planes and %d tiles queued", entry.getKey().key,
+                            tile.mp_title, tile.spilled() ? "spilled" : "in memory", pipeline.planes_queued(), pipeline.tiles_queued()));
+                    tiles.get(entry.getKey()).add(tile);
+                    if (cache != null) {
+                        try (RunReport.Span ignored = report.time("cache_put")) {
+                            cache.put(tile, entry.getKey());
+                        } catch (IOException e) {
+                            // The job does not depend on the cache
+                            log.warn(String.format("Unable to cache %s: %s", tile.mp_title, e.getMessage()));
+                        }
+                    }
+                }
+                tiles_done++;
+                check_cancelled();
+            }
+        }
+        if (!missing.isEmpty()) {
+            // Checked by the pipeline already, so this only counts
+            final long mapped = missing.stream().filter(s -> s.file.mapped.supports(s)).count();
+            report.info("mapped_tiles", mapped + " of " + missing.size());
+            log.info(String.format("%d of %d tiles of %s read through memory maps", mapped, missing.size(), series_name));
+        }
+        // Tiles complete in any order, keep the series order for the registration and the ROIs
+        for (List<TileStore.Tile> list : tiles.values())
+            list.sort(Comparator.comparingInt(t -> t.index));
+        return tiles;
+    }
+
+    /**
+     * Project all tiles at preview resolution, one tile per reader thread.
+     */
+    private Map<Projection, List<TileStore.Tile>> project_preview(final Map<Projection, TileStore> stores)
+            throws ExecutionException, InterruptedException {
+        final Preview preview = new Preview(options.preview_bin, options.preview_z_step, options.preview_subsample);
+        final Map<Projection, List<TileStore.Tile>> tiles = new EnumMap<>(Projection.class);
+        for (Projection projection : stores.keySet())
+            tiles.put(projection, new ArrayList<>(series.size()));
+        final ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, options.pipeline.readers));
+        try {
+            final List<Future<MaxProjection>> projected = new ArrayList<>(series.size());
+            for (Series s : series)
+                projected.add(pool.submit(() -> preview.project(s, stores.keySet(), report)));
+            // Collected in series order, so the tiles need no sorting
+            for (Future<MaxProjection> future : projected) {
+                final MaxProjection mp = future.get();
+                for (Map.Entry<Projection, TileStore> store : stores.entrySet())
+                    tiles.get(store.getKey()).add(store.getValue().add(mp, mp.images.get(store.getKey())));
+                tiles_done++;
+                check_cancelled();
+            }
+        } catch (IOException e) {
+            throw new ExecutionException(e);
+        } finally {
+            pool.shutdownNow();
+        }
+        return tiles;
+    }
+}
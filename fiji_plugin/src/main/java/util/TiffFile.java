@@ -0,0 +1,279 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A TIFF or BigTIFF file being written, shared by the TIFF writers: positional writes, the header and the encoding of
+ * image directories. Where the pixel data and the directories go is up to the writers.
+ */
+final class TiffFile {
+    static final short BYTE = 1, ASCII = 2, SHORT = 3, LONG = 4, RATIONAL = 5, LONG8 = 16;
+    static final long MAX_OFFSET = 0xffffffffL;
+
+    final File path;
+    final ByteOrder order;
+    final boolean big_tiff;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    /**
+     * Create or truncate the file.
+     */
+    TiffFile(final File path, final ByteOrder order, final boolean big_tiff) throws IOException {
+        this.path = path;
+        this.order = order;
+        this.big_tiff = big_tiff;
+        this.file = new RandomAccessFile(path, "rw");
+        this.file.setLength(0);
+        this.channel = file.getChannel();
+    }
+
+    /**
+     * Bytes of the header, the pixel data may start right after it.
+     */
+    int header_bytes() {
+        return big_tiff ? 16 : 8;
+    }
+
+    /**
+     * Type of strip and tile offsets and byte counts.
+     */
+    short offset_type() {
+        return big_tiff ? LONG8 : LONG;
+    }
+
+    void set_length(final long length) throws IOException {
+        file.setLength(length);
+    }
+
+    /**
+     * Fail if a classic TIFF would need offsets beyond 4 GB.
+     */
+    void check_size(final long end) throws IOException {
+        if (!big_tiff && end > MAX_OFFSET)
+            throw new IOException(path.getName() + " would be larger than 4 GB");
+    }
+
+    /**
+     * Write a buffer at a position, may be called from several threads.
+     */
+    void write_fully(final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    /**
+     * Write the header with the offset of the first directory.
+     */
+    void header(final long first_ifd) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(header_bytes()).order(order);
+        final byte mark = (byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M');
+        header.put(mark).put(mark);
+        if (big_tiff)
+            header.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(first_ifd);
+        else
+            header.putShort((short) 42).putInt((int) first_ifd);
+        header.flip();
+        write_fully(header, 0);
+    }
+
+    /**
+     * Write directories one after the other, each pointing to the next.
+     *
+     * @param next offset of the directory after the last one, 0 if there is none
+     */
+    void write_ifds(final List<Ifd> ifds, final long start, final long next) throws IOException {
+        long size = 0;
+        for (Ifd ifd : ifds)
+            size += ifd.size();
+        check_size(start + size);
+        final ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(size)).order(order);
+        long position = start;
+        for (Ifd ifd : ifds) {
+            final long end = position + ifd.size();
+            ifd.put(buffer, position, ifd == ifds.get(ifds.size() - 1) ? next : end);
+            position = end;
+        }
+        buffer.flip();
+        write_fully(buffer, start);
+    }
+
+    void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Close and delete an incomplete file.
+     */
+    void abort() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            // The file is deleted anyway
+        }
+        path.delete();
+    }
+
+    Ifd ifd() {
+        return new Ifd();
+    }
+
+    /**
+     * One image directory. Entries may be added in any order, values that do not fit into their entry follow the
+     * directory, each on a word boundary.
+     */
+    final class Ifd {
+        private final List<Entry> entries = new ArrayList<>();
+
+        private Ifd() {
+        }
+
+        /**
+         * @param values numbers of a SHORT, LONG or LONG8 entry, numerator and denominator pairs of a RATIONAL one
+         */
+        Ifd add(final int tag, final short type, final long... values) {
+            entries.add(new Entry(tag, type, values, null));
+            return this;
+        }
+
+        /**
+         * An ASCII or BYTE entry, ASCII text ends with a zero byte.
+         */
+        Ifd add(final int tag, final short type, final byte[] bytes) {
+            entries.add(new Entry(tag, type, null, bytes));
+            return this;
+        }
+
+        private int entry_bytes() {
+            return big_tiff ? 20 : 12;
+        }
+
+        private int inline() {
+            return big_tiff ? 8 : 4;
+        }
+
+        private int head() {
+            return (big_tiff ? 8 : 2) + entries.size() * entry_bytes() + (big_tiff ? 8 : 4);
+        }
+
+        /**
+         * Bytes of the directory with the values that follow it.
+         */
+        int size() {
+            int size = head();
+            for (Entry e : entries)
+                if (e.size() > inline())
+                    size += e.size() + (e.size() & 1);
+            return size;
+        }
+
+        private List<Entry> sorted() {
+            final List<Entry> sorted = new ArrayList<>(entries);
+            sorted.sort(Comparator.comparingInt(e -> e.tag));
+            return sorted;
+        }
+
+        /**
+         * Put the directory and its values.
+         *
+         * @param position offset of the directory in the file
+         * @param next     offset of the next directory, 0 for the last one
+         */
+        void put(final ByteBuffer buffer, final long position, final long next) {
+            final List<Entry> sorted = sorted();
+            long extra = position + head();
+            final List<Entry> outside = new ArrayList<>();
+            if (big_tiff)
+                buffer.putLong(sorted.size());
+            else
+                buffer.putShort((short) sorted.size());
+            for (Entry e : sorted) {
+                buffer.putShort((short) e.tag).putShort(e.type);
+                if (big_tiff)
+                    buffer.putLong(e.count());
+                else
+                    buffer.putInt(e.count());
+                if (e.size() > inline()) {
+                    if (big_tiff)
+                        buffer.putLong(extra);
+                    else
+                        buffer.putInt((int) extra);
+                    outside.add(e);
+                    extra += e.size() + (e.size() & 1);
+                } else {
+                    final int at = buffer.position();
+                    e.put(buffer);
+                    buffer.position(at + inline());
+                }
+            }
+            if (big_tiff)
+                buffer.putLong(next);
+            else
+                buffer.putInt((int) next);
+            for (Entry e : outside) {
+                e.put(buffer);
+                if ((e.size() & 1) != 0)
+                    buffer.put((byte) 0);
+            }
+        }
+    }
+
+    /**
+     * One directory entry, with its values as numbers or as raw bytes.
+     */
+    private static final class Entry {
+        final int tag;
+        final short type;
+        final long[] values;
+        final byte[] bytes;
+
+        Entry(final int tag, final short type, final long[] values, final byte[] bytes) {
+            this.tag = tag;
+            this.type = type;
+            this.values = values;
+            this.bytes = bytes;
+        }
+
+        int count() {
+            return bytes != null ? bytes.length : type == RATIONAL ? values.length / 2 : values.length;
+        }
+
+        int size() {
+            if (bytes != null)
+                return bytes.length;
+            return values.length * (type == SHORT ? 2 : type == LONG8 ? 8 : 4);
+        }
+
+        void put(final ByteBuffer buffer) {
+            if (bytes != null) {
+                buffer.put(bytes);
+                return;
+            }
+            for (long v : values) {
+                if (type == SHORT)
+                    buffer.putShort((short) v);
+                else if (type == LONG8)
+                    buffer.putLong(v);
+                else
+                    buffer.putInt((int) v);
+            }
+        }
+    }
+
+    /**
+     * A resolution in pixels per unit from a pixel size, with the same precision as ImageJ's encoder.
+     */
+    static long[] rational(final double cal) {
+        final double value = cal > 0 ? 1 / cal : 1;
+        final int denominator = value > 1000 ? 1 : 1000000;
+        return new long[]{Math.round(value * denominator), denominator};
+    }
+}
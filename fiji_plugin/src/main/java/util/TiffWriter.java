@@ -0,0 +1,156 @@
+package util;
+
+import ij.IJ;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes a stack of raw planes to an uncompressed multi-page TIFF while they arrive, in any order. The file is sized
+ * on creation and every plane goes to its own place, so the planes are stored one after the other in the order of the
+ * stack, in the byte order of the source, as ImageJ expects. The first image directory comes before the planes, the
+ * others are written after them on {@link #close()}. Stacks larger than 4 GB only get the first directory, ImageJ
+ * opens them from the description like its own files.
+ */
+public class TiffWriter implements PlaneWriter {
+    public final File path;
+    private final int width, height, bytes_per_pixel, slices, frames;
+    private final double cal_x, cal_y;
+    private final TiffFile file;
+    private final byte[] description;
+    // Offset of the first plane
+    private final long data;
+    private final boolean[] claimed;
+    private int written = 0;
+
+    /**
+     * @param slices number of z planes, the stack holds slices * frames planes in z, t order
+     * @param cal_x  pixel size in micron, 0 if unknown
+     */
+    public TiffWriter(final File path, final int width, final int height, final int bytes_per_pixel, final boolean little_endian,
+                      final int slices, final int frames, final double cal_x, final double cal_y) throws IOException {
+        this.path = path;
+        this.width = width;
+        this.height = height;
+        this.bytes_per_pixel = bytes_per_pixel;
+        this.slices = slices;
+        this.frames = frames;
+        this.cal_x = cal_x;
+        this.cal_y = cal_y;
+        this.claimed = new boolean[slices * frames];
+        this.description = description();
+        this.file = new TiffFile(path, little_endian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN, false);
+        this.data = file.header_bytes() + ifd(0, 0).size();
+        this.file.set_length(data + claimed.length * plane_bytes());
+    }
+
+    public int planes() {
+        return claimed.length;
+    }
+
+    /**
+     * Write one plane to its place in the stack. Planes may be written concurrently.
+     *
+     * @param plane zero-indexed plane number, z + t * slices
+     * @param data  raw plane with the byte order given to the constructor
+     */
+    @Override
+    public void write(final int plane, final ByteBuffer data) throws IOException {
+        if (data.remaining() < plane_bytes())
+            throw new IOException(String.format("Plane %d of %s is too short", plane, path.getName()));
+        synchronized (this) {
+            if (claimed[plane])
+                throw new IOException(String.format("Plane %d of %s was already written", plane, path.getName()));
+            claimed[plane] = true;
+        }
+        final ByteBuffer view = data.duplicate();
+        view.limit(view.position() + (int) plane_bytes());
+        file.write_fully(view, offset(plane));
+        synchronized (this) {
+            written++;
+        }
+    }
+
+    private long plane_bytes() {
+        return (long) width * height * bytes_per_pixel;
+    }
+
+    private long offset(final int plane) {
+        return data + plane * plane_bytes();
+    }
+
+    /**
+     * Write the image directories and close the file. All planes must have been written.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (written != claimed.length)
+                throw new IOException(String.format("Only %d of %d planes written to %s", written, claimed.length, path.getName()));
+            final long end = offset(claimed.length);
+            final List<TiffFile.Ifd> ifds = new ArrayList<>();
+            for (int p = 1; p < claimed.length; p++)
+                ifds.add(ifd(p, offset(p)));
+            // Directories after the planes would lie beyond the reach of 32-bit offsets
+            if (!ifds.isEmpty() && end + (long) ifds.size() * ifds.get(0).size() > TiffFile.MAX_OFFSET)
+                ifds.clear();
+            file.header(file.header_bytes());
+            file.write_ifds(Collections.singletonList(ifd(0, data)), file.header_bytes(), ifds.isEmpty() ? 0 : end);
+            if (!ifds.isEmpty())
+                file.write_ifds(ifds, end, 0);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Directory of a plane, the first one also carries the description.
+     */
+    private TiffFile.Ifd ifd(final int plane, final long offset) {
+        final TiffFile.Ifd ifd = file.ifd()
+                .add(256, TiffFile.LONG, width)
+                .add(257, TiffFile.LONG, height)
+                .add(258, TiffFile.SHORT, bytes_per_pixel * 8)
+                .add(259, TiffFile.SHORT, 1) // No compression
+                .add(262, TiffFile.SHORT, 1) // Black is zero
+                .add(273, TiffFile.LONG, offset)
+                .add(277, TiffFile.SHORT, 1)
+                .add(278, TiffFile.LONG, height)
+                .add(279, TiffFile.LONG, plane_bytes())
+                .add(282, TiffFile.RATIONAL, TiffFile.rational(cal_x))
+                .add(283, TiffFile.RATIONAL, TiffFile.rational(cal_y))
+                .add(296, TiffFile.SHORT, 1); // The unit is in the description
+        if (plane == 0)
+            ifd.add(270, TiffFile.ASCII, description);
+        return ifd;
+    }
+
+    /**
+     * Close and delete an incomplete file.
+     */
+    @Override
+    public synchronized void abort() {
+        file.abort();
+    }
+
+    private byte[] description() {
+        final StringBuilder sb = new StringBuilder("ImageJ=").append(IJ.getVersion()).append('\n');
+        sb.append("images=").append(claimed.length).append('\n');
+        if (slices > 1)
+            sb.append("slices=").append(slices).append('\n');
+        if (frames > 1)
+            sb.append("frames=").append(frames).append('\n');
+        if (slices > 1 && frames > 1)
+            sb.append("hyperstack=true\n");
+        if (cal_x > 0)
+            sb.append("unit=micron\n");
+        sb.append("loop=false\n").append('\0');
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+}
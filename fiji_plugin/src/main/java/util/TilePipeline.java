@@ -0,0 +1,256 @@
+package util;
+
+import loci.formats.IFormatReader;
+
+import java.io.Closeable;
+import java.nio.ShortBuffer;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Projects tiles in three stages joined by bounded queues: reader threads read planes from the image file,
+ * projection workers fold them into the running statistics, and writer threads hand finished projections to the tile
+ * store of each projection (which may write them to disk). The number of plane buffers is bounded by the plane queue depth, so a slow
+ * stage stalls the ones before it instead of piling up stacks in memory. Finished tiles are returned by
+ * {@link #take()} in the order they complete.
+ */
+public class TilePipeline implements Closeable {
+
+    public static class Settings {
+        public int readers = 2;
+        public int projectors = Runtime.getRuntime().availableProcessors();
+        public int writers = 2;
+        // Planes waiting for a projection worker, also bounds the number of plane buffers
+        public int plane_queue = 16;
+        // Finished projections waiting for a writer
+        public int tile_queue = 4;
+    }
+
+    private static class Plane {
+        final InFlight tile;
+        final int channel, z;
+        final byte[] buffer;
+        // Mapped plane, instead of a buffer
+        final ShortBuffer view;
+
+        Plane(InFlight tile, int channel, int z, byte[] buffer, ShortBuffer view) {
+            this.tile = tile;
+            this.channel = channel;
+            this.z = z;
+            this.buffer = buffer;
+            this.view = view;
+        }
+    }
+
+    private static class InFlight {
+        final MaxProjection.Accumulator acc;
+        final AtomicInteger remaining;
+
+        InFlight(MaxProjection.Accumulator acc) {
+            this.acc = acc;
+            this.remaining = new AtomicInteger(acc != null ? acc.planes() : 0);
+        }
+    }
+
+    private static class Failure {
+        final Throwable cause;
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    private static final Plane END_OF_PLANES = new Plane(null, -1, -1, null, null);
+    private static final InFlight END_OF_TILES = new InFlight(null);
+
+    private final Settings settings;
+    private final Map<Projection, TileStore> stores;
+    private final RunReport report;
+    private final int total;
+    private final BlockingQueue<Series> pending;
+    private final BlockingQueue<Plane> planes;
+    private final BlockingQueue<InFlight> projected;
+    private final BlockingQueue<Object> done = new LinkedBlockingQueue<>();
+    private final Semaphore buffers;
+    private final ConcurrentLinkedQueue<byte[]> recycled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger readers_left, projectors_left;
+    private final ExecutorService read_pool, project_pool, write_pool;
+    private int taken = 0;
+
+    /**
+     * @param stores the store of each projection to compute
+     * @param report records the time, bytes and planes of every stage and the depths of the queues
+     */
+    public TilePipeline(final List<? extends Series> tiles, final Map<Projection, TileStore> stores, final Settings settings,
+                        final RunReport report) {
+        this.settings = settings;
+        this.stores = new EnumMap<>(stores);
+        this.report = report;
+        this.total = tiles.size();
+        this.pending = new LinkedBlockingQueue<>(tiles);
+        this.planes = new ArrayBlockingQueue<>(Math.max(1, settings.plane_queue));
+        this.projected = new ArrayBlockingQueue<>(Math.max(1, settings.tile_queue));
+        // Every reader may hold one buffer while it waits for space in the queue
+        this.buffers = new Semaphore(Math.max(1, settings.plane_queue) + settings.readers);
+        this.readers_left = new AtomicInteger(settings.readers);
+        this.projectors_left = new AtomicInteger(settings.projectors);
+        this.read_pool = Executors.newFixedThreadPool(settings.readers);
+        this.project_pool = Executors.newFixedThreadPool(settings.projectors);
+        this.write_pool = Executors.newFixedThreadPool(settings.writers);
+        for (int i = 0; i < settings.readers; i++)
+            read_pool.submit(this::read);
+        for (int i = 0; i < settings.projectors; i++)
+            project_pool.submit(this::project);
+        for (int i = 0; i < settings.writers; i++)
+            write_pool.submit(this::write);
+    }
+
+    public int size() {
+        return total;
+    }
+
+    /**
+     * The projections of the next finished tile, blocking until one is available.
+     *
+     * @return the tile of every projection, or null once all tiles have been returned
+     */
+    @SuppressWarnings("unchecked")
+    public Map<Projection, TileStore.Tile> take() throws ExecutionException, InterruptedException {
+        if (taken == total)
+            return null;
+        final Object next = done.take();
+        if (next instanceof Failure) {
+            close();
+            throw new ExecutionException(((Failure) next).cause);
+        }
+        taken++;
+        return (Map<Projection, TileStore.Tile>) next;
+    }
+
+    public int planes_queued() {
+        return planes.size();
+    }
+
+    public int tiles_queued() {
+        return projected.size();
+    }
+
+    @Override
+    public void close() {
+        read_pool.shutdownNow();
+        project_pool.shutdownNow();
+        write_pool.shutdownNow();
+    }
+
+    private void fail(final Throwable e) {
+        done.offer(new Failure(e));
+        close();
+    }
+
+    private void read() {
+        try {
+            Series series;
+            while ((series = pending.poll()) != null) {
+                final InFlight tile = new InFlight(new MaxProjection.Accumulator(series, stores.keySet()));
+                // Checked before borrowing, the check needs a reader of its own
+                final boolean mapped = series.file.mapped.supports(series);
+                final IFormatReader reader = series.file.readers.borrow(series.index);
+                try {
+                    for (int n = 0; n < tile.acc.planes(); n++) {
+                        buffers.acquire();
+                        report.queue("plane_queue", planes.size());
+                        // Mapped planes are only paged in by the projection, their bytes count as read all the same
+                        report.read("plane_read", series.plane_bytes());
+                        report.planes("plane_read", 1);
+                        if (mapped) {
+                            // Still bounded by the buffers, so the page cache is not flooded ahead of the projection
+                            planes.put(new Plane(tile, tile.acc.plane_channel(n), tile.acc.plane_z(n), null,
+                                    series.file.mapped.plane(series, tile.acc.plane_index(reader, n))));
+                            continue;
+                        }
+                        byte[] buffer = recycled.poll();
+                        if (buffer == null || buffer.length != series.plane_bytes())
+                            buffer = new byte[series.plane_bytes()];
+                        try (RunReport.Span ignored = report.time("plane_read")) {
+                            reader.openBytes(tile.acc.plane_index(reader, n), buffer);
+                        }
+                        planes.put(new Plane(tile, tile.acc.plane_channel(n), tile.acc.plane_z(n), buffer, null));
+                    }
+                } finally {
+                    series.file.readers.give_back(reader);
+                }
+            }
+            if (readers_left.decrementAndGet() == 0)
+                for (int i = 0; i < settings.projectors; i++)
+                    planes.put(END_OF_PLANES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+
+    private void project() {
+        try {
+            Plane plane;
+            while ((plane = planes.take()) != END_OF_PLANES) {
+                try (RunReport.Span ignored = report.time("projection")) {
+                    if (plane.view != null) {
+                        plane.tile.acc.fold(plane.channel, plane.z, plane.view);
+                    } else {
+                        plane.tile.acc.fold(plane.channel, plane.z, plane.buffer);
+                        recycled.offer(plane.buffer);
+                    }
+                }
+                report.planes("projection", 1);
+                buffers.release();
+                if (plane.tile.remaining.decrementAndGet() == 0) {
+                    report.queue("tile_queue", projected.size());
+                    projected.put(plane.tile);
+                }
+            }
+            if (projectors_left.decrementAndGet() == 0)
+                for (int i = 0; i < settings.writers; i++)
+                    projected.put(END_OF_TILES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+
+    private void write() {
+        try {
+            InFlight tile;
+            while ((tile = projected.take()) != END_OF_TILES) {
+                final MaxProjection mp = new MaxProjection(tile.acc);
+                final Map<Projection, TileStore.Tile> stored = new EnumMap<>(Projection.class);
+                for (Map.Entry<Projection, TileStore> store : stores.entrySet()) {
+                    final TileStore.Tile t;
+                    try (RunReport.Span ignored = report.time("tile_write")) {
+                        t = store.getValue().add(mp, mp.images.get(store.getKey()));
+                    }
+                    if (t.spilled())
+                        report.written("tile_write", t.file().length());
+                    stored.put(store.getKey(), t);
+                }
+                done.put(Collections.unmodifiableMap(stored));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+}
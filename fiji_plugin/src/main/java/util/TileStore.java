@@ -0,0 +1,169 @@
+package util;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the projected tiles of one stitching job until they are stitched. Tiles stay in memory as long as they fit
+ * into the memory budget, the remaining ones are spilled to TIFF files in the spill directory.
+ */
+public class TileStore {
+    public final File spill_dir;
+    public final Projection projection;
+    private final long budget;
+    private long in_memory = 0;
+    private final ArrayList<Tile> tiles = new ArrayList<>();
+
+    public static class Tile extends Series {
+        private ImagePlus imp;
+        private File file;
+        // Files owned by someone else, e.g. the projection cache, are not deleted with the store
+        private final boolean owned;
+        private final int bytes_per_pixel;
+
+        private Tile(final Series series, final Projection projection, final ImagePlus imp, final File file) {
+            this(series, projection, imp, file, true);
+        }
+
+        private Tile(final Series series, final Projection projection, final ImagePlus imp, final File file,
+                     final boolean owned) {
+            super(series);
+            this.imp = imp;
+            this.file = file;
+            this.owned = owned;
+            this.bytes_per_pixel = projection.bytes_per_pixel(series);
+        }
+
+        /**
+         * Bytes per pixel of the projected image, which may differ from the series, see
+         * {@link Projection#bytes_per_pixel}.
+         */
+        @Override
+        public int bytes_per_pixel() {
+            return bytes_per_pixel;
+        }
+
+        public boolean spilled() {
+            return imp == null;
+        }
+
+        /**
+         * The spill file, or null if the tile is held in memory.
+         */
+        public File file() {
+            return file;
+        }
+
+        /**
+         * The projected image, which is read back from disk for spilled tiles.
+         */
+        public ImagePlus open() throws IOException {
+            if (imp != null)
+                return imp;
+            final ImagePlus opened = IJ.openImage(file.getPath());
+            if (opened == null)
+                throw new IOException("Unable to read spilled tile " + file.getPath());
+            return opened;
+        }
+    }
+
+    /**
+     * @param spill_dir    where tiles that do not fit into memory are written
+     * @param budget_bytes memory budget for tiles held in memory, 0 spills every tile
+     * @param projection   the projection of the tiles
+     */
+    public TileStore(final File spill_dir, final long budget_bytes, final Projection projection) {
+        this.spill_dir = spill_dir;
+        this.projection = projection;
+        this.budget = budget_bytes;
+    }
+
+    /**
+     * Add one projection of a series.
+     */
+    public Tile add(final Series series, final ImagePlus imp) throws IOException {
+        final long bytes = (long) series.size_x * series.size_y * projection.bytes_per_pixel(series) * series.size_c;
+        final boolean keep;
+        synchronized (this) {
+            keep = in_memory + bytes <= budget;
+            if (keep)
+                in_memory += bytes;
+        }
+        final Tile tile;
+        if (keep) {
+            tile = new Tile(series, projection, imp, null);
+        } else {
+            if (!spill_dir.isDirectory() && !spill_dir.mkdirs())
+                throw new IOException("Unable to create directory " + spill_dir.getPath());
+            final File file = new File(spill_dir, series.mp_title);
+            if (!new FileSaver(imp).saveAsTiff(file.getPath()))
+                throw new IOException("Unable to spill tile to " + file.getPath());
+            tile = new Tile(series, projection, null, file);
+        }
+        synchronized (this) {
+            tiles.add(tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Add a tile whose projection was already written to disk, e.g. by another process.
+     */
+    public Tile add_spilled(final Series series, final File file) throws IOException {
+        if (!file.isFile())
+            throw new IOException("Missing projection " + file.getPath());
+        final Tile tile = new Tile(series, projection, null, file);
+        synchronized (this) {
+            tiles.add(tile);
+        }
+        return tile;
+    }
+
+    /**
+     * Add a tile whose projection is kept in a file the store must not delete.
+     */
+    public Tile add_shared(final Series series, final File file) throws IOException {
+        if (!file.isFile())
+            throw new IOException("Missing projection " + file.getPath());
+        final Tile tile = new Tile(series, projection, null, file, false);
+        synchronized (this) {
+            tiles.add(tile);
+        }
+        return tile;
+    }
+
+    public synchronized List<Tile> tiles() {
+        return new ArrayList<>(tiles);
+    }
+
+    public synchronized long bytes_in_memory() {
+        return in_memory;
+    }
+
+    /**
+     * Drop all tiles and delete the spill files.
+     */
+    public void clear() {
+        final List<Tile> dropped;
+        synchronized (this) {
+            dropped = new ArrayList<>(tiles);
+            tiles.clear();
+            in_memory = 0;
+        }
+        for (Tile tile : dropped) {
+            tile.imp = null;
+            if (tile.file != null && tile.owned)
+                tile.file.delete();
+            tile.file = null;
+        }
+        final File[] remaining = spill_dir.listFiles();
+        if (spill_dir.isDirectory() && remaining != null && remaining.length == 0)
+            spill_dir.delete();
+    }
+}
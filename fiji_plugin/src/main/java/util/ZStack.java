@@ -1,32 +1,98 @@
 package util;
 
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
 import loci.formats.FormatException;
-import loci.plugins.BF;
-import loci.plugins.in.ImporterOptions;
-import org.scijava.log.LogService;
-import org.scijava.plugin.Parameter;
+import loci.formats.IFormatReader;
 
 import java.io.IOException;
 
 public class ZStack extends Series {
     public final ImagePlus imp;
+    private final boolean mapped;
 
     public ZStack(final Series series, boolean virtual) throws IOException, FormatException {
         super(series);
+        Pixels.check_supported(pixel_type);
+        this.mapped = file.mapped.supports(this);
         // log.debug(String.format("Starting import of new util.ZStack: %s[%d]", series.name, series.index));
-        final ImporterOptions options = new ImporterOptions();
-        options.setId(series.file.getPath());
-        options.clearSeries();
-        options.setSeriesOn(series.index, true);
-        options.setVirtual(virtual);
-        options.checkObsoleteOptions();
-        this.imp = BF.openImagePlus(options)[0];
+        final ImageStack stack;
+        if (virtual) {
+            stack = new PlaneStack(this);
+        } else {
+            stack = new ImageStack(size_x, size_y);
+            final IFormatReader reader = file.readers.borrow(index);
+            try {
+                final byte[] plane = new byte[plane_bytes()];
+                for (int n = 0; n < size_c * size_z * size_t; n++) {
+                    stack.addSlice(read_plane(reader, n, plane));
+                }
+            } finally {
+                file.readers.give_back(reader);
+            }
+        }
+        this.imp = new ImagePlus(mp_title, stack);
+        this.imp.setDimensions(size_c, size_z, size_t);
+        this.imp.setOpenAsHyperStack(true);
+        if (cal_x > 0) {
+            this.imp.getCalibration().pixelWidth = cal_x;
+            this.imp.getCalibration().pixelHeight = cal_y;
+            this.imp.getCalibration().setUnit("micron");
+        }
         // log.debug(String.format("Done importing util.ZStack %s[%d]", series.name, series.index));
     }
 
+    /**
+     * Read the n-th (zero-indexed) plane in ImageJ's CZT order.
+     */
+    private ImageProcessor read_plane(final IFormatReader reader, final int n, final byte[] plane) throws IOException, FormatException {
+        final int c = n % size_c, z = n / size_c % size_z, t = n / (size_c * size_z);
+        if (mapped)
+            return Pixels.processor(file.mapped.plane(this, reader.getIndex(z, c, t)), size_x, size_y);
+        reader.openBytes(reader.getIndex(z, c, t), plane);
+        return Pixels.processor(plane, size_x, size_y, bytes_per_pixel(), little_endian);
+    }
+
     private void discard() {
         this.imp.changes = false;
         this.imp.close();
     }
+
+    /**
+     * Virtual stack which borrows a pooled reader for every plane that ImageJ asks for.
+     */
+    private static class PlaneStack extends VirtualStack {
+        private final ZStack zstack;
+
+        private PlaneStack(final ZStack zstack) {
+            super(zstack.size_x, zstack.size_y, null, null);
+            this.zstack = zstack;
+        }
+
+        @Override
+        public ImageProcessor getProcessor(final int n) {
+            try {
+                final IFormatReader reader = zstack.file.readers.borrow(zstack.index);
+                try {
+                    return zstack.read_plane(reader, n - 1, new byte[zstack.plane_bytes()]);
+                } finally {
+                    zstack.file.readers.give_back(reader);
+                }
+            } catch (IOException | FormatException e) {
+                throw new RuntimeException(String.format("Unable to read plane %d of %s", n, zstack.mp_title), e);
+            }
+        }
+
+        @Override
+        public int getSize() {
+            return zstack.size_c * zstack.size_z * zstack.size_t;
+        }
+
+        @Override
+        public String getSliceLabel(final int n) {
+            return null;
+        }
+    }
 }
@@ -0,0 +1,143 @@
+package util;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The kernels on the Vector API, loaded by {@link Kernels} when it is available. All vectors have the preferred shape
+ * of the CPU; the 16-bit lanes are widened part by part, zero-extended, to int, long and double lanes. The remainder of
+ * every loop that does not fill a vector is done one value at a time.
+ */
+final class VectorKernels extends Kernels {
+    private static final VectorSpecies<Short> SHORTS = ShortVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+    // Vectors of the wider type per vector of the narrower one
+    private static final int INT_PARTS = SHORTS.length() / INTS.length();
+    private static final int LONG_PARTS = SHORTS.length() / LONGS.length();
+    private static final int DOUBLE_PARTS = INTS.length() / DOUBLES.length();
+
+    @Override
+    public String name() {
+        return "vector " + SHORTS.vectorBitSize() + " bit";
+    }
+
+    @Override
+    public void max(final short[] acc, final short[] values, final int n) {
+        final int bound = SHORTS.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += SHORTS.length()) {
+            final ShortVector v = ShortVector.fromArray(SHORTS, values, i);
+            final ShortVector a = ShortVector.fromArray(SHORTS, acc, i);
+            a.blend(v, v.compare(VectorOperators.UNSIGNED_GT, a)).intoArray(acc, i);
+        }
+        for (; i < n; i++)
+            if ((values[i] & 0xffff) > (acc[i] & 0xffff))
+                acc[i] = values[i];
+    }
+
+    @Override
+    public void accumulate(final int[] sum, final long[] sum_sq, final short[] values, final int n) {
+        final int bound = SHORTS.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += SHORTS.length()) {
+            final ShortVector v = ShortVector.fromArray(SHORTS, values, i);
+            for (int p = 0; p < INT_PARTS; p++) {
+                final int at = i + p * INTS.length();
+                IntVector.fromArray(INTS, sum, at).add(ints(v, p)).intoArray(sum, at);
+            }
+            if (sum_sq != null) {
+                for (int p = 0; p < LONG_PARTS; p++) {
+                    final int at = i + p * LONGS.length();
+                    final LongVector w = ((LongVector) v.convert(VectorOperators.S2L, p)).lanewise(VectorOperators.AND, 0xffffL);
+                    LongVector.fromArray(LONGS, sum_sq, at).add(w.mul(w)).intoArray(sum_sq, at);
+                }
+            }
+        }
+        for (; i < n; i++) {
+            final int v = values[i] & 0xffff;
+            sum[i] += v;
+            if (sum_sq != null)
+                sum_sq[i] += (long) v * v;
+        }
+    }
+
+    @Override
+    public void blend(final double[] sum, final int sum_at, final short[] pixels, final int top, final int bottom,
+                      final double fx, final double fy, final double[] weights, final int weights_at, final int n) {
+        final int bound = SHORTS.loopBound(n);
+        int i = 0;
+        for (; i < bound; i += SHORTS.length()) {
+            final ShortVector top_left = ShortVector.fromArray(SHORTS, pixels, top + i);
+            final ShortVector top_right = fx == 0 ? null : ShortVector.fromArray(SHORTS, pixels, top + i + 1);
+            final ShortVector bottom_left = fy == 0 ? null : ShortVector.fromArray(SHORTS, pixels, bottom + i);
+            final ShortVector bottom_right = fy == 0 || fx == 0 ? null : ShortVector.fromArray(SHORTS, pixels, bottom + i + 1);
+            for (int p = 0; p < INT_PARTS; p++) {
+                for (int q = 0; q < DOUBLE_PARTS; q++) {
+                    DoubleVector value = row(top_left, top_right, p, q, fx);
+                    if (fy != 0)
+                        value = value.mul(1 - fy).add(row(bottom_left, bottom_right, p, q, fx).mul(fy));
+                    final int k = i + (p * DOUBLE_PARTS + q) * DOUBLES.length();
+                    DoubleVector.fromArray(DOUBLES, weights, weights_at + k).mul(value)
+                            .add(DoubleVector.fromArray(DOUBLES, sum, sum_at + k))
+                            .intoArray(sum, sum_at + k);
+                }
+            }
+        }
+        for (; i < n; i++) {
+            double value = fx == 0 ? pixels[top + i] & 0xffff
+                    : (pixels[top + i] & 0xffff) * (1 - fx) + (pixels[top + i + 1] & 0xffff) * fx;
+            if (fy != 0) {
+                final double below = fx == 0 ? pixels[bottom + i] & 0xffff
+                        : (pixels[bottom + i] & 0xffff) * (1 - fx) + (pixels[bottom + i + 1] & 0xffff) * fx;
+                value = value * (1 - fy) + below * fy;
+            }
+            sum[sum_at + i] += weights[weights_at + i] * value;
+        }
+    }
+
+    @Override
+    public int min_max(final short[] values, final int n) {
+        if (n == 0)
+            return 0;
+        final int bound = SHORTS.loopBound(n);
+        int min = 0xffff, max = 0, i = 0;
+        if (bound > 0) {
+            // Unsigned order is the signed order with the sign bit flipped
+            ShortVector low = ShortVector.broadcast(SHORTS, Short.MAX_VALUE), high = ShortVector.broadcast(SHORTS, Short.MIN_VALUE);
+            for (; i < bound; i += SHORTS.length()) {
+                final ShortVector v = ShortVector.fromArray(SHORTS, values, i).lanewise(VectorOperators.XOR, Short.MIN_VALUE);
+                low = low.min(v);
+                high = high.max(v);
+            }
+            min = (low.reduceLanes(VectorOperators.MIN) ^ Short.MIN_VALUE) & 0xffff;
+            max = (high.reduceLanes(VectorOperators.MAX) ^ Short.MIN_VALUE) & 0xffff;
+        }
+        for (; i < n; i++) {
+            final int v = values[i] & 0xffff;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        return max << 16 | min;
+    }
+
+    private static IntVector ints(final ShortVector v, final int part) {
+        return ((IntVector) v.convert(VectorOperators.S2I, part)).lanewise(VectorOperators.AND, 0xffff);
+    }
+
+    /**
+     * One part of a row interpolated at the horizontal offset fx, with right only read if fx is not 0.
+     */
+    private static DoubleVector row(final ShortVector left, final ShortVector right, final int p, final int q, final double fx) {
+        final DoubleVector l = (DoubleVector) ints(left, p).convert(VectorOperators.I2D, q);
+        if (fx == 0)
+            return l;
+        final DoubleVector r = (DoubleVector) ints(right, p).convert(VectorOperators.I2D, q);
+        return l.mul(1 - fx).add(r.mul(fx));
+    }
+}
@@ -0,0 +1,138 @@
+package util;
+
+import loci.formats.FormatTools;
+import loci.formats.ImageReader;
+import org.junit.AfterClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OmeTiffWriterTest {
+    // Not a multiple of the tile size, so the edge tiles are padded
+    private static final int WIDTH = 300, HEIGHT = 270, SIZE_Z = 3, SIZE_C = 2;
+    private static final ForkJoinPool POOL = new ForkJoinPool(2);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @AfterClass
+    public static void shutdown() {
+        POOL.shutdown();
+    }
+
+    @Test
+    public void lzw_8_bit() throws Exception {
+        round_trip(OmeTiffWriter.Compression.LZW, FormatTools.UINT8, true, false);
+        round_trip(OmeTiffWriter.Compression.LZW, FormatTools.UINT8, false, false);
+    }
+
+    @Test
+    public void lzw_16_bit() throws Exception {
+        round_trip(OmeTiffWriter.Compression.LZW, FormatTools.UINT16, true, false);
+        round_trip(OmeTiffWriter.Compression.LZW, FormatTools.UINT16, false, false);
+    }
+
+    @Test
+    public void deflate_8_bit() throws Exception {
+        round_trip(OmeTiffWriter.Compression.DEFLATE, FormatTools.UINT8, true, false);
+        round_trip(OmeTiffWriter.Compression.DEFLATE, FormatTools.UINT8, false, false);
+    }
+
+    @Test
+    public void deflate_16_bit() throws Exception {
+        round_trip(OmeTiffWriter.Compression.DEFLATE, FormatTools.UINT16, true, false);
+        round_trip(OmeTiffWriter.Compression.DEFLATE, FormatTools.UINT16, false, false);
+    }
+
+    @Test
+    public void uncompressed() throws Exception {
+        round_trip(OmeTiffWriter.Compression.NONE, FormatTools.UINT16, true, false);
+    }
+
+    @Test
+    public void big_tiff() throws Exception {
+        round_trip(OmeTiffWriter.Compression.NONE, FormatTools.UINT16, true, true);
+        round_trip(OmeTiffWriter.Compression.LZW, FormatTools.UINT16, false, true);
+        round_trip(OmeTiffWriter.Compression.DEFLATE, FormatTools.UINT8, true, true);
+    }
+
+    /**
+     * Write all channels of a stack in random order and check that Bio-Formats reads back the same planes in the
+     * order of the file.
+     */
+    private void round_trip(final OmeTiffWriter.Compression compression, final int pixel_type,
+                            final boolean little_endian, final boolean big_tiff) throws Exception {
+        final Series series = new Series(null, "tile", "tile_mp_0.tif", 0, 0, 0, new Channel[SIZE_C], WIDTH, HEIGHT,
+                SIZE_Z, SIZE_C, 1, pixel_type, little_endian, 0.1, 0.1, null);
+        final File path = new File(folder.getRoot(), "stack.ome.tif");
+        final OmeTiffWriter writer = new OmeTiffWriter(path, series, -1, compression, POOL, big_tiff);
+        final byte[][] planes = new byte[SIZE_C * SIZE_Z][];
+        final Random random = new Random(planes.length + pixel_type);
+        final List<Integer> order = new ArrayList<>();
+        for (int p = 0; p < planes.length; p++) {
+            planes[p] = plane(random, series);
+            order.add(p);
+        }
+        Collections.shuffle(order, random);
+        for (int p : order)
+            writer.write(p, planes[p]);
+        writer.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+            final byte[] header = new byte[4];
+            file.readFully(header);
+            final ByteBuffer magic = ByteBuffer.wrap(header)
+                    .order(little_endian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            assertEquals(little_endian ? 'I' : 'M', magic.get(0));
+            assertEquals(big_tiff ? 43 : 42, magic.getShort(2));
+        }
+        try (ImageReader reader = new ImageReader()) {
+            reader.setId(path.getPath());
+            assertEquals(WIDTH, reader.getSizeX());
+            assertEquals(HEIGHT, reader.getSizeY());
+            assertEquals(SIZE_Z, reader.getSizeZ());
+            assertEquals(SIZE_C, reader.getSizeC());
+            assertEquals(pixel_type, reader.getPixelType());
+            assertEquals(planes.length, reader.getImageCount());
+            assertEquals(little_endian, reader.isLittleEndian());
+            for (int p = 0; p < planes.length; p++) {
+                final int[] zct = reader.getZCTCoords(p);
+                assertArrayEquals("plane " + p, planes[writer.plane(zct[1], zct[0], zct[2])], reader.openBytes(p));
+            }
+        }
+        assertTrue(path.delete());
+    }
+
+    /**
+     * A smooth gradient with noise, so compression has something to do but the predictor and the LZW table resets are
+     * exercised as well.
+     */
+    private static byte[] plane(final Random random, final Series series) {
+        final ByteBuffer data = ByteBuffer.allocate(series.plane_bytes())
+                .order(series.little_endian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        final int offset = random.nextInt(1000);
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH; x++) {
+                final int value = offset + 40 * x + 7 * y + random.nextInt(8);
+                if (series.bytes_per_pixel() == 1)
+                    data.put((byte) value);
+                else
+                    data.putShort((short) value);
+            }
+        return data.array();
+    }
+}
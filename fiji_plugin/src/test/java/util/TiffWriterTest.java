@@ -0,0 +1,110 @@
+package util;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class TiffWriterTest {
+    private static final int WIDTH = 37, HEIGHT = 11;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shuffled_16_bit_little_endian() throws Exception {
+        round_trip(2, true, 5, 3);
+    }
+
+    @Test
+    public void shuffled_16_bit_big_endian() throws Exception {
+        round_trip(2, false, 5, 3);
+    }
+
+    @Test
+    public void shuffled_8_bit() throws Exception {
+        round_trip(1, true, 7, 1);
+    }
+
+    @Test
+    public void single_plane() throws Exception {
+        round_trip(2, true, 1, 1);
+    }
+
+    /**
+     * Write the planes in random order from two threads, like the extraction does, and check that ImageJ reads them
+     * back in the order of the stack.
+     */
+    private void round_trip(final int bytes_per_pixel, final boolean little_endian, final int slices, final int frames)
+            throws Exception {
+        final File path = folder.newFile("stack.tif");
+        final TiffWriter writer = new TiffWriter(path, WIDTH, HEIGHT, bytes_per_pixel, little_endian, slices, frames,
+                0.25, 0.5);
+        final List<Integer> order = new ArrayList<>();
+        for (int p = 0; p < writer.planes(); p++)
+            order.add(p);
+        Collections.shuffle(order, new Random(42));
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            final List<Future<?>> writes = new ArrayList<>();
+            for (int p : order)
+                writes.add(pool.submit(() -> {
+                    writer.write(p, plane(p, bytes_per_pixel, little_endian));
+                    return null;
+                }));
+            for (Future<?> write : writes)
+                write.get();
+        } finally {
+            pool.shutdown();
+        }
+        writer.close();
+
+        final ImagePlus imp = IJ.openImage(path.getPath());
+        assertNotNull(imp);
+        assertEquals(WIDTH, imp.getWidth());
+        assertEquals(HEIGHT, imp.getHeight());
+        assertEquals(bytes_per_pixel * 8, imp.getBitDepth());
+        assertEquals(slices, imp.getNSlices());
+        assertEquals(frames, imp.getNFrames());
+        assertEquals(0.25, imp.getCalibration().pixelWidth, 1e-6);
+        assertEquals(0.5, imp.getCalibration().pixelHeight, 1e-6);
+        final ImageStack stack = imp.getStack();
+        for (int p = 0; p < slices * frames; p++)
+            for (int y = 0; y < HEIGHT; y++)
+                for (int x = 0; x < WIDTH; x++)
+                    assertEquals("plane " + p, value(p, x, y, bytes_per_pixel), stack.getProcessor(p + 1).get(x, y));
+    }
+
+    private static int value(final int plane, final int x, final int y, final int bytes_per_pixel) {
+        return bytes_per_pixel == 1 ? (plane * 31 + x + y) & 0xff : plane * 1000 + y * WIDTH + x;
+    }
+
+    private static ByteBuffer plane(final int plane, final int bytes_per_pixel, final boolean little_endian) {
+        final ByteBuffer data = ByteBuffer.allocate(WIDTH * HEIGHT * bytes_per_pixel)
+                .order(little_endian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        for (int y = 0; y < HEIGHT; y++)
+            for (int x = 0; x < WIDTH; x++)
+                if (bytes_per_pixel == 1)
+                    data.put((byte) value(plane, x, y, 1));
+                else
+                    data.putShort((short) value(plane, x, y, 2));
+        data.flip();
+        return data;
+    }
+}